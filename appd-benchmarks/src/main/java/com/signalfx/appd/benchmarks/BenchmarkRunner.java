@@ -0,0 +1,29 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * BenchmarkRunner runs the JMH benchmarks with the usual JMH command line options, always adding
+ * the GC profiler so each result comes with the bytes allocated per operation
+ * (gc.alloc.rate.norm).
+ *
+ * Benchmarks count one operation per data point or lookup, so ops/s and bytes per operation
+ * compare directly across response sizes.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
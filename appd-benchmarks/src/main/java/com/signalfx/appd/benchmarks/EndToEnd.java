@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.benchmarks;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.codahale.metrics.MetricRegistry;
+import com.signalfx.appd.client.FakeController;
+import com.signalfx.appd.client.MetricDataRequest;
+import com.signalfx.appd.process.ReportAppD;
+import com.signalfx.appd.process.info.AppInfo;
+import com.signalfx.appd.process.info.MetricInfo;
+import com.signalfx.appd.process.planner.QueryPlanner;
+import com.signalfx.appd.process.processor.Processor;
+import com.signalfx.appd.process.processor.QueryWatermarks;
+import com.signalfx.appd.process.status.StatusType;
+import com.signalfx.appd.report.reporter.SignalFxRestReporter;
+
+/**
+ * EndToEnd runs collection cycles from a {@link FakeController} to a {@link FakeIngest} through
+ * {@link ReportAppD} and {@link SignalFxRestReporter}, and prints the data points per second
+ * received by the ingest.
+ *
+ * Cycles are back to back, each one a minute after the last one on a clock shared by the
+ * controller and {@link ReportAppD}, so every cycle reports a fresh minute of every metric.
+ *
+ * Arguments are the number of cycles (default 10), the controller tree (default
+ * {@link FakeController#DEFAULT_TREE}), the ingest latency in milliseconds, the rate of uploads
+ * failing, the maximum data points per second of the ingest, and true to send data points gzip
+ * compressed.
+ */
+public class EndToEnd {
+
+    static final String TOKEN = "token";
+    static final int CONCURRENCY = 4;
+
+    public static void main(String[] args) throws Exception {
+        int cycles = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        String tree = args.length > 1 ? args[1] : FakeController.DEFAULT_TREE;
+        final AtomicLong clock = new AtomicLong(
+                System.currentTimeMillis() / Responses.MINUTE_MILLIS * Responses.MINUTE_MILLIS);
+
+        FakeController controller = new FakeController(tree) {
+            @Override
+            protected long currentTimeMillis() {
+                return clock.get();
+            }
+        };
+        FakeIngest ingest = new FakeIngest(TOKEN);
+        if (args.length > 2) {
+            ingest.setLatencyMillis(Long.parseLong(args[2]));
+        }
+        if (args.length > 3) {
+            ingest.setErrorRate(Double.parseDouble(args[3]));
+        }
+        if (args.length > 4) {
+            ingest.setMaxDataPointsPerSecond(Long.parseLong(args[4]));
+        }
+
+        AppInfo app = new AppInfo("app");
+        app.metrics.add(new MetricInfo(
+                "Application Infrastructure Performance|*|Individual Nodes|*|" +
+                        "Hardware Resources|*|*",
+                "-|tier|-|node|-|component", null));
+        List<AppInfo> apps = Collections.singletonList(app);
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+        try (MetricDataRequest request = new MetricDataRequest(controller.start(0), "user",
+                "password", CONCURRENCY);
+             SignalFxRestReporter reporter = new SignalFxRestReporter(TOKEN, ingest.start(0),
+                     SignalFxRestReporter.DEFAULT_BATCH_SIZE,
+                     SignalFxRestReporter.DEFAULT_BATCH_BYTES,
+                     SignalFxRestReporter.DEFAULT_CONCURRENCY, metricRegistry)) {
+            ReportAppD reportAppD = new ReportAppD(request, new Processor(), reporter,
+                    new QueryPlanner(), new QueryWatermarks(), metricRegistry) {
+                @Override
+                protected long currentTimeMillis() {
+                    return clock.get();
+                }
+            };
+            reportAppD.setConcurrency(CONCURRENCY);
+            reporter.setCompression(args.length > 5 && Boolean.parseBoolean(args[5]));
+            System.out.printf("Reporting %d metrics for %d cycles%n", controller.getSeries(),
+                    cycles);
+
+            long start = System.nanoTime();
+            for (int cycle = 0; cycle < cycles; cycle++) {
+                clock.addAndGet(Responses.MINUTE_MILLIS);
+                long cycleStart = System.nanoTime();
+                long received = ingest.getDataPoints();
+                reportAppD.perform(apps, MetricDataRequest.TimeParams.beforeNow(1));
+                System.out.printf("cycle %d: %d data points in %d ms%n", cycle,
+                        ingest.getDataPoints() - received,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - cycleStart));
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.printf("%.0f data points/s, %d data points in %.1f s%n",
+                    ingest.getDataPoints() / seconds, ingest.getDataPoints(), seconds);
+            System.out.printf("controller requests: %d, errors: %d, bytes: %d, decoded: %d%n",
+                    controller.getRequests(), controller.getErrors(),
+                    request.getBytesReceived(), request.getBytesDecoded());
+            System.out.printf(
+                    "ingest uploads: %d, bytes: %d, errors: %d, throttled: %d, invalid: %d%n",
+                    ingest.getRequests(), ingest.getBytes(), ingest.getErrors(),
+                    ingest.getThrottled(), ingest.getInvalidDataPoints());
+            for (StatusType statusType : new StatusType[]{StatusType.reportBatchBytes,
+                    StatusType.reportBatchBytesSent, StatusType.reportBatchFailure}) {
+                System.out.printf("%s: %d%n", statusType.name(),
+                        metricRegistry.counter(statusType.name()).getCount());
+            }
+        } finally {
+            controller.shutdown();
+            ingest.shutdown();
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import com.signalfx.endpoint.SignalFxEndpoint;
+import com.signalfx.endpoint.SignalFxReceiverEndpoint;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers;
+
+/**
+ * FakeIngest is a stand-in for SignalFx ingest accepting protobuf data point uploads on
+ * /v2/datapoint, for load testing the reporting side.
+ *
+ * Uploads are decoded, gzip encoded ones too, and their data points counted, and data points
+ * without a metric, a timestamp or a value are counted as invalid. Latency of every upload, a
+ * rate of uploads failing with 503, and a limit of data points per second above which uploads
+ * are throttled with 429 can be set to exercise the reporter under a slow or failing ingest.
+ */
+public class FakeIngest extends AbstractHandler {
+
+    public static final String DATAPOINT_PATH = "/v2/datapoint";
+
+    private final String token;
+
+    private volatile long latencyMillis;
+    private volatile double errorRate;
+    private volatile long maxDataPointsPerSecond;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong dataPoints = new AtomicLong();
+    private final AtomicLong invalidDataPoints = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+
+    private long second;
+    private long secondDataPoints;
+
+    private Server server;
+
+    /**
+     * @param token
+     *         SignalFx API token uploads must have, null to accept any.
+     */
+    public FakeIngest(String token) {
+        this.token = token;
+    }
+
+    /**
+     * Accept uploads on the given port.
+     *
+     * @param port
+     *         port to listen to, 0 for any free port.
+     * @return endpoint of the ingest.
+     */
+    public SignalFxReceiverEndpoint start(int port) throws Exception {
+        server = new Server(port);
+        server.setHandler(this);
+        server.start();
+        return getEndpoint();
+    }
+
+    /**
+     * @return endpoint of the started ingest.
+     */
+    public SignalFxReceiverEndpoint getEndpoint() {
+        return new SignalFxEndpoint("http", "localhost",
+                server.getConnectors()[0].getLocalPort());
+    }
+
+    /**
+     * Stop accepting uploads.
+     */
+    public void shutdown() throws Exception {
+        if (server != null) {
+            server.stop();
+            server = null;
+        }
+    }
+
+    /**
+     * Delay every upload.
+     */
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Fail the given share of uploads with 503.
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Throttle uploads with 429 once the given data points were accepted in the current second,
+     * 0 for no limit.
+     */
+    public void setMaxDataPointsPerSecond(long maxDataPointsPerSecond) {
+        this.maxDataPointsPerSecond = maxDataPointsPerSecond;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return number of data points accepted.
+     */
+    public long getDataPoints() {
+        return dataPoints.get();
+    }
+
+    public long getInvalidDataPoints() {
+        return invalidDataPoints.get();
+    }
+
+    /**
+     * @return bytes of uploads received, as sent.
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request,
+                       HttpServletResponse response) throws IOException, ServletException {
+        if (!DATAPOINT_PATH.equals(target)) {
+            return;
+        }
+        baseRequest.setHandled(true);
+        requests.incrementAndGet();
+        CountingInputStream in = new CountingInputStream(request.getInputStream());
+        SignalFxProtocolBuffers.DataPointUploadMessage message;
+        try {
+            message = SignalFxProtocolBuffers.DataPointUploadMessage.parseFrom(
+                    "gzip".equalsIgnoreCase(request.getHeader("Content-Encoding")) ?
+                            new GZIPInputStream(in) : in);
+        } catch (IOException e) {
+            response.setStatus(400);
+            return;
+        } finally {
+            ByteStreams.copy(in, ByteStreams.nullOutputStream());
+            bytes.addAndGet(in.getCount());
+        }
+        sleep(latencyMillis);
+        if (token != null && !token.equals(request.getHeader("X-SF-Token"))) {
+            response.setStatus(401);
+            return;
+        }
+        double errorRate = this.errorRate;
+        if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            errors.incrementAndGet();
+            response.setStatus(503);
+            return;
+        }
+        int count = message.getDatapointsCount();
+        if (!acquire(count)) {
+            throttled.incrementAndGet();
+            response.setStatus(429);
+            return;
+        }
+        for (SignalFxProtocolBuffers.DataPoint dataPoint : message.getDatapointsList()) {
+            if (!dataPoint.hasMetric() || dataPoint.getMetric().isEmpty() ||
+                    dataPoint.getTimestamp() <= 0 || !dataPoint.hasValue()) {
+                invalidDataPoints.incrementAndGet();
+            }
+        }
+        dataPoints.addAndGet(count);
+        response.setStatus(200);
+        response.setContentType("application/json");
+        response.getOutputStream().write("\"OK\"".getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return false if the data points are over the limit of the current second.
+     */
+    private synchronized boolean acquire(int count) {
+        long max = maxDataPointsPerSecond;
+        if (max <= 0) {
+            return true;
+        }
+        long now = System.currentTimeMillis() / 1000;
+        if (now != second) {
+            second = now;
+            secondDataPoints = 0;
+        }
+        if (secondDataPoints + count > max && secondDataPoints > 0) {
+            return false;
+        }
+        secondDataPoints += count;
+        return true;
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.signalfx.appd.client.MetricDataHandler;
+import com.signalfx.appd.client.MetricDataParser;
+import com.signalfx.appd.client.model.MetricData;
+import com.signalfx.appd.client.model.MetricValue;
+
+/**
+ * Decoding of AppDynamics metric data responses, as done by MetricDataRequest for every query,
+ * for responses from a single metric to a large wildcard query.
+ *
+ * Each invocation decodes {@link #DATA_POINTS} data points in as many responses as it takes, so
+ * the score is per data point whatever the response size.
+ *
+ * The baseline {@link #parseDom} decodes the same responses the way they were decoded before
+ * streaming, into a String and an org.json tree that is then turned into {@link MetricData}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricDataParserBenchmark {
+
+    static final int DATA_POINTS = 15000;
+
+    /**
+     * Metric paths in the response.
+     */
+    @Param({"1", "100", "1000"})
+    public int metrics;
+
+    /**
+     * Minutes of values per metric path, 1 for a query from its watermark.
+     */
+    @Param({"1", "15"})
+    public int values;
+
+    private byte[] response;
+    private int responses;
+
+    @Setup
+    public void setUp() {
+        response = Responses.metricData(metrics, values, 0).getBytes(StandardCharsets.UTF_8);
+        responses = DATA_POINTS / (metrics * values);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DATA_POINTS)
+    public void parse(final Blackhole blackhole) throws IOException {
+        MetricDataHandler handler = new MetricDataHandler() {
+            @Override
+            public void handle(MetricData metricData) {
+                blackhole.consume(metricData);
+            }
+        };
+        for (int i = 0; i < responses; i++) {
+            MetricDataParser.parse(new ByteArrayInputStream(response), handler);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DATA_POINTS)
+    public void parseDom(Blackhole blackhole) {
+        for (int i = 0; i < responses; i++) {
+            JSONArray dataArray = new JSONArray(new String(response, StandardCharsets.UTF_8));
+            for (int j = 0; j < dataArray.length(); j++) {
+                JSONObject data = dataArray.getJSONObject(j);
+                MetricData metricData =
+                        new MetricData(data.getString("frequency"), data.getLong("metricId"),
+                                data.getString("metricName"), data.getString("metricPath"));
+                JSONArray valueArray = data.getJSONArray("metricValues");
+                for (int k = 0; k < valueArray.length(); k++) {
+                    JSONObject value = valueArray.getJSONObject(k);
+                    metricData.metricValues.add(
+                            new MetricValue(value.getLong("count"), value.getLong("value"),
+                                    value.getLong("max"), value.getLong("min"),
+                                    value.getLong("sum"), value.getLong("startTimeInMillis")));
+                }
+                blackhole.consume(metricData);
+            }
+        }
+    }
+}
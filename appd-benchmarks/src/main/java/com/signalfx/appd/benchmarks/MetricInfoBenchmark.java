@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.benchmarks;
+
+import java.util.InvalidPropertiesFormatException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.signalfx.appd.process.info.MetricInfo;
+
+/**
+ * Mapping of returned metric paths to series with {@link MetricInfo#getMetricTimeSeries(String)}
+ * and routing them with {@link MetricInfo#matches(String)}, for a rule returning from a few
+ * metric paths to more than it caches.
+ *
+ * Each invocation looks up {@link #BATCH} metric paths, the score is per metric path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricInfoBenchmark {
+
+    static final int BATCH = 1000;
+
+    /**
+     * Distinct metric paths the rule returns, above {@link MetricInfo#MAX_CACHED_SERIES} every
+     * lookup misses the cache.
+     */
+    @Param({"100", "10000", "100000"})
+    public int metricPaths;
+
+    private MetricInfo metricInfo;
+    private String[] paths;
+    private int next;
+
+    @Setup
+    public void setUp() throws InvalidPropertiesFormatException {
+        metricInfo = new MetricInfo(
+                "Application Infrastructure Performance|*|Individual Nodes|*|" +
+                        "Hardware Resources|*|*",
+                "-|tier|-|node|-|component", null);
+        paths = new String[metricPaths];
+        for (int i = 0; i < metricPaths; i++) {
+            paths[i] = Responses.metricPath(i);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void getMetricTimeSeries(Blackhole blackhole) {
+        for (int i = 0; i < BATCH; i++) {
+            blackhole.consume(metricInfo.getMetricTimeSeries(nextPath()));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void matches(Blackhole blackhole) {
+        for (int i = 0; i < BATCH; i++) {
+            blackhole.consume(metricInfo.matches(nextPath()));
+        }
+    }
+
+    private String nextPath() {
+        String path = paths[next];
+        next = next + 1 == paths.length ? 0 : next + 1;
+        return path;
+    }
+}
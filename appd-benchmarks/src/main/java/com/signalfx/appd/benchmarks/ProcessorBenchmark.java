@@ -0,0 +1,173 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.benchmarks;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.InvalidPropertiesFormatException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.signalfx.appd.client.model.MetricData;
+import com.signalfx.appd.client.model.MetricValue;
+import com.signalfx.appd.process.info.MetricInfo;
+import com.signalfx.appd.process.model.MetricTimeSeries;
+import com.signalfx.appd.process.processor.Processor;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers;
+
+/**
+ * Filtering of new data points and building their protobuf with
+ * {@link Processor#process(long, MetricTimeSeries, List)}, with a growing number of series
+ * remembered.
+ *
+ * Series are visited round-robin and get a value of a new minute on each visit, as in a steady
+ * state where every series reports every minute. Each invocation processes {@link #BATCH} data
+ * points, the score is per data point.
+ *
+ * The baseline {@link #processHashMap} keeps the last timestamps in a
+ * {@code HashMap<MetricTimeSeries, Long>} as the processor did before series keys, with a
+ * {@link MetricTimeSeries} per series, and builds the same data points.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessorBenchmark {
+
+    static final int BATCH = 1000;
+
+    /**
+     * Series remembered by the processor.
+     */
+    @Param({"1000", "100000", "1000000"})
+    public int series;
+
+    private Processor processor;
+    private MetricTimeSeries[] mts;
+    private long[] seriesKeys;
+    private int next;
+    private long minute = 1000;
+
+    private Map<MetricTimeSeries, Long> mtsToLastTimestamp;
+    private MetricTimeSeries[] seriesMts;
+
+    @Setup
+    public void setUp(BenchmarkParams params) throws InvalidPropertiesFormatException {
+        MetricInfo metricInfo = new MetricInfo(
+                "Application Infrastructure Performance|*|Individual Nodes|*|" +
+                        "Hardware Resources|*|*",
+                "-|tier|-|node|-|component", null);
+        if (params.getBenchmark().endsWith("processHashMap")) {
+            mtsToLastTimestamp = new HashMap<>();
+            seriesMts = new MetricTimeSeries[series];
+            for (int i = 0; i < series; i++) {
+                seriesMts[i] = metricInfo.getMetricTimeSeries(Responses.metricPath(i));
+            }
+            for (int i = 0; i < series; i += BATCH) {
+                processHashMap(null);
+            }
+            return;
+        }
+        processor = new Processor();
+        long ruleKey = Processor.ruleKey("app", metricInfo);
+        // Series share a few templates, only the keys need to be distinct.
+        mts = new MetricTimeSeries[1000];
+        for (int i = 0; i < mts.length; i++) {
+            mts[i] = metricInfo.getMetricTimeSeries(Responses.metricPath(i));
+        }
+        seriesKeys = new long[series];
+        for (int i = 0; i < series; i++) {
+            seriesKeys[i] = Processor.seriesKey(ruleKey,
+                    new MetricData("ONE_MIN", 100000 + i, "", Responses.metricPath(i)));
+        }
+        // Remember every series before measuring.
+        for (int i = 0; i < series; i += BATCH) {
+            process(null);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void process(Blackhole blackhole) {
+        List<MetricValue> metricValues = Collections.singletonList(
+                new MetricValue(1, minute % 1000, 1, 1, 1, minute * Responses.MINUTE_MILLIS));
+        for (int i = 0; i < BATCH; i++) {
+            List<?> dataPoints = processor.process(seriesKeys[next], mts[next % mts.length],
+                    metricValues);
+            if (blackhole != null) {
+                blackhole.consume(dataPoints);
+            }
+            if (++next == seriesKeys.length) {
+                next = 0;
+                minute++;
+                metricValues = Collections.singletonList(new MetricValue(1, minute % 1000, 1, 1,
+                        1, minute * Responses.MINUTE_MILLIS));
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void processHashMap(Blackhole blackhole) {
+        List<MetricValue> metricValues = Collections.singletonList(
+                new MetricValue(1, minute % 1000, 1, 1, 1, minute * Responses.MINUTE_MILLIS));
+        for (int i = 0; i < BATCH; i++) {
+            List<?> dataPoints = processHashMap(seriesMts[next], metricValues);
+            if (blackhole != null) {
+                blackhole.consume(dataPoints);
+            }
+            if (++next == seriesMts.length) {
+                next = 0;
+                minute++;
+                metricValues = Collections.singletonList(new MetricValue(1, minute % 1000, 1, 1,
+                        1, minute * Responses.MINUTE_MILLIS));
+            }
+        }
+    }
+
+    private List<SignalFxProtocolBuffers.DataPoint> processHashMap(MetricTimeSeries mts,
+                                                                   List<MetricValue> metricValues) {
+        Long lastTimestamp = mtsToLastTimestamp.get(mts);
+        Long latestTimestamp = lastTimestamp;
+        List<SignalFxProtocolBuffers.DataPoint> dataPoints = new LinkedList<>();
+        SignalFxProtocolBuffers.DataPoint.Builder dataPointBuilder = null;
+        for (MetricValue metricValue : metricValues) {
+            if (lastTimestamp == null || metricValue.startTimeInMillis > lastTimestamp) {
+                if (dataPointBuilder == null) {
+                    dataPointBuilder = mts.template.toBuilder();
+                }
+                dataPoints.add(dataPointBuilder
+                        .setTimestamp(metricValue.startTimeInMillis)
+                        .setValue(SignalFxProtocolBuffers.Datum.newBuilder()
+                                .setIntValue(metricValue.value)).build());
+                latestTimestamp = latestTimestamp == null ?
+                        metricValue.startTimeInMillis :
+                        Math.max(metricValue.startTimeInMillis, latestTimestamp);
+            }
+        }
+        if (lastTimestamp == null || latestTimestamp > lastTimestamp) {
+            mtsToLastTimestamp.put(mts, latestTimestamp);
+        }
+        return dataPoints;
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.codahale.metrics.MetricRegistry;
+import com.signalfx.appd.client.FakeController;
+import com.signalfx.appd.client.MetricDataQuery;
+import com.signalfx.appd.client.MetricDataRequest;
+import com.signalfx.appd.client.ReplayMetricDataRequest;
+import com.signalfx.appd.client.ResponseRecorder;
+import com.signalfx.appd.process.ReportAppD;
+import com.signalfx.appd.process.info.AppInfo;
+import com.signalfx.appd.process.info.InfoParser;
+import com.signalfx.appd.process.info.MetricInfo;
+import com.signalfx.appd.process.planner.QueryPlanner;
+import com.signalfx.appd.process.processor.Processor;
+import com.signalfx.appd.process.processor.QueryWatermarks;
+import com.signalfx.appd.process.reporter.Reporter;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers;
+
+/**
+ * Replay of a whole capture recorded with APPD_CAPTURE_DIR through {@link ReportAppD} and
+ * {@link Processor} at maximum speed, from fresh state each time. Cycles are performed until one
+ * replays nothing, the score is the time of the whole capture.
+ *
+ * Without a capture directory, a capture of {@link #SYNTHETIC_CYCLES} cycles of a minute of
+ * {@link FakeController#DEFAULT_TREE} is recorded first.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ReplayBenchmark {
+
+    static final int SYNTHETIC_CYCLES = 30;
+
+    /**
+     * Capture directory, empty to record a synthetic capture.
+     */
+    @Param("")
+    public String captureDirectory;
+
+    /**
+     * Metric configurations the capture was recorded with, empty for the synthetic capture.
+     */
+    @Param("")
+    public String metricsJson;
+
+    private Path directory;
+    private List<AppInfo> apps;
+    private ReplayMetricDataRequest request;
+    private ReportAppD reportAppD;
+
+    @Setup
+    public void setUp() throws Exception {
+        if (!metricsJson.isEmpty()) {
+            apps = InfoParser.parseInfo(new String(Files.readAllBytes(Paths.get(metricsJson)),
+                    StandardCharsets.UTF_8));
+        } else {
+            AppInfo app = new AppInfo("app");
+            app.metrics.add(new MetricInfo(
+                    "Application Infrastructure Performance|*|Individual Nodes|*|" +
+                            "Hardware Resources|*|*",
+                    "-|tier|-|node|-|component", null));
+            apps = Collections.singletonList(app);
+        }
+        if (!captureDirectory.isEmpty()) {
+            directory = Paths.get(captureDirectory);
+        } else {
+            directory = Files.createTempDirectory("capture");
+            record(directory);
+        }
+    }
+
+    /**
+     * Record a query of every rule for each of the last minutes, as cycles of a steady state.
+     */
+    private void record(Path directory) throws Exception {
+        FakeController controller = new FakeController(FakeController.DEFAULT_TREE);
+        try (MetricDataRequest recording = new MetricDataRequest(controller.start(0), "user",
+                "password")) {
+            recording.setRecorder(new ResponseRecorder(directory));
+            long end = System.currentTimeMillis() / Responses.MINUTE_MILLIS;
+            for (long minute = end - SYNTHETIC_CYCLES; minute < end; minute++) {
+                for (AppInfo app : apps) {
+                    for (MetricInfo metricInfo : app.metrics) {
+                        recording.get(new MetricDataQuery(app.name, metricInfo.metricPathQuery,
+                                MetricDataRequest.TimeParams.betweenTime(
+                                        minute * Responses.MINUTE_MILLIS,
+                                        (minute + 1) * Responses.MINUTE_MILLIS)));
+                    }
+                }
+            }
+        } finally {
+            controller.shutdown();
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void newState() throws IOException {
+        request = new ReplayMetricDataRequest(directory, 0, 4);
+        reportAppD = new ReportAppD(request, new Processor(), new Reporter() {
+            @Override
+            public void report(List<SignalFxProtocolBuffers.DataPoint> dataPoints) {
+            }
+        }, new QueryPlanner(), new QueryWatermarks(), new MetricRegistry());
+        reportAppD.setConcurrency(4);
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeRequest() throws IOException {
+        request.close();
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (captureDirectory.isEmpty()) {
+            File[] files = directory.toFile().listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.toFile().delete();
+        }
+    }
+
+    @Benchmark
+    public void replay() {
+        long replayed;
+        do {
+            replayed = request.getReplayed();
+            reportAppD.perform(apps, MetricDataRequest.TimeParams.beforeNow(1));
+        } while (request.getReplayed() > replayed);
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.InvalidPropertiesFormatException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.signalfx.appd.client.MetricDataHandler;
+import com.signalfx.appd.client.MetricDataQuery;
+import com.signalfx.appd.client.MetricDataRequest;
+import com.signalfx.appd.client.model.MetricData;
+import com.signalfx.appd.process.ReportAppD;
+import com.signalfx.appd.process.info.AppInfo;
+import com.signalfx.appd.process.info.MetricInfo;
+import com.signalfx.appd.process.planner.QueryPlanner;
+import com.signalfx.appd.process.processor.Processor;
+import com.signalfx.appd.process.processor.QueryWatermarks;
+import com.signalfx.appd.process.reporter.Reporter;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers;
+
+/**
+ * A whole collection cycle with {@link ReportAppD#perform}, from decoded AppDynamics responses to
+ * data points handed to the reporter, against an in-memory controller and reporter.
+ *
+ * Each cycle queries {@link #RULES} rules returning {@link #METRICS_PER_RULE} metric paths with
+ * a value of a new minute each, the score is per data point.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReportAppDBenchmark {
+
+    static final int RULES = 10;
+    static final int METRICS_PER_RULE = Responses.METRICS_PER_TIER;
+
+    private final List<List<MetricData>> responses = new ArrayList<>();
+    private final ListeningExecutorService executor =
+            MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+    private List<AppInfo> apps;
+    private MetricDataRequest request;
+    private ReportAppD reportAppD;
+    private long minute = 1000;
+
+    @Setup
+    public void setUp() throws InvalidPropertiesFormatException {
+        AppInfo app = new AppInfo("app");
+        // Metric paths of tier i are the i-th thousand.
+        List<MetricData> metricDataList = Responses.metricData(RULES * METRICS_PER_RULE);
+        for (int i = 0; i < RULES; i++) {
+            app.metrics.add(new MetricInfo(
+                    "Application Infrastructure Performance|Tier" + i + "|Individual Nodes|*|" +
+                            "Hardware Resources|*|*",
+                    "-|tier|-|node|-|component", null));
+            responses.add(metricDataList.subList(i * METRICS_PER_RULE,
+                    (i + 1) * METRICS_PER_RULE));
+        }
+        apps = Collections.singletonList(app);
+
+        request = new MetricDataRequest("http://localhost", "user", "password") {
+            @Override
+            public ListenableFuture<Void> getAsync(MetricDataQuery query,
+                                                   final MetricDataHandler handler) {
+                int tier = query.metricPath.indexOf("|Tier");
+                final List<MetricData> response = responses.get(Integer.parseInt(
+                        query.metricPath.substring(tier + 5, query.metricPath.indexOf('|',
+                                tier + 1))));
+                // Handed over from other threads as the response would be decoded.
+                return executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (MetricData metricData : response) {
+                            handler.handle(metricData);
+                        }
+                        return null;
+                    }
+                });
+            }
+        };
+        reportAppD = new ReportAppD(request, new Processor(), new Reporter() {
+            @Override
+            public void report(List<SignalFxProtocolBuffers.DataPoint> dataPoints) {
+            }
+        }, new QueryPlanner(), new QueryWatermarks(), new MetricRegistry());
+        reportAppD.setConcurrency(4);
+    }
+
+    @Setup(Level.Invocation)
+    public void nextMinute() {
+        minute++;
+        for (List<MetricData> response : responses) {
+            Responses.setMinute(response, minute);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        request.close();
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RULES * METRICS_PER_RULE)
+    public void perform() {
+        reportAppD.perform(apps, MetricDataRequest.TimeParams.beforeNow(1));
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.signalfx.appd.client.model.MetricData;
+import com.signalfx.appd.client.model.MetricValue;
+
+/**
+ * Responses shaped like the ones of an AppDynamics controller, for node hardware metrics of the
+ * form Application Infrastructure Performance|Tier|Individual Nodes|Node|Hardware Resources|CPU|
+ * %Busy.
+ */
+final class Responses {
+
+    static final long MINUTE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    static final int METRICS_PER_TIER = 1000;
+
+    private static final String[] METRIC_NAMES = {
+            "CPU|%Busy", "CPU|%Idle", "Memory|Used %", "Memory|Free (MB)",
+            "Disks|KB read/sec", "Disks|KB written/sec", "Network|Incoming KB/sec",
+            "Network|Outgoing KB/sec", "Machine|Availability", "System|Load Average"};
+
+    private Responses() {
+    }
+
+    /**
+     * @return metric path of the i-th metric, spread over tiers and nodes.
+     */
+    static String metricPath(int i) {
+        return String.format(
+                "Application Infrastructure Performance|Tier%d|Individual Nodes|node-%d|" +
+                        "Hardware Resources|%s", i / METRICS_PER_TIER, i / METRIC_NAMES.length,
+                METRIC_NAMES[i % METRIC_NAMES.length]);
+    }
+
+    /**
+     * JSON response with values of the minutes before the given one.
+     */
+    static String metricData(int metrics, int values, long endMinute) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < metrics; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            String metricPath = metricPath(i);
+            json.append("{\"frequency\":\"ONE_MIN\",\"metricId\":").append(100000 + i)
+                    .append(",\"metricName\":\"").append(metricPath.replace(
+                    "Application Infrastructure Performance", "Hardware Resources"))
+                    .append("\",\"metricPath\":\"").append(metricPath)
+                    .append("\",\"metricValues\":[");
+            for (int j = 0; j < values; j++) {
+                if (j > 0) {
+                    json.append(',');
+                }
+                long value = (i * 31 + j * 17) % 1000;
+                json.append("{\"count\":1,\"current\":").append(value)
+                        .append(",\"max\":").append(value)
+                        .append(",\"min\":").append(value)
+                        .append(",\"occurrences\":0,\"standardDeviation\":0")
+                        .append(",\"startTimeInMillis\":")
+                        .append((endMinute - values + j) * MINUTE_MILLIS)
+                        .append(",\"sum\":").append(value)
+                        .append(",\"useRange\":true,\"value\":").append(value).append('}');
+            }
+            json.append("]}");
+        }
+        return json.append(']').toString();
+    }
+
+    /**
+     * Decoded metric data without values.
+     */
+    static List<MetricData> metricData(int metrics) {
+        List<MetricData> metricDataList = new ArrayList<>(metrics);
+        for (int i = 0; i < metrics; i++) {
+            String metricPath = metricPath(i);
+            metricDataList.add(new MetricData("ONE_MIN", 100000 + i,
+                    metricPath.substring(metricPath.indexOf('|') + 1), metricPath));
+        }
+        return metricDataList;
+    }
+
+    /**
+     * Replace the values of the metric data by one value at the given minute.
+     */
+    static void setMinute(List<MetricData> metricDataList, long minute) {
+        for (MetricData metricData : metricDataList) {
+            metricData.metricValues.clear();
+            metricData.metricValues.add(new MetricValue(1, minute % 1000, 1, 1, 1,
+                    minute * MINUTE_MILLIS));
+        }
+    }
+}
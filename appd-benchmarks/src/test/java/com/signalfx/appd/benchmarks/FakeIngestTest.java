@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.benchmarks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.signalfx.endpoint.SignalFxReceiverEndpoint;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers;
+
+public class FakeIngestTest {
+
+    private FakeIngest ingest;
+    private CloseableHttpClient httpClient;
+    private String datapointURL;
+
+    @Before
+    public void setUp() throws Exception {
+        ingest = new FakeIngest("token");
+        SignalFxReceiverEndpoint endpoint = ingest.start(0);
+        datapointURL = String.format("%s://%s:%d%s", endpoint.getScheme(),
+                endpoint.getHostname(), endpoint.getPort(), FakeIngest.DATAPOINT_PATH);
+        httpClient = HttpClients.createDefault();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        httpClient.close();
+        ingest.shutdown();
+    }
+
+    @Test
+    public void testUpload() throws Exception {
+        byte[] plain = getMessage(3, true).toByteArray();
+        assertEquals(200, post("token", plain, false));
+        assertEquals(3, ingest.getDataPoints());
+        // The data point without a value.
+        assertEquals(1, ingest.getInvalidDataPoints());
+        assertEquals(plain.length, ingest.getBytes());
+
+        byte[] compressed = gzip(getMessage(2, false).toByteArray());
+        assertEquals(200, post("token", compressed, true));
+        assertEquals(5, ingest.getDataPoints());
+        assertEquals(1, ingest.getInvalidDataPoints());
+        assertEquals(plain.length + compressed.length, ingest.getBytes());
+        assertEquals(2, ingest.getRequests());
+    }
+
+    @Test
+    public void testUnauthorized() throws Exception {
+        assertEquals(401, post("other", getMessage(1, false).toByteArray(), false));
+        assertEquals(0, ingest.getDataPoints());
+    }
+
+    @Test
+    public void testErrorRate() throws Exception {
+        ingest.setErrorRate(1);
+        assertEquals(503, post("token", getMessage(1, false).toByteArray(), false));
+        assertEquals(1, ingest.getErrors());
+        assertEquals(0, ingest.getDataPoints());
+
+        ingest.setErrorRate(0);
+        assertEquals(200, post("token", getMessage(1, false).toByteArray(), false));
+        assertEquals(1, ingest.getErrors());
+        assertEquals(1, ingest.getDataPoints());
+    }
+
+    @Test
+    public void testThrottle() throws Exception {
+        // Only the first upload of each second is accepted.
+        ingest.setMaxDataPointsPerSecond(1);
+        byte[] message = getMessage(1, false).toByteArray();
+        int uploads = 10;
+        for (int i = 0; i < uploads; i++) {
+            int status = post("token", message, false);
+            assertTrue(status == 200 || status == 429);
+        }
+        assertTrue(ingest.getThrottled() > 0);
+        assertEquals(uploads, ingest.getDataPoints() + ingest.getThrottled());
+    }
+
+    private int post(String token, byte[] body, boolean gzip) throws IOException {
+        HttpPost post = new HttpPost(datapointURL);
+        post.setHeader("X-SF-Token", token);
+        post.setHeader("Content-Type", "application/x-protobuf");
+        if (gzip) {
+            post.setHeader("Content-Encoding", "gzip");
+        }
+        post.setEntity(new ByteArrayEntity(body));
+        try (CloseableHttpResponse response = httpClient.execute(post)) {
+            EntityUtils.consumeQuietly(response.getEntity());
+            return response.getStatusLine().getStatusCode();
+        }
+    }
+
+    private static SignalFxProtocolBuffers.DataPointUploadMessage getMessage(int count,
+                                                                             boolean invalid) {
+        SignalFxProtocolBuffers.DataPointUploadMessage.Builder message =
+                SignalFxProtocolBuffers.DataPointUploadMessage.newBuilder();
+        for (int i = 0; i < count; i++) {
+            SignalFxProtocolBuffers.DataPoint.Builder dataPoint =
+                    SignalFxProtocolBuffers.DataPoint.newBuilder()
+                            .setMetric("m")
+                            .setTimestamp(Responses.MINUTE_MILLIS * (i + 1));
+            if (!invalid || i > 0) {
+                dataPoint.setValue(SignalFxProtocolBuffers.Datum.newBuilder().setIntValue(i));
+            }
+            message.addDatapoints(dataPoint.build());
+        }
+        return message.build();
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(body)) {
+            out.write(bytes);
+        }
+        return body.toByteArray();
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.client;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AdaptiveLimiter bounds the number of requests in flight to the AppDynamics controller with a
+ * limit that follows how the controller copes, using additive increase and multiplicative
+ * decrease (AIMD).
+ *
+ * The limit starts low, at its initial limit, and finds how many requests the controller copes
+ * with on its own. Response times are taken until the response starts arriving, so they do not
+ * depend on how much it holds. While they stay close to the fastest recent response and requests
+ * use the whole limit, the limit grows by one for every limit's worth of responses, up to its
+ * maximum. When a response takes more than twice as long, the limit shrinks by 10%, and when
+ * a request fails from overload it is halved. Requests sent before the last decrease do not
+ * decrease it again, so a burst of slow responses only backs off once.
+ *
+ * The fastest recent response is the fastest of the last {@link #BASELINE_WINDOW} to
+ * 2 * {@link #BASELINE_WINDOW} responses, so a single unusually fast response only sets the
+ * baseline for a while, and a lasting change in the controller's response times becomes the new
+ * normal.
+ */
+public class AdaptiveLimiter {
+
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double LATENCY_BACKOFF_RATIO = 0.9;
+    private static final double DROPPED_BACKOFF_RATIO = 0.5;
+    static final int BASELINE_WINDOW = 100;
+
+    private final int maxLimit;
+
+    private double limit;
+    private int inFlight;
+    private long previousWindowMinNanos = Long.MAX_VALUE;
+    private long windowMinNanos = Long.MAX_VALUE;
+    private int windowSamples;
+    private long lastDecreaseNanos;
+
+    // Start times of requests waiting for the limit, oldest first.
+    private final Deque<Long> waiting = new ArrayDeque<>();
+
+    /**
+     * @param maxLimit
+     *         maximum requests in flight, the limit starts at 1 and never goes below it.
+     */
+    public AdaptiveLimiter(int maxLimit) {
+        this(1, maxLimit);
+    }
+
+    /**
+     * @param initialLimit
+     *         requests in flight at first, the limit never goes below 1.
+     * @param maxLimit
+     *         maximum requests in flight.
+     */
+    public AdaptiveLimiter(int initialLimit, int maxLimit) {
+        this.maxLimit = Math.max(1, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(1, initialLimit));
+        this.lastDecreaseNanos = System.nanoTime();
+    }
+
+    /**
+     * Wait until a request can be sent within the limit.
+     *
+     * @return start time of the request, to be passed back when it completes.
+     * @throws InterruptedException
+     *         when interrupted while waiting.
+     */
+    public synchronized long acquire() throws InterruptedException {
+        if (inFlight >= (int) limit) {
+            Long since = System.nanoTime();
+            waiting.addLast(since);
+            try {
+                while (inFlight >= (int) limit) {
+                    wait();
+                }
+            } finally {
+                waiting.removeFirstOccurrence(since);
+            }
+        }
+        inFlight++;
+        return System.nanoTime();
+    }
+
+    /**
+     * Release a request that got a response, adjusting the limit to its response time.
+     *
+     * @param startNanos
+     *         start time returned by {@link #acquire()}.
+     */
+    public void onSuccess(long startNanos) {
+        onSuccess(startNanos, System.nanoTime());
+    }
+
+    /**
+     * Release a request that got a response, adjusting the limit to the time until the response
+     * started arriving.
+     *
+     * @param startNanos
+     *         start time returned by {@link #acquire()}.
+     * @param responseNanos
+     *         time the response started arriving.
+     */
+    public synchronized void onSuccess(long startNanos, long responseNanos) {
+        inFlight--;
+        long latencyNanos = responseNanos - startNanos;
+        if (latencyNanos > baseline(latencyNanos) * LATENCY_TOLERANCE) {
+            decrease(startNanos, responseNanos, LATENCY_BACKOFF_RATIO);
+        } else if (inFlight + 1 >= (int) limit) {
+            // Only grow when the limit is what holds requests back.
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Release a request that failed because the controller is overloaded or unreachable,
+     * decreasing the limit.
+     *
+     * @param startNanos
+     *         start time returned by {@link #acquire()}.
+     */
+    public void onDropped(long startNanos) {
+        onDropped(startNanos, System.nanoTime());
+    }
+
+    /**
+     * Release a request without adjusting the limit, for failures unrelated to load.
+     */
+    public synchronized void onIgnore() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * @return maximum the limit grows to.
+     */
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * @return current maximum requests in flight.
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * @return requests in flight.
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return milliseconds the longest waiting request has been waiting, 0 if none is waiting.
+     */
+    public synchronized long getQueueWaitMillis() {
+        Long since = waiting.peekFirst();
+        return since == null ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - since);
+    }
+
+    synchronized void onDropped(long startNanos, long nowNanos) {
+        inFlight--;
+        decrease(startNanos, nowNanos, DROPPED_BACKOFF_RATIO);
+        notifyAll();
+    }
+
+    /**
+     * Add a response time to the current window.
+     *
+     * @return fastest response time of the current and previous windows.
+     */
+    private long baseline(long latencyNanos) {
+        windowMinNanos = Math.min(windowMinNanos, latencyNanos);
+        long baselineNanos = Math.min(previousWindowMinNanos, windowMinNanos);
+        if (++windowSamples >= BASELINE_WINDOW) {
+            previousWindowMinNanos = windowMinNanos;
+            windowMinNanos = Long.MAX_VALUE;
+            windowSamples = 0;
+        }
+        return baselineNanos;
+    }
+
+    private void decrease(long startNanos, long nowNanos, double ratio) {
+        if (startNanos - lastDecreaseNanos < 0) {
+            // Sent before the last decrease took effect.
+            return;
+        }
+        limit = Math.max(1, limit * ratio);
+        lastDecreaseNanos = nowNanos;
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.client;
+
+/**
+ * CircuitBreaker stops requests to a controller that keeps failing, so an unhealthy controller
+ * is not hammered with every query.
+ *
+ * After a number of consecutive failed requests the circuit opens and requests are refused.
+ * Once the open period is over, a single trial request is let through while the circuit is half
+ * open. The circuit closes again when the trial succeeds and opens for another period when it
+ * fails.
+ */
+public class CircuitBreaker {
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_MILLIS = 30000;
+
+    /**
+     * State of the circuit, the ordinal is published as a gauge.
+     */
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long openUntilMillis;
+    private boolean trialInFlight;
+    private long openCount;
+
+    public CircuitBreaker() {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS);
+    }
+
+    /**
+     * @param failureThreshold
+     *         consecutive failed requests that open the circuit.
+     * @param openMillis
+     *         milliseconds requests are refused before a trial request.
+     */
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openMillis = Math.max(0, openMillis);
+    }
+
+    /**
+     * Check whether a request may be sent. A request allowed must be followed by
+     * {@link #onSuccess()}, {@link #onFailure()} or {@link #onIgnore()}.
+     *
+     * @return true if the request may be sent.
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+        case OPEN:
+            if (currentTimeMillis() < openUntilMillis) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+            trialInFlight = true;
+            return true;
+        case HALF_OPEN:
+            if (trialInFlight) {
+                return false;
+            }
+            trialInFlight = true;
+            return true;
+        default:
+            return true;
+        }
+    }
+
+    /**
+     * @return true unless the circuit is open, to check before retrying a request.
+     */
+    public synchronized boolean isClosed() {
+        return state != State.OPEN;
+    }
+
+    /**
+     * Record a request the controller handled.
+     */
+    public synchronized void onSuccess() {
+        failures = 0;
+        trialInFlight = false;
+        state = State.CLOSED;
+    }
+
+    /**
+     * Record a request that failed because of the controller.
+     */
+    public synchronized void onFailure() {
+        failures++;
+        trialInFlight = false;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            state = State.OPEN;
+            openUntilMillis = currentTimeMillis() + openMillis;
+            openCount++;
+        }
+    }
+
+    /**
+     * Record a request whose outcome says nothing about the controller's health.
+     */
+    public synchronized void onIgnore() {
+        trialInFlight = false;
+    }
+
+    /**
+     * @return current state of the circuit.
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return number of times the circuit opened.
+     */
+    public synchronized long getOpenCount() {
+        return openCount;
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,21 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.client;
+
+import com.signalfx.appd.client.model.MetricData;
+
+/**
+ * MetricDataHandler receives each {@link MetricData} as soon as it has been decoded from the
+ * AppDynamics response, so the response never has to be held in memory as a whole.
+ */
+public interface MetricDataHandler {
+
+    /**
+     * Handle one decoded metric data.
+     *
+     * @param metricData
+     *         metric data with all of its values.
+     */
+    void handle(MetricData metricData);
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.signalfx.appd.client.model.MetricData;
+import com.signalfx.appd.client.model.MetricTreeNode;
+import com.signalfx.appd.client.model.MetricValue;
+
+/**
+ * MetricDataParser decodes AppDynamics metric-data and metric browser JSON responses from a
+ * stream.
+ *
+ * Each element of the top level array is handed to a {@link MetricDataHandler} as soon as it is
+ * complete, so memory use is bounded by the largest single {@link MetricData} rather than by the
+ * whole response.
+ */
+public class MetricDataParser {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    /**
+     * Parse metric data JSON from the stream.
+     *
+     * @param in
+     *         stream of JSON response, it is not closed by the parser.
+     * @param handler
+     *         handler receiving each decoded {@link MetricData}.
+     * @throws IOException
+     *         when the stream could not be read or is not valid metric data JSON.
+     */
+    public static void parse(InputStream in, MetricDataHandler handler) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(in)) {
+            parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new JsonParseException("Expected array of metric data",
+                        parser.getCurrentLocation());
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                handler.handle(parseMetricData(parser));
+            }
+        }
+    }
+
+    /**
+     * Parse metric browser JSON from the stream.
+     *
+     * @param in
+     *         stream of JSON response, it is not closed by the parser.
+     * @return children of the metric path browsed.
+     * @throws IOException
+     *         when the stream could not be read or is not valid metric browser JSON.
+     */
+    public static List<MetricTreeNode> parseTree(InputStream in) throws IOException {
+        List<MetricTreeNode> nodes = new ArrayList<>();
+        try (JsonParser parser = JSON_FACTORY.createParser(in)) {
+            parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new JsonParseException("Expected array of metric tree nodes",
+                        parser.getCurrentLocation());
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                String name = null;
+                String type = null;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    parser.nextToken();
+                    switch (field) {
+                    case "name":
+                        name = parser.getValueAsString();
+                        break;
+                    case "type":
+                        type = parser.getValueAsString();
+                        break;
+                    default:
+                        parser.skipChildren();
+                    }
+                }
+                nodes.add(new MetricTreeNode(name, type));
+            }
+        }
+        return nodes;
+    }
+
+    private static MetricData parseMetricData(JsonParser parser) throws IOException {
+        String frequency = null;
+        long id = 0;
+        String metricName = null;
+        String metricPath = null;
+        List<MetricValue> metricValues = Collections.emptyList();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field) {
+            case "frequency":
+                frequency = parser.getValueAsString();
+                break;
+            case "metricId":
+                id = parser.getValueAsLong();
+                break;
+            case "metricName":
+                metricName = parser.getValueAsString();
+                break;
+            case "metricPath":
+                metricPath = parser.getValueAsString();
+                break;
+            case "metricValues":
+                metricValues = parseMetricValues(parser);
+                break;
+            default:
+                parser.skipChildren();
+            }
+        }
+        MetricData metricData = new MetricData(frequency, id, metricName, metricPath);
+        metricData.metricValues.addAll(metricValues);
+        return metricData;
+    }
+
+    private static List<MetricValue> parseMetricValues(JsonParser parser) throws IOException {
+        List<MetricValue> metricValues = new ArrayList<>();
+        if (parser.getCurrentToken() != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return metricValues;
+        }
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            long count = 0, value = 0, max = 0, min = 0, sum = 0, startTimeInMillis = 0;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                switch (field) {
+                case "count":
+                    count = parser.getValueAsLong();
+                    break;
+                case "value":
+                    value = parser.getValueAsLong();
+                    break;
+                case "max":
+                    max = parser.getValueAsLong();
+                    break;
+                case "min":
+                    min = parser.getValueAsLong();
+                    break;
+                case "sum":
+                    sum = parser.getValueAsLong();
+                    break;
+                case "startTimeInMillis":
+                    startTimeInMillis = parser.getValueAsLong();
+                    break;
+                default:
+                    parser.skipChildren();
+                }
+            }
+            metricValues.add(new MetricValue(count, value, max, min, sum, startTimeInMillis));
+        }
+        return metricValues;
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.client;
+
+/**
+ * MetricDataQuery is an immutable description of a single metric-data query against
+ * AppDynamics, so the same {@link MetricDataRequest} can run many queries at the same time.
+ */
+public class MetricDataQuery {
+
+    /**
+     * AppDynamics application name
+     */
+    public final String appName;
+
+    /**
+     * AppDynamics metric path as query parameter
+     */
+    public final String metricPath;
+
+    /**
+     * Time parameters to query the data.
+     */
+    public final MetricDataRequest.TimeParams timeParams;
+
+    public MetricDataQuery(String appName, String metricPath,
+                           MetricDataRequest.TimeParams timeParams) {
+        this.appName = appName;
+        this.metricPath = metricPath;
+        this.timeParams = timeParams;
+    }
+
+    @Override
+    public int hashCode() {
+        int prime = 31;
+        int result = 1;
+        result = prime * result + (appName != null ? appName.hashCode() : 0);
+        result = prime * result + (metricPath != null ? metricPath.hashCode() : 0);
+        result = prime * result + (timeParams != null ? timeParams.hashCode() : 0);
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object that) {
+        return that instanceof MetricDataQuery && equals((MetricDataQuery) that);
+    }
+
+    public boolean equals(MetricDataQuery that) {
+        return (this.appName == null ? that.appName == null : this.appName.equals(that.appName)) &&
+                (this.metricPath == null ?
+                        that.metricPath == null :
+                        this.metricPath.equals(that.metricPath)) &&
+                (this.timeParams == null ?
+                        that.timeParams == null :
+                        this.timeParams.equals(that.timeParams));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("appName:%s, metricPath:%s, timeParams:%s", appName, metricPath,
+                timeParams);
+    }
+}
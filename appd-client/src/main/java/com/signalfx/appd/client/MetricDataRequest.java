@@ -3,30 +3,92 @@
  */
 package com.signalfx.appd.client;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.google.common.io.CountingInputStream;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.signalfx.appd.client.exception.CircuitOpenException;
 import com.signalfx.appd.client.exception.RequestException;
+import com.signalfx.appd.client.exception.ResponseTooLargeException;
 import com.signalfx.appd.client.exception.UnauthorizedException;
 import com.signalfx.appd.client.model.MetricData;
-import com.signalfx.appd.client.model.MetricValue;
-
-import com.mashape.unirest.http.HttpResponse;
-import com.mashape.unirest.http.JsonNode;
-import com.mashape.unirest.http.Unirest;
-import com.mashape.unirest.http.exceptions.UnirestException;
+import com.signalfx.appd.client.model.MetricTreeNode;
 
 /**
  * MetricDataRequest performs request to AppDynamics REST API to retrieve metrics data.
  *
+ * It holds no per-query state, so a single instance can be shared by many threads. Requests go
+ * through a bounded pool of keep-alive connections to the controller, and
+ * {@link #getAsync(MetricDataQuery, MetricDataHandler)} lets callers keep many queries in flight
+ * at once while handling their metric data as it is decoded.
+ *
+ * Requests in flight are bounded by an {@link AdaptiveLimiter} that starts at the given
+ * concurrency, grows up to the pool size while the controller keeps up, and backs off when it
+ * slows down or fails from overload.
+ *
+ * Requests failing with 429, 5xx or I/O errors are retried according to a {@link RetryPolicy},
+ * unless metric data of the response was already handled. A {@link CircuitBreaker} refuses
+ * requests with {@link CircuitOpenException} while the controller keeps failing.
+ *
+ * Queries returning more metric data than allowed fail with {@link ResponseTooLargeException},
+ * so they can be split into narrower queries found with {@link #browse(String, String)}. The rest
+ * of such a response is not read. So do queries timing out before any of their metric data was
+ * handled, once their retries are used up, as the controller may answer narrower queries in time.
+ * Other timeouts, of browse requests or in the middle of a response, are transient failures like
+ * 5xx that count towards opening the circuit.
+ *
+ * Responses are asked for gzip encoded, and decompressed while they are parsed. Bytes received
+ * and decoded are counted, so the savings can be followed.
+ *
+ * Successful responses can be recorded with a {@link ResponseRecorder} to be replayed by
+ * {@link ReplayMetricDataRequest}.
+ *
  * AppDynamics API is documented <a href="https://docs.appdynamics.com/display/PRO40/Use+the+AppDynamics+REST+API">here</a>.
  */
-public class MetricDataRequest {
+public class MetricDataRequest implements Closeable {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 4;
+    public static final int DEFAULT_MAX_METRIC_DATA = 50000;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+    private static final int SOCKET_TIMEOUT_MILLIS = 60000;
 
     /**
      * AppDynamics host URL
@@ -34,93 +96,634 @@ public class MetricDataRequest {
     private final String appdURL;
 
     /**
-     * AppDynamics username
+     * Basic authorization header value for AppDynamics username and password
+     */
+    private final String authorization;
+
+    /**
+     * HTTP client with a bounded pool of keep-alive connections to the controller
+     */
+    private final CloseableHttpClient httpClient;
+
+    /**
+     * Executor running asynchronous queries, one thread per pooled connection
+     */
+    private final ListeningExecutorService executor;
+
+    /**
+     * Limit of requests in flight following the controller's response times
+     */
+    private final AdaptiveLimiter limiter;
+
+    /**
+     * Retries of requests that failed transiently
+     */
+    private final RetryPolicy retryPolicy;
+
+    /**
+     * Circuit breaker refusing requests while the controller keeps failing
+     */
+    private final CircuitBreaker circuitBreaker;
+
+    /**
+     * Maximum metric data of a response, 0 for no limit
      */
-    private final String appdUsername;
+    private volatile int maxMetricData = DEFAULT_MAX_METRIC_DATA;
 
     /**
-     * AppDynamics password
+     * Recorder of successful responses, null if they are not recorded
      */
-    private final String appdPassword;
+    private volatile ResponseRecorder recorder;
 
     /**
-     * AppDynamics application name
+     * Timeouts of requests
      */
-    private String appName;
+    private volatile RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout(CONNECT_TIMEOUT_MILLIS)
+            .setSocketTimeout(SOCKET_TIMEOUT_MILLIS)
+            .build();
 
     /**
-     * Time parameters to query the data.
+     * Whether responses are asked for gzip encoded
      */
-    private TimeParams timeParams;
+    private volatile boolean compression = true;
 
     /**
-     * AppDynamics metric path as query parameter
+     * Bytes of response bodies as received, and once decoded
      */
-    private String metricPath;
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong bytesDecoded = new AtomicLong();
 
     public MetricDataRequest(String url, String username, String password) {
+        this(url, username, password, DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * @param url
+     *         AppDynamics host URL.
+     * @param username
+     *         AppDynamics username.
+     * @param password
+     *         AppDynamics password.
+     * @param maxConnections
+     *         maximum number of connections to the controller and of queries in flight, starting
+     *         with one query in flight.
+     */
+    public MetricDataRequest(String url, String username, String password, int maxConnections) {
+        this(url, username, password, 1, maxConnections);
+    }
+
+    /**
+     * @param url
+     *         AppDynamics host URL.
+     * @param username
+     *         AppDynamics username.
+     * @param password
+     *         AppDynamics password.
+     * @param concurrency
+     *         number of queries in flight at first.
+     * @param maxConnections
+     *         maximum number of connections to the controller and of queries in flight.
+     */
+    public MetricDataRequest(String url, String username, String password, int concurrency,
+                             int maxConnections) {
+        this(url, username, password, concurrency, maxConnections, new RetryPolicy(),
+                new CircuitBreaker());
+    }
+
+    /**
+     * @param url
+     *         AppDynamics host URL.
+     * @param username
+     *         AppDynamics username.
+     * @param password
+     *         AppDynamics password.
+     * @param maxConnections
+     *         maximum number of connections to the controller and of queries in flight, starting
+     *         with one query in flight.
+     * @param retryPolicy
+     *         retries of requests that failed transiently.
+     * @param circuitBreaker
+     *         circuit breaker of the controller.
+     */
+    public MetricDataRequest(String url, String username, String password, int maxConnections,
+                             RetryPolicy retryPolicy, CircuitBreaker circuitBreaker) {
+        this(url, username, password, 1, maxConnections, retryPolicy, circuitBreaker);
+    }
+
+    /**
+     * @param url
+     *         AppDynamics host URL.
+     * @param username
+     *         AppDynamics username.
+     * @param password
+     *         AppDynamics password.
+     * @param concurrency
+     *         number of queries in flight at first.
+     * @param maxConnections
+     *         maximum number of connections to the controller and of queries in flight.
+     * @param retryPolicy
+     *         retries of requests that failed transiently.
+     * @param circuitBreaker
+     *         circuit breaker of the controller.
+     */
+    public MetricDataRequest(String url, String username, String password, int concurrency,
+                             int maxConnections, RetryPolicy retryPolicy,
+                             CircuitBreaker circuitBreaker) {
         this.appdURL = url;
-        this.appdUsername = username;
-        this.appdPassword = password;
+        this.authorization = "Basic " + Base64.encodeBase64String(
+                (username + ":" + password).getBytes(StandardCharsets.UTF_8));
+
+        PoolingHttpClientConnectionManager connectionManager =
+                new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        // Responses are decoded in read(), where their bytes are counted.
+        this.httpClient = HttpClients.custom()
+                .disableContentCompression()
+                .setConnectionManager(connectionManager)
+                .build();
+        this.limiter = new AdaptiveLimiter(concurrency, maxConnections);
+        this.retryPolicy = retryPolicy;
+        this.circuitBreaker = circuitBreaker;
+        this.executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(
+                maxConnections, new ThreadFactoryBuilder()
+                        .setNameFormat("appd-request-%d")
+                        .setDaemon(true)
+                        .build()));
     }
 
-    public void setAppName(String appName) {
-        this.appName = appName;
+    /**
+     * Set the maximum metric data a response may have before the query fails with
+     * {@link ResponseTooLargeException}.
+     *
+     * @param maxMetricData
+     *         maximum metric data of a response, 0 for no limit.
+     */
+    public void setMaxMetricData(int maxMetricData) {
+        this.maxMetricData = Math.max(0, maxMetricData);
     }
 
-    public void setTimeParams(TimeParams timeParams) {
-        this.timeParams = timeParams;
+    /**
+     * Record successful responses, null to stop recording.
+     */
+    public void setRecorder(ResponseRecorder recorder) {
+        this.recorder = recorder;
     }
 
-    public void setMetricPath(String metricPath) {
-        this.metricPath = metricPath;
+    /**
+     * Set the time a response may go without receiving data before the request fails.
+     */
+    void setSocketTimeoutMillis(int socketTimeoutMillis) {
+        this.requestConfig = RequestConfig.copy(requestConfig)
+                .setSocketTimeout(socketTimeoutMillis)
+                .build();
+    }
+
+    /**
+     * Ask for gzip encoded responses, true by default.
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
     }
 
     /**
      * Perform retrieval of metrics from AppDynamics using specified parameters.
      *
+     * @param query
+     *         app name, metric path and time parameters to query.
      * @return list of metric data.
      * @throws RequestException
      *         when there was an error with request.
      * @throws UnauthorizedException
      *         when unable to authorize with given credentials.
      */
-    public List<MetricData> get() throws RequestException, UnauthorizedException {
-        HttpResponse<String> response;
+    public List<MetricData> get(MetricDataQuery query)
+            throws RequestException, UnauthorizedException {
+        final List<MetricData> list = new ArrayList<>();
+        get(query, new MetricDataHandler() {
+            @Override
+            public void handle(MetricData metricData) {
+                list.add(metricData);
+            }
+        });
+        return list;
+    }
+
+    /**
+     * Perform retrieval of metrics from AppDynamics using specified parameters, handing each
+     * {@link MetricData} to the handler while the response is still being read.
+     *
+     * @param query
+     *         app name, metric path and time parameters to query.
+     * @param handler
+     *         handler receiving each decoded {@link MetricData}.
+     * @throws RequestException
+     *         when there was an error with request.
+     * @throws UnauthorizedException
+     *         when unable to authorize with given credentials.
+     */
+    public void get(MetricDataQuery query, MetricDataHandler handler)
+            throws RequestException, UnauthorizedException {
+        final CountingHandler countingHandler = new CountingHandler(handler, maxMetricData);
+        execute(getURI(query), new ResponseReader() {
+            @Override
+            public void read(InputStream in) throws IOException, RequestException {
+                try {
+                    MetricDataParser.parse(in, countingHandler);
+                } catch (TooManyMetricDataException e) {
+                    throw new ResponseTooLargeException(String.format(
+                            "Response has more than %d metric data", maxMetricData));
+                }
+            }
+
+            @Override
+            public boolean isRetriable() {
+                // Metric data already handled would be handled twice by a retry.
+                return countingHandler.count == 0;
+            }
+
+            @Override
+            public boolean isSplittable() {
+                return countingHandler.count == 0;
+            }
+        });
+    }
+
+    /**
+     * List the children of a metric path in the AppDynamics metric browser.
+     *
+     * @param appName
+     *         AppDynamics application name.
+     * @param metricPath
+     *         pipe (|) separated metric path to browse, empty for the top level.
+     * @return children of the metric path.
+     * @throws RequestException
+     *         when there was an error with request.
+     * @throws UnauthorizedException
+     *         when unable to authorize with given credentials.
+     */
+    public List<MetricTreeNode> browse(String appName, String metricPath)
+            throws RequestException, UnauthorizedException {
+        final List<MetricTreeNode> nodes = new ArrayList<>();
+        execute(getBrowseURI(appName, metricPath), new ResponseReader() {
+            @Override
+            public void read(InputStream in) throws IOException {
+                nodes.clear();
+                nodes.addAll(MetricDataParser.parseTree(in));
+            }
+
+            @Override
+            public boolean isRetriable() {
+                return true;
+            }
+
+            @Override
+            public boolean isSplittable() {
+                return false;
+            }
+        });
+        return nodes;
+    }
+
+    /**
+     * Send a request through the circuit breaker, retrying transient failures.
+     */
+    private void execute(URI uri, ResponseReader reader)
+            throws RequestException, UnauthorizedException {
+        if (!circuitBreaker.allowRequest()) {
+            throw new CircuitOpenException("Controller is unhealthy, request was not sent.");
+        }
+        retryPolicy.onRequest();
+        for (int retry = 1; ; retry++) {
+            try {
+                send(uri, reader);
+                circuitBreaker.onSuccess();
+                return;
+            } catch (TransientRequestException e) {
+                long backoffMillis = !reader.isRetriable() || !circuitBreaker.isClosed() ?
+                        -1 : retryPolicy.backoff(retry, e.retryAfterMillis);
+                if (backoffMillis < 0) {
+                    if (e.getCause() instanceof SocketTimeoutException &&
+                            reader.isSplittable() && circuitBreaker.isClosed()) {
+                        // Taken for a query too large to answer in time, not a controller failure.
+                        circuitBreaker.onIgnore();
+                        throw new ResponseTooLargeException(
+                                "Response timed out before any metric data", e.getCause());
+                    }
+                    circuitBreaker.onFailure();
+                    throw new RequestException(e.getMessage(), e.getCause());
+                }
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException ie) {
+                    circuitBreaker.onIgnore();
+                    Thread.currentThread().interrupt();
+                    throw new RequestException("Interrupted while waiting to retry request.", ie);
+                }
+            } catch (RequestException | UnauthorizedException | RuntimeException e) {
+                // Including failures of the handler, e.g. when the query was cancelled.
+                circuitBreaker.onIgnore();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Send a single request within the concurrency limit.
+     *
+     * @throws TransientRequestException
+     *         when the request failed in a way that may succeed later.
+     * @throws ResponseTooLargeException
+     *         when the reader found the response too large.
+     */
+    private void send(URI uri, ResponseReader reader)
+            throws RequestException, UnauthorizedException {
+        HttpGet httpGet = new HttpGet(uri);
+        httpGet.setConfig(requestConfig);
+        httpGet.setHeader("accept", "application/json");
+        httpGet.setHeader("Authorization", authorization);
+        if (compression) {
+            httpGet.setHeader("Accept-Encoding", "gzip");
+        }
+        long startNanos;
+        try {
+            startNanos = limiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RequestException("Interrupted while waiting to send request.", e);
+        }
+        long responseNanos = 0;
+        boolean succeeded = false;
+        boolean overloaded = false;
+        try (CloseableHttpResponse response = httpClient.execute(httpGet)) {
+            responseNanos = System.nanoTime();
+            HttpEntity entity = response.getEntity();
+            int status = response.getStatusLine().getStatusCode();
+            switch (status) {
+            case 200: {
+                if (entity == null) {
+                    throw new RequestException("Response is empty.");
+                }
+                Header encoding = entity.getContentEncoding();
+                read(httpGet, entity.getContent(), encoding != null &&
+                        "gzip".equalsIgnoreCase(encoding.getValue().trim()), reader);
+                succeeded = true;
+                break;
+            }
+            case 401: {
+                EntityUtils.consumeQuietly(entity);
+                throw new UnauthorizedException("Authentication failed");
+            }
+            default: {
+                EntityUtils.consumeQuietly(entity);
+                if (status == 429 || status >= 500) {
+                    overloaded = true;
+                    throw new TransientRequestException("Unhandled response code " + status,
+                            null, getRetryAfterMillis(response));
+                }
+                throw new RequestException("Unhandled response code " + status);
+            }
+            }
+        } catch (JsonProcessingException e) {
+            throw new RequestException("Response could not be parsed.", e);
+        } catch (IOException e) {
+            overloaded = isOverload(e);
+            throw new TransientRequestException("Something was wrong with sending request.", e,
+                    -1);
+        } finally {
+            if (succeeded) {
+                // Time to the first byte, whatever the size of the response.
+                limiter.onSuccess(startNanos, responseNanos);
+            } else if (overloaded) {
+                limiter.onDropped(startNanos);
+            } else {
+                limiter.onIgnore();
+            }
+        }
+    }
+
+    /**
+     * Whether a failure is a sign of an overloaded or unreachable controller, rather than of a
+     * bad response.
+     */
+    private static boolean isOverload(IOException e) {
+        return e instanceof SocketTimeoutException || e instanceof ConnectTimeoutException ||
+                e instanceof SocketException || e instanceof NoHttpResponseException;
+    }
+
+    /**
+     * Read a response body, decompressing it if gzip encoded and counting its bytes.
+     */
+    private void read(HttpGet httpGet, InputStream content, boolean gzip, ResponseReader reader)
+            throws IOException, RequestException {
+        CountingInputStream received = new CountingInputStream(content);
+        CountingInputStream decoded = null;
+        boolean aborted = false;
         try {
-            response = Unirest.get(
-                    this.appdURL + "/controller/rest/applications/" + appName + "/metric-data")
-                    .header("accept", "application/json")
-                    .basicAuth(this.appdUsername, this.appdPassword)
-                    .queryString(getQueryString())
-                    .queryString("output", "json")
-                    .asString();
-        } catch (UnirestException e) {
-            throw new RequestException("Something was wrong with sending request.", e);
+            decoded = new CountingInputStream(gzip ? new GZIPInputStream(received) : received);
+            read(httpGet.getURI(), decoded, reader);
+        } catch (ResponseTooLargeException | RuntimeException e) {
+            // Draining the rest of the response would only delay its split, or nobody wants it.
+            httpGet.abort();
+            aborted = true;
+            throw e;
+        } finally {
+            if (!aborted) {
+                received.close();
+            }
+            bytesReceived.addAndGet(received.getCount());
+            bytesDecoded.addAndGet(decoded == null ? 0 : decoded.getCount());
         }
-        if (response == null) {
-            throw new RequestException("Response is empty.");
+    }
+
+    /**
+     * Read a response body, recording it if a recorder is set.
+     */
+    private void read(URI uri, InputStream in, ResponseReader reader)
+            throws IOException, RequestException {
+        ResponseRecorder recorder = this.recorder;
+        ResponseRecorder.Recording recording = recorder == null ? null : recorder.start(uri);
+        if (recording == null) {
+            reader.read(in);
+            return;
         }
-        switch (response.getStatus()) {
-        case 200: {
-            return process(new JsonNode(response.getBody()));
+        try {
+            InputStream tee = recording.tee(in);
+            reader.read(tee);
+            recording.commit(tee);
+        } finally {
+            recording.close();
         }
-        case 401: {
-            throw new UnauthorizedException("Authentication failed");
+    }
+
+    /**
+     * @return milliseconds to wait asked for by the Retry-After header, negative if none.
+     */
+    private static long getRetryAfterMillis(HttpResponse response) {
+        Header header = response.getFirstHeader("Retry-After");
+        if (header == null) {
+            return -1;
         }
-        default: {
-            throw new RequestException("Unhandled response code " + response.getStatus());
+        String value = header.getValue().trim();
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(value);
+            return date == null ? -1 : Math.max(0, date.getTime() - System.currentTimeMillis());
         }
+    }
+
+    /**
+     * Perform retrieval of metrics from AppDynamics on the request executor.
+     *
+     * The returned future fails with {@link RequestException} or {@link UnauthorizedException}
+     * as the cause when {@link #get(MetricDataQuery)} would have thrown them.
+     *
+     * @param query
+     *         app name, metric path and time parameters to query.
+     * @return future list of metric data.
+     */
+    public ListenableFuture<List<MetricData>> getAsync(final MetricDataQuery query) {
+        return executor.submit(new Callable<List<MetricData>>() {
+            @Override
+            public List<MetricData> call() throws Exception {
+                return get(query);
+            }
+        });
+    }
+
+    /**
+     * Perform retrieval of metrics from AppDynamics on the request executor, handing each
+     * {@link MetricData} to the handler on that executor while the response is still being read.
+     *
+     * The returned future fails with {@link RequestException} or {@link UnauthorizedException}
+     * as the cause when {@link #get(MetricDataQuery, MetricDataHandler)} would have thrown them,
+     * or with the exception the handler threw. Cancelling it interrupts the handler.
+     *
+     * @param query
+     *         app name, metric path and time parameters to query.
+     * @param handler
+     *         handler receiving each decoded {@link MetricData}.
+     * @return future completing once the whole response was handled.
+     */
+    public ListenableFuture<Void> getAsync(final MetricDataQuery query,
+                                           final MetricDataHandler handler) {
+        return executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                get(query, handler);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @return bytes of response bodies as received from the controller, for monitoring.
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * @return bytes of response bodies once decoded, for monitoring.
+     */
+    public long getBytesDecoded() {
+        return bytesDecoded.get();
+    }
+
+    /**
+     * @return limiter of requests in flight, for monitoring.
+     */
+    public AdaptiveLimiter getLimiter() {
+        return limiter;
+    }
+
+    /**
+     * @return retry policy of transient failures, for monitoring.
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * @return circuit breaker of the controller, for monitoring.
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Release pooled connections and stop the request executor.
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        httpClient.close();
+    }
+
+    /**
+     * Generate URI of the metric-data request including the querystring.
+     *
+     * @param query
+     *         query to generate URI for.
+     * @return request URI.
+     * @throws RequestException
+     *         when AppDynamics host URL or app name does not form a valid URI.
+     */
+    protected URI getURI(MetricDataQuery query) throws RequestException {
+        try {
+            URI base = new URI(appdURL);
+            URIBuilder builder = new URIBuilder(base).setPath(
+                    (base.getPath() == null ? "" : base.getPath()) +
+                            "/controller/rest/applications/" + query.appName + "/metric-data");
+            for (Map.Entry<String, Object> entry : getQueryString(query).entrySet()) {
+                builder.addParameter(entry.getKey(), String.valueOf(entry.getValue()));
+            }
+            builder.addParameter("output", "json");
+            return builder.build();
+        } catch (URISyntaxException e) {
+            throw new RequestException("Invalid request URI.", e);
+        }
+    }
+
+    /**
+     * Generate URI of the metric browser request.
+     *
+     * @param appName
+     *         AppDynamics application name.
+     * @param metricPath
+     *         metric path to browse, empty or null for the top level.
+     * @return request URI.
+     * @throws RequestException
+     *         when AppDynamics host URL or app name does not form a valid URI.
+     */
+    protected URI getBrowseURI(String appName, String metricPath) throws RequestException {
+        try {
+            URI base = new URI(appdURL);
+            URIBuilder builder = new URIBuilder(base).setPath(
+                    (base.getPath() == null ? "" : base.getPath()) +
+                            "/controller/rest/applications/" + appName + "/metrics");
+            if (metricPath != null && !metricPath.isEmpty()) {
+                builder.addParameter("metric-path", metricPath);
+            }
+            builder.addParameter("output", "json");
+            return builder.build();
+        } catch (URISyntaxException e) {
+            throw new RequestException("Invalid request URI.", e);
         }
     }
 
     /**
      * Generate querystring for the request.
      *
+     * @param query
+     *         query to generate querystring for.
      * @return map of query strings.
      */
-    protected Map<String, Object> getQueryString() {
+    protected Map<String, Object> getQueryString(MetricDataQuery query) {
         Map<String, Object> qs = new HashMap<>();
+        TimeParams timeParams = query.timeParams;
         if (timeParams != null) {
             qs.put("time-range-type", timeParams.type);
             if (timeParams.duration > 0) {
@@ -134,38 +737,70 @@ public class MetricDataRequest {
             }
         }
         qs.put("rollup", false);
-        if (metricPath != null) {
-            qs.put("metric-path", metricPath);
+        if (query.metricPath != null) {
+            qs.put("metric-path", query.metricPath);
         }
         return qs;
     }
 
     /**
-     * Process the JSON response from the request.
-     *
-     * @param node
-     *         root node of JSON response.
-     * @return list of {@link MetricData}
-     */
-    protected List<MetricData> process(JsonNode node) {
-        JSONArray dataArray = node.getArray();
-        List<MetricData> list = new LinkedList<>();
-        for (int i = 0; i < dataArray.length(); i++) {
-            JSONObject data = dataArray.getJSONObject(i);
-            MetricData metricData =
-                    new MetricData(data.getString("frequency"), data.getLong("metricId"),
-                            data.getString("metricName"), data.getString("metricPath"));
-            list.add(metricData);
-            JSONArray valueArray = data.getJSONArray("metricValues");
-            for (int j = 0; j < valueArray.length(); j++) {
-                JSONObject value = valueArray.getJSONObject(j);
-                metricData.metricValues.add(
-                        new MetricValue(value.getLong("count"), value.getLong("value"),
-                                value.getLong("max"), value.getLong("min"), value.getLong("sum"),
-                                value.getLong("startTimeInMillis")));
+     * Reader of the body of a successful response.
+     */
+    private interface ResponseReader {
+        void read(InputStream in) throws IOException, RequestException;
+
+        /**
+         * @return true if the request can be sent again after a failure.
+         */
+        boolean isRetriable();
+
+        /**
+         * @return true if a timeout after the last retry should fail with
+         * {@link ResponseTooLargeException}, so the query is split.
+         */
+        boolean isSplittable();
+    }
+
+    /**
+     * Handler counting the metric data handed on, and stopping the response at the maximum.
+     */
+    private static class CountingHandler implements MetricDataHandler {
+        private final MetricDataHandler handler;
+        private final int maxCount;
+        private int count;
+
+        private CountingHandler(MetricDataHandler handler, int maxCount) {
+            this.handler = handler;
+            this.maxCount = maxCount;
+        }
+
+        @Override
+        public void handle(MetricData metricData) {
+            if (maxCount > 0 && count >= maxCount) {
+                throw new TooManyMetricDataException();
             }
+            count++;
+            handler.handle(metricData);
+        }
+    }
+
+    /**
+     * Stops parsing a response with too many metric data.
+     */
+    private static class TooManyMetricDataException extends RuntimeException {
+    }
+
+    /**
+     * Failure of a single request that may succeed when retried.
+     */
+    private static class TransientRequestException extends RequestException {
+        private final long retryAfterMillis;
+
+        private TransientRequestException(String message, Throwable cause,
+                                          long retryAfterMillis) {
+            super(message, cause);
+            this.retryAfterMillis = retryAfterMillis;
         }
-        return list;
     }
 
     /**
@@ -230,6 +865,17 @@ public class MetricDataRequest {
             this.endTime = endTime;
         }
 
+        @Override
+        public int hashCode() {
+            int prime = 31;
+            int result = 1;
+            result = prime * result + (type != null ? type.hashCode() : 0);
+            result = prime * result + (int) (duration ^ (duration >>> 32));
+            result = prime * result + (int) (startTime ^ (startTime >>> 32));
+            result = prime * result + (int) (endTime ^ (endTime >>> 32));
+            return result;
+        }
+
         @Override
         public boolean equals(Object that) {
             return that instanceof TimeParams && equals((TimeParams) that);
@@ -0,0 +1,248 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.client;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.signalfx.appd.client.exception.RequestException;
+import com.signalfx.appd.client.exception.UnauthorizedException;
+import com.signalfx.appd.client.model.MetricTreeNode;
+
+/**
+ * ReplayMetricDataRequest serves responses recorded by a {@link ResponseRecorder} in place of the
+ * controller.
+ *
+ * Queries and browses are matched to captures by application and metric path, and each one gets
+ * the next capture of its application and metric path in the order they were recorded, whatever
+ * its time parameters. A query without captures left fails with {@link RequestException}.
+ *
+ * Captures are served at maximum speed, or paced so that they are served no earlier after the
+ * first one than they were received, divided by the given speed.
+ */
+public class ReplayMetricDataRequest extends MetricDataRequest {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final String APPLICATIONS = "/controller/rest/applications/";
+
+    private final Map<String, Deque<Capture>> captures = new HashMap<>();
+    private final double speed;
+    private final long firstMillis;
+    private final AtomicLong remaining = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private long startNanos = -1;
+
+    /**
+     * @param directory
+     *         capture directory of a {@link ResponseRecorder}.
+     * @param speed
+     *         multiple of the original pace to serve captures at, 0 for maximum speed.
+     * @param maxConnections
+     *         maximum number of queries in flight.
+     * @throws IOException
+     *         when the captures cannot be read.
+     */
+    public ReplayMetricDataRequest(Path directory, double speed, int maxConnections)
+            throws IOException {
+        super("http://localhost", "", "", maxConnections);
+        this.speed = speed;
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream =
+                     Files.newDirectoryStream(directory, "*" + ResponseRecorder.SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        // Names sort in the order captures were received.
+        Collections.sort(files);
+        long firstMillis = Long.MAX_VALUE;
+        for (Path file : files) {
+            Capture capture = readHeader(file);
+            Deque<Capture> keyCaptures = captures.get(capture.key);
+            if (keyCaptures == null) {
+                keyCaptures = new ArrayDeque<>();
+                captures.put(capture.key, keyCaptures);
+            }
+            keyCaptures.add(capture);
+            firstMillis = Math.min(firstMillis, capture.receivedMillis);
+        }
+        this.firstMillis = firstMillis;
+        remaining.set(files.size());
+    }
+
+    /**
+     * @return number of captures not served yet.
+     */
+    public long getRemaining() {
+        return remaining.get();
+    }
+
+    /**
+     * @return number of captures served.
+     */
+    public long getReplayed() {
+        return replayed.get();
+    }
+
+    @Override
+    public void get(MetricDataQuery query, MetricDataHandler handler)
+            throws RequestException, UnauthorizedException {
+        try (InputStream in = next(getURI(query))) {
+            MetricDataParser.parse(in, handler);
+        } catch (IOException e) {
+            throw new RequestException("Failed to read capture.", e);
+        }
+    }
+
+    @Override
+    public List<MetricTreeNode> browse(String appName, String metricPath)
+            throws RequestException, UnauthorizedException {
+        try (InputStream in = next(getBrowseURI(appName, metricPath))) {
+            return MetricDataParser.parseTree(in);
+        } catch (IOException e) {
+            throw new RequestException("Failed to read capture.", e);
+        }
+    }
+
+    /**
+     * Take the next capture of the request, waiting for its time when paced.
+     *
+     * @return stream of the response body of the capture.
+     */
+    private InputStream next(URI uri) throws IOException, RequestException {
+        Capture capture;
+        long replayNanos;
+        synchronized (this) {
+            Deque<Capture> keyCaptures = captures.get(key(uri));
+            capture = keyCaptures == null ? null : keyCaptures.poll();
+            if (capture == null) {
+                throw new RequestException("No capture left for " + uri);
+            }
+            if (startNanos < 0) {
+                startNanos = System.nanoTime();
+            }
+            replayNanos = startNanos;
+        }
+        remaining.decrementAndGet();
+        if (speed > 0) {
+            long waitNanos = replayNanos + (long) (TimeUnit.MILLISECONDS.toNanos(
+                    capture.receivedMillis - firstMillis) / speed) - System.nanoTime();
+            if (waitNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RequestException("Interrupted while waiting to replay.", e);
+                }
+            }
+        }
+        InputStream in = open(capture.file);
+        replayed.incrementAndGet();
+        return in;
+    }
+
+    /**
+     * @return stream of the capture file past its header line.
+     */
+    private static InputStream open(Path file) throws IOException {
+        InputStream in = new BufferedInputStream(
+                new GZIPInputStream(Files.newInputStream(file)));
+        try {
+            int b;
+            while ((b = in.read()) >= 0 && b != '\n') {
+                // Skip the header.
+            }
+            return in;
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    private static Capture readHeader(Path file) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+            int b;
+            while ((b = in.read()) >= 0 && b != '\n') {
+                header.write(b);
+            }
+        }
+        long receivedMillis = 0;
+        String uri = null;
+        try (JsonParser parser = JSON_FACTORY.createParser(header.toByteArray())) {
+            if (parser.nextToken() == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    parser.nextToken();
+                    if ("time".equals(field)) {
+                        receivedMillis = parser.getLongValue();
+                    } else if ("uri".equals(field)) {
+                        uri = parser.getValueAsString();
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            }
+        }
+        if (uri == null) {
+            throw new IOException("Capture " + file + " has no request URI");
+        }
+        return new Capture(file, key(URI.create(uri)), receivedMillis);
+    }
+
+    /**
+     * @return application, endpoint and metric path of the request, without the controller host
+     * and time parameters.
+     */
+    private static String key(URI uri) {
+        String path = uri.getPath();
+        int applications = path.indexOf(APPLICATIONS);
+        StringBuilder key = new StringBuilder(
+                applications < 0 ? path : path.substring(applications + APPLICATIONS.length()));
+        for (NameValuePair parameter : URLEncodedUtils.parse(uri, StandardCharsets.UTF_8.name())) {
+            if ("metric-path".equals(parameter.getName())) {
+                key.append('\0').append(parameter.getValue());
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Recorded response, read when it is served.
+     */
+    private static class Capture {
+        private final Path file;
+        private final String key;
+        private final long receivedMillis;
+
+        private Capture(Path file, String key, long receivedMillis) {
+            this.file = file;
+            this.key = key;
+            this.receivedMillis = receivedMillis;
+        }
+    }
+}
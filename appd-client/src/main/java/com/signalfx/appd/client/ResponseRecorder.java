@@ -0,0 +1,213 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * ResponseRecorder records raw AppDynamics responses to a capture directory, so they can be
+ * served again by {@link ReplayMetricDataRequest} without the controller.
+ *
+ * Each successful response is a gzip file holding a line of JSON with the time it was received
+ * and the request URI, which has the application, metric path and time parameters of the query,
+ * followed by the response body as sent by the controller. Files are named after the time they
+ * were received, and only appear once the response was completely read, so a capture never has
+ * partial responses. Failing to record a response does not fail its request, the first failure
+ * is logged and all of them are counted as dropped recordings.
+ */
+public class ResponseRecorder {
+
+    protected static final Logger log = LoggerFactory.getLogger(ResponseRecorder.class);
+
+    public static final String SUFFIX = ".json.gz";
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final Path directory;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param directory
+     *         capture directory, created if missing.
+     * @throws IOException
+     *         when the directory cannot be created.
+     */
+    public ResponseRecorder(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+    }
+
+    /**
+     * @return number of responses recorded.
+     */
+    public long getRecorded() {
+        return recorded.get();
+    }
+
+    /**
+     * @return number of responses that failed to be recorded.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Start recording the response of a request.
+     *
+     * @return recording, or null if it could not be started.
+     */
+    Recording start(URI uri) {
+        try {
+            return open(uri);
+        } catch (IOException e) {
+            drop(e);
+            return null;
+        }
+    }
+
+    private Recording open(URI uri) throws IOException {
+        long receivedMillis = System.currentTimeMillis();
+        String name = String.format("%013d-%09d", receivedMillis, sequence.incrementAndGet());
+        Path file = directory.resolve(name + SUFFIX + ".tmp");
+        OutputStream out = new GZIPOutputStream(Files.newOutputStream(file));
+        try {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            try (JsonGenerator generator = JSON_FACTORY.createGenerator(header)) {
+                generator.writeStartObject();
+                generator.writeNumberField("time", receivedMillis);
+                generator.writeStringField("uri", uri.toString());
+                generator.writeEndObject();
+            }
+            header.write('\n');
+            header.writeTo(out);
+        } catch (IOException e) {
+            out.close();
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        return new Recording(file, directory.resolve(name + SUFFIX), out);
+    }
+
+    /**
+     * Count a response that could not be recorded, logging the first one.
+     */
+    private void drop(IOException e) {
+        if (dropped.getAndIncrement() == 0) {
+            log.warn("Failed to record a response in {}, later failures are only counted",
+                    directory, e);
+        }
+    }
+
+    /**
+     * Recording of a single response, copying the body as it is read.
+     */
+    class Recording implements AutoCloseable {
+        private final Path file;
+        private final Path target;
+        private final OutputStream out;
+        private IOException failure;
+        private boolean committed;
+
+        private Recording(Path file, Path target, OutputStream out) {
+            this.file = file;
+            this.target = target;
+            this.out = out;
+        }
+
+        /**
+         * @return stream copying what is read from the response body into the recording.
+         */
+        InputStream tee(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) {
+                        write(new byte[]{(byte) b}, 0, 1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int read = super.read(b, off, len);
+                    if (read > 0) {
+                        write(b, off, read);
+                    }
+                    return read;
+                }
+            };
+        }
+
+        private void write(byte[] b, int off, int len) {
+            if (failure != null) {
+                return;
+            }
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        /**
+         * Copy the rest of the response body and keep the recording.
+         */
+        void commit(InputStream tee) throws IOException {
+            byte[] buffer = new byte[4096];
+            while (tee.read(buffer) >= 0) {
+                // Trailing bytes the reader left are recorded too.
+            }
+            if (failure != null) {
+                drop(failure);
+                return;
+            }
+            try {
+                out.close();
+                Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+                committed = true;
+                recorded.incrementAndGet();
+            } catch (IOException e) {
+                drop(e);
+            }
+        }
+
+        /**
+         * Drop the recording unless it was committed.
+         */
+        @Override
+        public void close() {
+            if (committed) {
+                return;
+            }
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Dropped anyway.
+            }
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                // A leftover temporary file is never replayed.
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * RetryPolicy decides whether and when a request that failed transiently is sent again.
+ *
+ * Retries wait with exponential backoff and full jitter, so clients retrying at the same time
+ * spread out. A wait asked for by the controller with Retry-After is honored, and the request is
+ * not retried when it is longer than the maximum backoff.
+ *
+ * Retries are bounded by a budget shared by all requests. Each request adds a fraction of a
+ * retry to the budget and each retry takes a whole one, so retries stay a small share of the
+ * requests when the controller fails for a long time, while a few occasional errors can always
+ * be retried.
+ */
+public class RetryPolicy {
+
+    public static final int DEFAULT_MAX_RETRIES = 2;
+    public static final long DEFAULT_BASE_BACKOFF_MILLIS = 500;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 10000;
+    public static final double DEFAULT_BUDGET_RATIO = 0.1;
+    public static final int DEFAULT_MAX_BUDGET = 10;
+
+    private final int maxRetries;
+    private final long baseBackoffMillis;
+    private final long maxBackoffMillis;
+    private final double budgetRatio;
+    private final int maxBudget;
+
+    private double budget;
+    private long retries;
+    private long budgetExhausted;
+
+    public RetryPolicy() {
+        this(DEFAULT_MAX_RETRIES, DEFAULT_BASE_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS,
+                DEFAULT_BUDGET_RATIO, DEFAULT_MAX_BUDGET);
+    }
+
+    /**
+     * @param maxRetries
+     *         maximum retries of a single request.
+     * @param baseBackoffMillis
+     *         maximum wait before the first retry, doubled for each further retry.
+     * @param maxBackoffMillis
+     *         maximum wait before any retry.
+     * @param budgetRatio
+     *         retries added to the budget by each request.
+     * @param maxBudget
+     *         maximum retries saved up in the budget, the budget starts full.
+     */
+    public RetryPolicy(int maxRetries, long baseBackoffMillis, long maxBackoffMillis,
+                       double budgetRatio, int maxBudget) {
+        this.maxRetries = Math.max(0, maxRetries);
+        this.baseBackoffMillis = Math.max(0, baseBackoffMillis);
+        this.maxBackoffMillis = Math.max(this.baseBackoffMillis, maxBackoffMillis);
+        this.budgetRatio = Math.max(0, budgetRatio);
+        this.maxBudget = Math.max(0, maxBudget);
+        this.budget = this.maxBudget;
+    }
+
+    /**
+     * Record a new request, adding to the retry budget.
+     */
+    public synchronized void onRequest() {
+        budget = Math.min(maxBudget, budget + budgetRatio);
+    }
+
+    /**
+     * Decide whether a failed request is retried, taking the retry from the budget.
+     *
+     * @param retry
+     *         number of the retry, starting at 1.
+     * @param retryAfterMillis
+     *         wait asked for by the controller, negative if none.
+     * @return milliseconds to wait before retrying, negative if the request is not retried.
+     */
+    public long backoff(int retry, long retryAfterMillis) {
+        if (retry > maxRetries || retryAfterMillis > maxBackoffMillis) {
+            return -1;
+        }
+        synchronized (this) {
+            if (budget < 1) {
+                budgetExhausted++;
+                return -1;
+            }
+            budget--;
+            retries++;
+        }
+        long ceiling = Math.min(maxBackoffMillis,
+                baseBackoffMillis << Math.min(retry - 1, 30));
+        long backoff = ceiling == 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1);
+        return Math.max(backoff, retryAfterMillis);
+    }
+
+    /**
+     * @return number of retries allowed.
+     */
+    public synchronized long getRetries() {
+        return retries;
+    }
+
+    /**
+     * @return number of retries refused because the budget was used up.
+     */
+    public synchronized long getBudgetExhausted() {
+        return budgetExhausted;
+    }
+}
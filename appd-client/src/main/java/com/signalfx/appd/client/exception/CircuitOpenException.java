@@ -0,0 +1,14 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.client.exception;
+
+/**
+ * Thrown when a request is not sent because the controller is considered unhealthy.
+ */
+public class CircuitOpenException extends RequestException {
+
+    public CircuitOpenException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,19 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.client.exception;
+
+/**
+ * Thrown when a query returns more metric data than allowed, or times out before returning any
+ * after its retries, and should be split into narrower queries.
+ */
+public class ResponseTooLargeException extends RequestException {
+
+    public ResponseTooLargeException(String message) {
+        super(message);
+    }
+
+    public ResponseTooLargeException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
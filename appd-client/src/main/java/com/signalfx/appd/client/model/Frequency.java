@@ -0,0 +1,47 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.client.model;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frequency is the size of the time buckets AppDynamics rolls metric values up into.
+ */
+public enum Frequency {
+    ONE_MIN(1),
+    TEN_MIN(10),
+    SIXTY_MIN(60);
+
+    /**
+     * Minutes covered by each metric value
+     */
+    public final int minutes;
+
+    Frequency(int minutes) {
+        this.minutes = minutes;
+    }
+
+    /**
+     * @return milliseconds covered by each metric value.
+     */
+    public long toMillis() {
+        return TimeUnit.MINUTES.toMillis(minutes);
+    }
+
+    /**
+     * @param frequency
+     *         frequency as returned by AppDynamics.
+     * @return matching {@link Frequency} or null if unknown.
+     */
+    public static Frequency parse(String frequency) {
+        if (frequency != null) {
+            for (Frequency value : values()) {
+                if (value.name().equals(frequency)) {
+                    return value;
+                }
+            }
+        }
+        return null;
+    }
+}
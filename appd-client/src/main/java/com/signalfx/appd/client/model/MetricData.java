@@ -1,6 +1,6 @@
 package com.signalfx.appd.client.model;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -19,6 +19,13 @@ public class MetricData {
         this.id = id;
         this.metricName = metricName;
         this.metricPath = metricPath;
-        this.metricValues = new LinkedList<>();
+        this.metricValues = new ArrayList<>();
+    }
+
+    /**
+     * @return frequency of the metric values or null if AppDynamics returned an unknown one.
+     */
+    public Frequency getFrequency() {
+        return Frequency.parse(frequency);
     }
 }
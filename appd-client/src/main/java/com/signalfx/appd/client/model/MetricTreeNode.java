@@ -0,0 +1,50 @@
+package com.signalfx.appd.client.model;
+
+/**
+ * MetricTreeNode represents a child of a metric path in the AppDynamics metric browser, either
+ * a folder of further metric path elements or a leaf metric.
+ */
+public class MetricTreeNode {
+
+    public static final String FOLDER = "folder";
+    public static final String LEAF = "leaf";
+
+    public final String name;
+    public final String type;
+
+    public MetricTreeNode(String name, String type) {
+        this.name = name;
+        this.type = type;
+    }
+
+    /**
+     * @return true if the node has children of its own.
+     */
+    public boolean isFolder() {
+        return FOLDER.equals(type);
+    }
+
+    @Override
+    public int hashCode() {
+        int prime = 31;
+        int result = 1;
+        result = prime * result + (name != null ? name.hashCode() : 0);
+        result = prime * result + (type != null ? type.hashCode() : 0);
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object that) {
+        return that instanceof MetricTreeNode && equals((MetricTreeNode) that);
+    }
+
+    public boolean equals(MetricTreeNode that) {
+        return (this.name == null ? that.name == null : this.name.equals(that.name)) &&
+                (this.type == null ? that.type == null : this.type.equals(that.type));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("name:%s, type:%s", name, type);
+    }
+}
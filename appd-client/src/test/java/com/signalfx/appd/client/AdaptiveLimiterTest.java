@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class AdaptiveLimiterTest {
+
+    @Test
+    public void testBackoff() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(10, 10);
+        long base = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        assertEquals(10, limiter.getLimit());
+
+        limiter.acquire();
+        limiter.onSuccess(base, base + millis(10));
+        assertEquals(10, limiter.getLimit());
+
+        // Slow responses of requests sent at the same time only back off once.
+        limiter.acquire();
+        limiter.acquire();
+        limiter.onSuccess(base + millis(20), base + millis(50));
+        limiter.onSuccess(base + millis(20), base + millis(60));
+        assertEquals(9, limiter.getLimit());
+
+        limiter.acquire();
+        limiter.onDropped(base + millis(100), base + millis(110));
+        assertEquals(4, limiter.getLimit());
+
+        // Errors unrelated to load do not change the limit.
+        limiter.acquire();
+        limiter.onIgnore();
+        assertEquals(4, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void testGrowth() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(2, 10);
+        long base = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        assertEquals(2, limiter.getLimit());
+        assertEquals(10, limiter.getMaxLimit());
+
+        // Limit grows while fast responses use all of it.
+        for (int i = 0; i < 2; i++) {
+            limiter.acquire();
+        }
+        for (int i = 0; i < 100; i++) {
+            long start = base + millis(100 + i * 10);
+            limiter.onSuccess(start, start + millis(10));
+            limiter.acquire();
+        }
+        // Only two requests are in flight, so it stops growing past them.
+        assertEquals(3, limiter.getLimit());
+    }
+
+    @Test
+    public void testGrowthToMax() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(4);
+        long base = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        assertEquals(1, limiter.getLimit());
+
+        // Every request the limit lets through is sent, and responses stay fast.
+        long start = base;
+        for (int i = 0; i < 20; i++) {
+            while (limiter.getInFlight() < limiter.getLimit()) {
+                limiter.acquire();
+            }
+            start += millis(10);
+            limiter.onSuccess(start, start + millis(10));
+        }
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void testBaselineWindow() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(10, 10);
+        long base = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        // A single tiny response, then larger ones.
+        limiter.acquire();
+        limiter.onSuccess(base, base + millis(1));
+        long start = base;
+        for (int i = 0; i < 2 * AdaptiveLimiter.BASELINE_WINDOW; i++) {
+            start += millis(200);
+            limiter.acquire();
+            limiter.onSuccess(start, start + millis(100));
+        }
+        int limit = limiter.getLimit();
+        assertTrue(limit < 10);
+
+        // The tiny response left the baseline, so larger ones no longer back off.
+        for (int i = 0; i < AdaptiveLimiter.BASELINE_WINDOW; i++) {
+            start += millis(200);
+            limiter.acquire();
+            limiter.onSuccess(start, start + millis(100));
+        }
+        assertEquals(limit, limiter.getLimit());
+    }
+
+    @Test
+    public void testWait() throws Exception {
+        final AdaptiveLimiter limiter = new AdaptiveLimiter(1);
+        long start = limiter.acquire();
+        assertEquals(0, limiter.getQueueWaitMillis());
+
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    limiter.onSuccess(limiter.acquire());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        waiter.start();
+        Thread.sleep(100);
+        assertTrue(waiter.isAlive());
+        assertTrue(limiter.getQueueWaitMillis() > 0);
+        assertEquals(1, limiter.getInFlight());
+
+        limiter.onSuccess(start);
+        waiter.join(5000);
+        assertFalse(waiter.isAlive());
+        assertEquals(0, limiter.getQueueWaitMillis());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    private static long millis(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
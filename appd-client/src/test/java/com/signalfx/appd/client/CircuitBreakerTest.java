@@ -0,0 +1,53 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+    private long now = 1000;
+
+    @Test
+    public void testStates() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(2, 100) {
+            @Override
+            protected long currentTimeMillis() {
+                return now;
+            }
+        };
+        assertTrue(circuitBreaker.allowRequest());
+        circuitBreaker.onFailure();
+        // Failures not in a row do not open the circuit.
+        assertTrue(circuitBreaker.allowRequest());
+        circuitBreaker.onSuccess();
+        assertTrue(circuitBreaker.allowRequest());
+        circuitBreaker.onFailure();
+        assertTrue(circuitBreaker.allowRequest());
+        circuitBreaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.allowRequest());
+
+        // A single trial once the open period is over.
+        now += 100;
+        assertTrue(circuitBreaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.allowRequest());
+        circuitBreaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.allowRequest());
+
+        now += 100;
+        assertTrue(circuitBreaker.allowRequest());
+        circuitBreaker.onIgnore();
+        assertTrue(circuitBreaker.allowRequest());
+        circuitBreaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        assertEquals(2, circuitBreaker.getOpenCount());
+    }
+}
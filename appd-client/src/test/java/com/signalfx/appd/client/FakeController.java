@@ -0,0 +1,548 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.codec.binary.Base64;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.signalfx.appd.client.model.MetricTreeNode;
+
+/**
+ * FakeController is a stand-in for an AppDynamics controller serving the metric-data and metric
+ * browser endpoints of the REST API over a synthetic metric tree, for load testing.
+ *
+ * The tree is described by branches of pipe (|) separated levels. A level is either a comma
+ * separated list of names, or a prefix and a count like Node*100 for Node0 to Node99, and the
+ * last level holds the leaf metrics. For example
+ * <pre>
+ * Application Infrastructure Performance|Tier*10|Individual Nodes|Node*1000|CPU,Memory|Metric*10
+ * </pre>
+ * has 200000 metrics. The tree is never materialized, so it can hold millions of metrics.
+ *
+ * Every application has the same tree. Queries may have * wildcards in any segment and get a
+ * value for every complete minute of the requested time range, derived from the metric and the
+ * minute so that repeated queries agree. Values are never rolled up.
+ *
+ * Latency of every response and of every thousand metric data, and a rate of failed requests
+ * can be set to exercise the client under a slow or failing controller. Responses are gzip
+ * encoded when asked for, unless compression is turned off.
+ *
+ * Run {@link #main(String[])} to serve a tree on its own.
+ */
+public class FakeController extends AbstractHandler {
+
+    public static final String DEFAULT_TREE =
+            "Application Infrastructure Performance|Tier*10|Individual Nodes|Node*100|" +
+                    "Hardware Resources|CPU,Memory,Network|Metric*10";
+
+    private static final long MINUTE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final Pattern PATH_PATTERN =
+            Pattern.compile("/controller/rest/applications/([^/]+)/(metric-data|metrics)");
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final List<Level[]> branches = new ArrayList<>();
+    private final long series;
+
+    private volatile long latencyMillis;
+    private volatile long latencyPerThousandMillis;
+    private volatile double errorRate;
+    private volatile int errorStatus = 503;
+    private volatile String authorization;
+    private volatile boolean compression = true;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong browseRequests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong metricDataReturned = new AtomicLong();
+    private final AtomicLong valuesReturned = new AtomicLong();
+
+    private Server server;
+
+    /**
+     * @param tree
+     *         branches of the metric tree, separated by semicolons (;).
+     */
+    public FakeController(String tree) {
+        long series = 0;
+        for (String branch : tree.split(";")) {
+            String[] levelSpecs = branch.split("\\|");
+            Level[] levels = new Level[levelSpecs.length];
+            long branchSeries = 1;
+            for (int i = 0; i < levelSpecs.length; i++) {
+                levels[i] = new Level(levelSpecs[i]);
+                branchSeries *= levels[i].size();
+            }
+            branches.add(levels);
+            series += branchSeries;
+        }
+        this.series = series;
+    }
+
+    /**
+     * Serve the metric tree on the given port.
+     *
+     * @param port
+     *         port to listen to, 0 for any free port.
+     * @return URL of the controller.
+     */
+    public String start(int port) throws Exception {
+        server = new Server(port);
+        server.setHandler(this);
+        server.start();
+        return getURL();
+    }
+
+    /**
+     * @return URL of the started controller.
+     */
+    public String getURL() {
+        return "http://localhost:" + server.getConnectors()[0].getLocalPort();
+    }
+
+    /**
+     * Stop serving.
+     */
+    public void shutdown() throws Exception {
+        if (server != null) {
+            server.stop();
+            server = null;
+        }
+    }
+
+    /**
+     * @return number of leaf metrics of each application.
+     */
+    public long getSeries() {
+        return series;
+    }
+
+    /**
+     * Delay every response.
+     */
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Delay metric-data responses further by the given time for each thousand metric data.
+     */
+    public void setLatencyPerThousandMillis(long latencyPerThousandMillis) {
+        this.latencyPerThousandMillis = latencyPerThousandMillis;
+    }
+
+    /**
+     * Fail the given share of requests with the error status.
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    public void setErrorStatus(int errorStatus) {
+        this.errorStatus = errorStatus;
+    }
+
+    /**
+     * Answer 401 unless requests authenticate with the given username and password.
+     */
+    public void setCredentials(String username, String password) {
+        this.authorization = "Basic " + Base64.encodeBase64String(
+                (username + ":" + password).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Encode responses with gzip when asked for, true by default.
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getBrowseRequests() {
+        return browseRequests.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public long getMetricDataReturned() {
+        return metricDataReturned.get();
+    }
+
+    public long getValuesReturned() {
+        return valuesReturned.get();
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request,
+                       HttpServletResponse response) throws IOException, ServletException {
+        Matcher matcher = PATH_PATTERN.matcher(target);
+        if (!matcher.matches()) {
+            return;
+        }
+        baseRequest.setHandled(true);
+        requests.incrementAndGet();
+        sleep(latencyMillis);
+        if (authorization != null && !authorization.equals(request.getHeader("Authorization"))) {
+            response.setStatus(401);
+            return;
+        }
+        double errorRate = this.errorRate;
+        if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            errors.incrementAndGet();
+            response.setStatus(errorStatus);
+            return;
+        }
+
+        response.setStatus(200);
+        response.setContentType("application/json");
+        String metricPath = request.getParameter("metric-path");
+        OutputStream out = response.getOutputStream();
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        if (compression && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            response.setHeader("Content-Encoding", "gzip");
+            out = new GZIPOutputStream(out);
+        }
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(out)) {
+            if ("metrics".equals(matcher.group(2))) {
+                browseRequests.incrementAndGet();
+                writeChildren(generator, metricPath == null || metricPath.isEmpty() ?
+                        new String[0] : metricPath.split("\\|"));
+            } else {
+                long[] minutes = getMinutes(request, currentTimeMillis() / MINUTE_MILLIS);
+                generator.writeStartArray();
+                if (metricPath != null) {
+                    MetricDataWriter writer = new MetricDataWriter(generator, minutes[0],
+                            minutes[1]);
+                    String[] segments = metricPath.split("\\|");
+                    for (Level[] levels : branches) {
+                        if (levels.length == segments.length) {
+                            writer.writeMatches(levels, segments, 0, 0, "");
+                        }
+                        // Metric ids of each branch follow the ones of the branch before.
+                        writer.idOffset += size(levels);
+                    }
+                }
+                generator.writeEndArray();
+            }
+        }
+    }
+
+    /**
+     * @return current time, the end of the time range of queries.
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Write the children of the metric path, merged over the branches it belongs to.
+     */
+    private void writeChildren(JsonGenerator generator, String[] segments) throws IOException {
+        Map<String, String> children = new LinkedHashMap<>();
+        for (Level[] levels : branches) {
+            if (levels.length <= segments.length || !contains(levels, segments)) {
+                continue;
+            }
+            Level level = levels[segments.length];
+            String type = segments.length + 1 < levels.length ?
+                    MetricTreeNode.FOLDER : MetricTreeNode.LEAF;
+            for (int i = 0; i < level.size(); i++) {
+                children.put(level.name(i), type);
+            }
+        }
+        generator.writeStartArray();
+        for (Map.Entry<String, String> child : children.entrySet()) {
+            generator.writeStartObject();
+            generator.writeStringField("name", child.getKey());
+            generator.writeStringField("type", child.getValue());
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+    }
+
+    private static boolean contains(Level[] levels, String[] segments) {
+        for (int i = 0; i < segments.length; i++) {
+            if (levels[i].indexOf(segments[i]) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long size(Level[] levels) {
+        long size = 1;
+        for (Level level : levels) {
+            size *= level.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return first and end (exclusive) minute of the time range of the query, not later than
+     * the current minute.
+     */
+    static long[] getMinutes(HttpServletRequest request, long nowMinute) {
+        String type = request.getParameter("time-range-type");
+        long duration = getLong(request, "duration-in-mins");
+        long startTime = getLong(request, "start-time");
+        long endTime = getLong(request, "end-time");
+        long start;
+        long end;
+        switch (type == null ? "" : type) {
+        case "BEFORE_TIME":
+            end = endTime / MINUTE_MILLIS;
+            start = end - duration;
+            break;
+        case "AFTER_TIME":
+            start = (startTime + MINUTE_MILLIS - 1) / MINUTE_MILLIS;
+            end = start + duration;
+            break;
+        case "BETWEEN_TIMES":
+            start = (startTime + MINUTE_MILLIS - 1) / MINUTE_MILLIS;
+            end = endTime / MINUTE_MILLIS;
+            break;
+        default:
+            end = nowMinute;
+            start = end - duration;
+            break;
+        }
+        return new long[]{start, Math.min(end, nowMinute)};
+    }
+
+    private static long getLong(HttpServletRequest request, String name) {
+        String value = request.getParameter(name);
+        return value == null ? 0 : Long.parseLong(value);
+    }
+
+    /**
+     * @return value of the metric at the minute.
+     */
+    static long value(long metricId, long minute) {
+        long hash = (metricId * 31 + minute) * 0x9E3779B97F4A7C15L;
+        return (hash >>> 33) % 1000;
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writer of the metric data of the leaf metrics matching a query.
+     */
+    private class MetricDataWriter {
+        private final JsonGenerator generator;
+        private final long startMinute;
+        private final long endMinute;
+        private final Map<String, Pattern> globs = new LinkedHashMap<>();
+        private long idOffset;
+        private long written;
+
+        private MetricDataWriter(JsonGenerator generator, long startMinute, long endMinute) {
+            this.generator = generator;
+            this.startMinute = startMinute;
+            this.endMinute = endMinute;
+        }
+
+        /**
+         * Write the leaf metrics below the path matching the remaining segments of the query.
+         *
+         * @param index
+         *         index of the metric path among the leaves of the branch, in the levels so far.
+         */
+        private void writeMatches(Level[] levels, String[] segments, int depth, long index,
+                                  String path) throws IOException {
+            if (depth == levels.length) {
+                write(path, idOffset + index);
+                return;
+            }
+            Level level = levels[depth];
+            String segment = segments[depth];
+            String prefix = depth == 0 ? "" : path + "|";
+            if (segment.indexOf('*') < 0) {
+                int i = level.indexOf(segment);
+                if (i >= 0) {
+                    writeMatches(levels, segments, depth + 1, index * level.size() + i,
+                            prefix + segment);
+                }
+                return;
+            }
+            Pattern glob = "*".equals(segment) ? null : getGlob(segment);
+            for (int i = 0; i < level.size(); i++) {
+                String name = level.name(i);
+                if (glob == null || glob.matcher(name).matches()) {
+                    writeMatches(levels, segments, depth + 1, index * level.size() + i,
+                            prefix + name);
+                }
+            }
+        }
+
+        private Pattern getGlob(String segment) {
+            Pattern glob = globs.get(segment);
+            if (glob == null) {
+                StringBuilder regex = new StringBuilder();
+                for (String part : segment.split("\\*", -1)) {
+                    if (regex.length() > 0) {
+                        regex.append(".*");
+                    }
+                    if (!part.isEmpty()) {
+                        regex.append(Pattern.quote(part));
+                    }
+                }
+                glob = Pattern.compile(regex.toString());
+                globs.put(segment, glob);
+            }
+            return glob;
+        }
+
+        private void write(String metricPath, long metricId) throws IOException {
+            generator.writeStartObject();
+            generator.writeStringField("frequency", "ONE_MIN");
+            generator.writeNumberField("metricId", metricId);
+            generator.writeStringField("metricName",
+                    metricPath.substring(metricPath.indexOf('|') + 1));
+            generator.writeStringField("metricPath", metricPath);
+            generator.writeArrayFieldStart("metricValues");
+            for (long minute = startMinute; minute < endMinute; minute++) {
+                long value = value(metricId, minute);
+                generator.writeStartObject();
+                generator.writeNumberField("count", 1);
+                generator.writeNumberField("current", value);
+                generator.writeNumberField("max", value);
+                generator.writeNumberField("min", value);
+                generator.writeNumberField("occurrences", 0);
+                generator.writeNumberField("standardDeviation", 0);
+                generator.writeNumberField("startTimeInMillis", minute * MINUTE_MILLIS);
+                generator.writeNumberField("sum", value);
+                generator.writeBooleanField("useRange", true);
+                generator.writeNumberField("value", value);
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+            metricDataReturned.incrementAndGet();
+            valuesReturned.addAndGet(Math.max(0, endMinute - startMinute));
+            if (++written % 1000 == 0 && latencyPerThousandMillis > 0) {
+                generator.flush();
+                sleep(latencyPerThousandMillis);
+            }
+        }
+    }
+
+    /**
+     * Level of a branch of the metric tree, with names listed or generated from a prefix.
+     */
+    private static class Level {
+        private static final Pattern GENERATED = Pattern.compile("(.*)\\*(\\d+)");
+
+        private final String prefix;
+        private final int count;
+        private final List<String> names;
+
+        private Level(String spec) {
+            Matcher matcher = GENERATED.matcher(spec);
+            if (matcher.matches()) {
+                this.prefix = matcher.group(1);
+                this.count = Integer.parseInt(matcher.group(2));
+                this.names = null;
+            } else {
+                this.prefix = null;
+                this.names = new ArrayList<>();
+                for (String name : spec.split(",")) {
+                    names.add(name);
+                }
+                this.count = names.size();
+            }
+        }
+
+        private int size() {
+            return count;
+        }
+
+        private String name(int i) {
+            return names == null ? prefix + i : names.get(i);
+        }
+
+        private int indexOf(String name) {
+            if (names != null) {
+                return names.indexOf(name);
+            }
+            if (!name.startsWith(prefix) || name.length() == prefix.length()) {
+                return -1;
+            }
+            String suffix = name.substring(prefix.length());
+            // Node01 is not Node1.
+            if (suffix.length() > 1 && suffix.charAt(0) == '0') {
+                return -1;
+            }
+            for (int i = 0; i < suffix.length(); i++) {
+                if (!Character.isDigit(suffix.charAt(i))) {
+                    return -1;
+                }
+            }
+            long i = suffix.length() > 10 ? Long.MAX_VALUE : Long.parseLong(suffix);
+            return i < count ? (int) i : -1;
+        }
+    }
+
+    /**
+     * Serve a synthetic metric tree until killed, printing request counts every minute.
+     *
+     * Arguments are the port (default 8090), the tree (default {@link #DEFAULT_TREE}), the
+     * latency of every response in milliseconds and the rate of failed requests.
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8090;
+        FakeController controller = new FakeController(args.length > 1 ? args[1] : DEFAULT_TREE);
+        if (args.length > 2) {
+            controller.setLatencyMillis(Long.parseLong(args[2]));
+        }
+        if (args.length > 3) {
+            controller.setErrorRate(Double.parseDouble(args[3]));
+        }
+        String url = controller.start(port);
+        System.out.printf("Serving %d metrics per application at %s%n", controller.getSeries(),
+                url);
+        while (true) {
+            Thread.sleep(MINUTE_MILLIS);
+            System.out.printf(
+                    "requests: %d, browse requests: %d, errors: %d, metric data: %d, values: %d%n",
+                    controller.getRequests(), controller.getBrowseRequests(),
+                    controller.getErrors(), controller.getMetricDataReturned(),
+                    controller.getValuesReturned());
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.signalfx.appd.client.exception.RequestException;
+import com.signalfx.appd.client.exception.UnauthorizedException;
+import com.signalfx.appd.client.model.MetricData;
+import com.signalfx.appd.client.model.MetricTreeNode;
+import com.signalfx.appd.client.model.MetricValue;
+
+public class FakeControllerTest {
+
+    private static final long MINUTE = 60000;
+
+    private FakeController controller;
+    private MetricDataRequest metricDataRequest;
+
+    @Before
+    public void setUp() throws Exception {
+        controller = new FakeController("A|Tier*3|Nodes|Node*1000|CPU,Memory|Metric*1000;A|Agent");
+        metricDataRequest = new MetricDataRequest(controller.start(0), "user", "pass",
+                MetricDataRequest.DEFAULT_MAX_CONNECTIONS, new RetryPolicy(0, 0, 0, 0, 0),
+                new CircuitBreaker());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        metricDataRequest.close();
+        controller.shutdown();
+    }
+
+    @Test
+    public void testBrowse() throws Exception {
+        assertEquals(6000001, controller.getSeries());
+        assertEquals(Arrays.asList(new MetricTreeNode("A", MetricTreeNode.FOLDER)),
+                metricDataRequest.browse("App", ""));
+        assertEquals(Arrays.asList(new MetricTreeNode("Tier0", MetricTreeNode.FOLDER),
+                new MetricTreeNode("Tier1", MetricTreeNode.FOLDER),
+                new MetricTreeNode("Tier2", MetricTreeNode.FOLDER),
+                new MetricTreeNode("Agent", MetricTreeNode.LEAF)),
+                metricDataRequest.browse("App", "A"));
+        assertEquals(1000, metricDataRequest.browse("App", "A|Tier2|Nodes").size());
+        assertEquals(Arrays.asList(new MetricTreeNode("Metric999", MetricTreeNode.LEAF)),
+                metricDataRequest.browse("App", "A|Tier2|Nodes|Node999|Memory").subList(999,
+                        1000));
+        assertTrue(metricDataRequest.browse("App", "A|Tier3").isEmpty());
+        assertTrue(metricDataRequest.browse("App", "A|Tier2|Nodes|Node01").isEmpty());
+        assertEquals(6, controller.getBrowseRequests());
+    }
+
+    @Test
+    public void testQuery() throws Exception {
+        List<MetricData> metricDataList = metricDataRequest.get(new MetricDataQuery("App",
+                "A|*|Nodes|Node7|CPU|Metric5",
+                MetricDataRequest.TimeParams.betweenTime(10 * MINUTE - 1, 13 * MINUTE)));
+        assertEquals(3, metricDataList.size());
+        Set<Long> metricIds = new HashSet<>();
+        for (MetricData metricData : metricDataList) {
+            metricIds.add(metricData.id);
+            assertEquals(3, metricData.metricValues.size());
+            MetricValue metricValue = metricData.metricValues.get(0);
+            assertEquals(10 * MINUTE, metricValue.startTimeInMillis);
+            assertEquals(FakeController.value(metricData.id, 10), metricValue.value);
+        }
+        assertEquals("A|Tier0|Nodes|Node7|CPU|Metric5", metricDataList.get(0).metricPath);
+        assertEquals(3, metricIds.size());
+
+        assertEquals(1000, metricDataRequest.get(new MetricDataQuery("App",
+                "A|Tier1|Nodes|*|Memory|Metric42",
+                MetricDataRequest.TimeParams.beforeNow(1))).size());
+        assertEquals(111, metricDataRequest.get(new MetricDataQuery("App",
+                "A|Tier1|Nodes|Node1*|CPU|Metric0",
+                MetricDataRequest.TimeParams.beforeNow(1))).size());
+        assertEquals(1, metricDataRequest.get(new MetricDataQuery("App", "A|*",
+                MetricDataRequest.TimeParams.beforeNow(1))).size());
+        assertTrue(metricDataRequest.get(new MetricDataQuery("App", "A|Tier1|Nodes",
+                MetricDataRequest.TimeParams.beforeNow(1))).isEmpty());
+        assertEquals(1115, controller.getMetricDataReturned());
+    }
+
+    @Test
+    public void testTimeRange() throws Exception {
+        long now = System.currentTimeMillis();
+        List<MetricValue> metricValues = metricDataRequest.get(new MetricDataQuery("App", "A|Agent",
+                MetricDataRequest.TimeParams.beforeNow(5))).get(0).metricValues;
+        assertEquals(5, metricValues.size());
+        assertTrue(metricValues.get(4).startTimeInMillis < now);
+
+        // No values of the future.
+        assertEquals(0, metricDataRequest.get(new MetricDataQuery("App", "A|Agent",
+                MetricDataRequest.TimeParams.afterTime(5, now + MINUTE))).get(0)
+                .metricValues.size());
+        assertEquals(3, metricDataRequest.get(new MetricDataQuery("App", "A|Agent",
+                MetricDataRequest.TimeParams.beforeTime(3, 100 * MINUTE + 1))).get(0)
+                .metricValues.size());
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        controller.setErrorRate(1);
+        try {
+            metricDataRequest.browse("App", "A");
+            fail("Request Exception Expected");
+        } catch (RequestException e) {
+            // Expected
+        }
+        assertEquals(1, controller.getErrors());
+
+        controller.setErrorRate(0);
+        controller.setCredentials("user", "password");
+        try {
+            metricDataRequest.browse("App", "A");
+            fail("Unauthorized Exception Expected");
+        } catch (UnauthorizedException e) {
+            // Expected
+        }
+        assertEquals(2, controller.getRequests());
+    }
+}
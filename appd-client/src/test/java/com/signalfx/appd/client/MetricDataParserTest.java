@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.signalfx.appd.client.model.Frequency;
+import com.signalfx.appd.client.model.MetricData;
+import com.signalfx.appd.client.model.MetricValue;
+
+public class MetricDataParserTest {
+
+    @Test
+    public void testParse() throws Exception {
+        List<MetricData> metricDataList =
+                parse(getClass().getResourceAsStream("/metric_response_200.json"));
+        assertEquals(1, metricDataList.size());
+
+        MetricData metricData = metricDataList.get(0);
+        assertEquals("ONE_MIN", metricData.frequency);
+        assertEquals(Frequency.ONE_MIN, metricData.getFrequency());
+        assertEquals(269912L, metricData.id);
+        assertEquals("EUM|Device|Computer|AJAX Requests per Minute", metricData.metricName);
+        assertEquals("End User Experience|Device|Computer|AJAX Requests per Minute",
+                metricData.metricPath);
+        assertEquals(4, metricData.metricValues.size());
+
+        MetricValue metricValue = metricData.metricValues.get(3);
+        assertEquals(1435686540000L, metricValue.startTimeInMillis);
+        assertEquals(470L, metricValue.value);
+        assertEquals(470L, metricValue.max);
+        assertEquals(1L, metricValue.count);
+    }
+
+    @Test
+    public void testParseUnorderedAndUnknownFields() throws Exception {
+        String json = "[{\"metricValues\":[{\"value\":3,\"extra\":{\"a\":[1,2]}," +
+                "\"startTimeInMillis\":60000}],\"unknown\":[{}],\"metricPath\":\"A|B\"," +
+                "\"metricId\":7},{\"metricPath\":\"A|C\",\"metricValues\":[]}]";
+        List<MetricData> metricDataList =
+                parse(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(2, metricDataList.size());
+
+        MetricData metricData = metricDataList.get(0);
+        assertEquals("A|B", metricData.metricPath);
+        assertEquals(7L, metricData.id);
+        assertEquals(1, metricData.metricValues.size());
+        assertEquals(3L, metricData.metricValues.get(0).value);
+        assertEquals(60000L, metricData.metricValues.get(0).startTimeInMillis);
+
+        assertEquals("A|C", metricDataList.get(1).metricPath);
+        assertEquals(0, metricDataList.get(1).metricValues.size());
+    }
+
+    @Test
+    public void testParseNotArray() throws Exception {
+        try {
+            parse(new ByteArrayInputStream("{}".getBytes(StandardCharsets.UTF_8)));
+            fail("IOException expected");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    private List<MetricData> parse(InputStream in) throws IOException {
+        final List<MetricData> metricDataList = new ArrayList<>();
+        MetricDataParser.parse(in, new MetricDataHandler() {
+            @Override
+            public void handle(MetricData metricData) {
+                metricDataList.add(metricData);
+            }
+        });
+        return metricDataList;
+    }
+}
@@ -4,10 +4,20 @@
 package com.signalfx.appd.client;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -22,9 +32,14 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.signalfx.appd.client.exception.CircuitOpenException;
 import com.signalfx.appd.client.exception.RequestException;
+import com.signalfx.appd.client.exception.ResponseTooLargeException;
 import com.signalfx.appd.client.exception.UnauthorizedException;
 import com.signalfx.appd.client.model.MetricData;
+import com.signalfx.appd.client.model.MetricTreeNode;
 import com.signalfx.appd.client.model.MetricValue;
 
 public class MetricDataRequestTest {
@@ -52,7 +67,7 @@ public class MetricDataRequestTest {
     @Test
     public void testGetMetric() throws Exception {
         MetricDataRequest metricDataRequest = getMetricDataRequest();
-        List<MetricData> metricDataList = metricDataRequest.get();
+        List<MetricData> metricDataList = metricDataRequest.get(getQuery());
         assertEquals(1, metricDataList.size());
 
         MetricData metricData = metricDataList.get(0);
@@ -70,7 +85,7 @@ public class MetricDataRequestTest {
         appDTestHandler.setStatus(HttpStatus.UNAUTHORIZED_401);
         MetricDataRequest metricDataRequest = getMetricDataRequest();
         try {
-            metricDataRequest.get();
+            metricDataRequest.get(getQuery());
             fail("Unauthorized Exception Expected");
         } catch (UnauthorizedException e) {
             // Expected
@@ -82,7 +97,7 @@ public class MetricDataRequestTest {
         appDTestHandler.setStatus(HttpStatus.SERVICE_UNAVAILABLE_503);
         MetricDataRequest metricDataRequest = getMetricDataRequest();
         try {
-            metricDataRequest.get();
+            metricDataRequest.get(getQuery());
             fail("Request Exception Expected");
         } catch (RequestException e) {
             // Expected
@@ -94,21 +109,302 @@ public class MetricDataRequestTest {
         MetricDataRequest metricDataRequest = getMetricDataRequest();
         server.stop();
         try {
-            metricDataRequest.get();
+            metricDataRequest.get(getQuery());
             fail("Request Exception Expected");
         } catch (RequestException e) {
             //Expected
         }
     }
 
+    @Test
+    public void testGetMetricAsync() throws Exception {
+        appDTestHandler.setDelayMillis(200);
+        final int port = server.getConnectors()[0].getLocalPort();
+        try (MetricDataRequest metricDataRequest =
+                     new MetricDataRequest("http://localhost:" + port, "user", "pass", 3)) {
+            List<ListenableFuture<List<MetricData>>> futures = new ArrayList<>();
+            for (int i = 0; i < 9; i++) {
+                futures.add(metricDataRequest.getAsync(new MetricDataQuery("Any", "Path " + i,
+                        MetricDataRequest.TimeParams.beforeNow(2))));
+            }
+            for (List<MetricData> metricDataList : Futures.allAsList(futures).get()) {
+                assertEquals(1, metricDataList.size());
+            }
+        }
+        assertEquals(3, appDTestHandler.getMaxInFlight());
+        assertEquals(9, appDTestHandler.getMetricPaths().size());
+        assertTrue(appDTestHandler.getMetricPaths().contains("Path 8"));
+    }
+
+    @Test
+    public void testAdaptiveLimit() throws Exception {
+        appDTestHandler.setDelayMillis(20);
+        final int port = server.getConnectors()[0].getLocalPort();
+        try (MetricDataRequest metricDataRequest =
+                     new MetricDataRequest("http://localhost:" + port, "user", "pass", 1, 8)) {
+            AdaptiveLimiter limiter = metricDataRequest.getLimiter();
+            assertEquals(1, limiter.getLimit());
+
+            // Controller keeping up, so the limit grows.
+            getAll(metricDataRequest, 60);
+            int grown = limiter.getLimit();
+            assertTrue(grown > 2);
+            assertTrue(appDTestHandler.getMaxInFlight() > 2);
+
+            // Controller slowing down with every request in flight, so the limit backs off.
+            appDTestHandler.setDelayPerInFlightMillis(40);
+            getAll(metricDataRequest, 60);
+            assertTrue(limiter.getLimit() < grown);
+            assertEquals(0, limiter.getInFlight());
+        }
+        assertEquals(60, appDTestHandler.getMetricPaths().size());
+    }
+
+    @Test
+    public void testGetMetricAsyncFailure() throws Exception {
+        appDTestHandler.setStatus(HttpStatus.UNAUTHORIZED_401);
+        try {
+            getMetricDataRequest().getAsync(getQuery()).get();
+            fail("Unauthorized Exception Expected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof UnauthorizedException);
+        }
+    }
+
+    @Test
+    public void testRetry() throws Exception {
+        appDTestHandler.setStatus(HttpStatus.SERVICE_UNAVAILABLE_503);
+        appDTestHandler.setFailures(2);
+        MetricDataRequest metricDataRequest =
+                getMetricDataRequest(new RetryPolicy(2, 10, 1000, 0.1, 10), new CircuitBreaker());
+        assertEquals(1, metricDataRequest.get(getQuery()).size());
+        assertEquals(3, appDTestHandler.getRequests());
+        assertEquals(2, metricDataRequest.getRetryPolicy().getRetries());
+        assertEquals(CircuitBreaker.State.CLOSED, metricDataRequest.getCircuitBreaker().getState());
+    }
+
+    @Test
+    public void testRetryAfter() throws Exception {
+        appDTestHandler.setStatus(HttpStatus.SERVICE_UNAVAILABLE_503);
+        appDTestHandler.setFailures(1);
+        appDTestHandler.setRetryAfter("1");
+        MetricDataRequest metricDataRequest =
+                getMetricDataRequest(new RetryPolicy(2, 10, 2000, 0.1, 10), new CircuitBreaker());
+        long start = System.currentTimeMillis();
+        assertEquals(1, metricDataRequest.get(getQuery()).size());
+        assertTrue(System.currentTimeMillis() - start >= 1000);
+
+        // Waiting longer than the maximum backoff is not worth it.
+        appDTestHandler.setFailures(1);
+        appDTestHandler.setRetryAfter("120");
+        try {
+            metricDataRequest.get(getQuery());
+            fail("Request Exception Expected");
+        } catch (RequestException e) {
+            // Expected
+        }
+        assertEquals(1, metricDataRequest.getRetryPolicy().getRetries());
+    }
+
+    @Test
+    public void testRetryBudget() throws Exception {
+        appDTestHandler.setStatus(HttpStatus.SERVICE_UNAVAILABLE_503);
+        MetricDataRequest metricDataRequest =
+                getMetricDataRequest(new RetryPolicy(5, 0, 0, 0, 3), new CircuitBreaker());
+        for (int i = 0; i < 2; i++) {
+            try {
+                metricDataRequest.get(getQuery());
+                fail("Request Exception Expected");
+            } catch (RequestException e) {
+                // Expected
+            }
+        }
+        assertEquals(5, appDTestHandler.getRequests());
+        assertEquals(3, metricDataRequest.getRetryPolicy().getRetries());
+        assertEquals(2, metricDataRequest.getRetryPolicy().getBudgetExhausted());
+    }
+
+    @Test
+    public void testCircuitOpen() throws Exception {
+        appDTestHandler.setStatus(HttpStatus.SERVICE_UNAVAILABLE_503);
+        MetricDataRequest metricDataRequest =
+                getMetricDataRequest(new RetryPolicy(0, 0, 0, 0, 0), new CircuitBreaker(2, 60000));
+        for (int i = 0; i < 3; i++) {
+            try {
+                metricDataRequest.get(getQuery());
+                fail("Request Exception Expected");
+            } catch (CircuitOpenException e) {
+                assertEquals(2, i);
+            } catch (RequestException e) {
+                // Expected
+            }
+        }
+        assertEquals(2, appDTestHandler.getRequests());
+        assertEquals(CircuitBreaker.State.OPEN, metricDataRequest.getCircuitBreaker().getState());
+        assertEquals(1, metricDataRequest.getCircuitBreaker().getOpenCount());
+    }
+
+    @Test
+    public void testBrowse() throws Exception {
+        List<MetricTreeNode> nodes =
+                getMetricDataRequest().browse("Any", "Business Transaction Performance");
+        assertEquals(2, nodes.size());
+        assertEquals(new MetricTreeNode("Tier1", MetricTreeNode.FOLDER), nodes.get(0));
+        assertTrue(nodes.get(0).isFolder());
+        assertEquals(new MetricTreeNode("Calls per Minute", MetricTreeNode.LEAF), nodes.get(1));
+        assertTrue(appDTestHandler.getMetricPaths().contains("Business Transaction Performance"));
+    }
+
+    @Test
+    public void testResponseTooLarge() throws Exception {
+        appDTestHandler.setBody("[{\"metricPath\": \"A|B\"}, {\"metricPath\": \"A|C\"}]");
+        MetricDataRequest metricDataRequest = getMetricDataRequest();
+        assertEquals(2, metricDataRequest.get(getQuery()).size());
+        metricDataRequest.setMaxMetricData(1);
+        try {
+            metricDataRequest.get(getQuery());
+            fail("Response Too Large Exception Expected");
+        } catch (ResponseTooLargeException e) {
+            // Expected
+        }
+        // Not retried.
+        assertEquals(2, appDTestHandler.getRequests());
+        // The aborted response left the pool usable.
+        metricDataRequest.setMaxMetricData(0);
+        assertEquals(2, metricDataRequest.get(getQuery()).size());
+    }
+
+    @Test
+    public void testParseError() throws Exception {
+        appDTestHandler.setBody("[{\"metricPath\": ");
+        MetricDataRequest metricDataRequest = getMetricDataRequest();
+        try {
+            metricDataRequest.get(getQuery());
+            fail("Request Exception Expected");
+        } catch (RequestException e) {
+            // Expected
+        }
+        // Neither retried nor taken for overload.
+        assertEquals(1, appDTestHandler.getRequests());
+        assertEquals(1, metricDataRequest.getLimiter().getLimit());
+        assertEquals(0, metricDataRequest.getLimiter().getInFlight());
+    }
+
+    @Test
+    public void testTimeoutSplits() throws Exception {
+        appDTestHandler.setDelayMillis(500);
+        MetricDataRequest metricDataRequest =
+                getMetricDataRequest(new RetryPolicy(1, 0, 0, 0, 10), new CircuitBreaker(2, 60000));
+        metricDataRequest.setSocketTimeoutMillis(100);
+        for (int i = 0; i < 3; i++) {
+            try {
+                metricDataRequest.get(getQuery());
+                fail("Response Too Large Exception Expected");
+            } catch (ResponseTooLargeException e) {
+                // Expected
+            }
+        }
+        // Retried once, and not taken for a failing controller.
+        assertEquals(6, appDTestHandler.getRequests());
+        assertEquals(CircuitBreaker.State.CLOSED, metricDataRequest.getCircuitBreaker().getState());
+    }
+
+    @Test
+    public void testBrowseTimeoutOpensCircuit() throws Exception {
+        appDTestHandler.setDelayMillis(500);
+        MetricDataRequest metricDataRequest =
+                getMetricDataRequest(new RetryPolicy(0, 0, 0, 0, 0), new CircuitBreaker(2, 60000));
+        metricDataRequest.setSocketTimeoutMillis(100);
+        for (int i = 0; i < 3; i++) {
+            try {
+                metricDataRequest.browse("Any", "DontCare");
+                fail("Request Exception Expected");
+            } catch (CircuitOpenException e) {
+                assertEquals(2, i);
+            } catch (RequestException e) {
+                assertTrue(i < 2);
+            }
+        }
+        assertEquals(CircuitBreaker.State.OPEN, metricDataRequest.getCircuitBreaker().getState());
+    }
+
+    @Test
+    public void testTimeoutAfterMetricData() throws Exception {
+        appDTestHandler.setBody("[{\"metricPath\": \"A|B\"}, {\"metricPath\": \"A|C\"}]");
+        appDTestHandler.setBodyDelayMillis(500);
+        MetricDataRequest metricDataRequest =
+                getMetricDataRequest(new RetryPolicy(1, 0, 0, 0, 10), new CircuitBreaker(1, 60000));
+        metricDataRequest.setSocketTimeoutMillis(100);
+        final List<MetricData> handled = new ArrayList<>();
+        try {
+            metricDataRequest.get(getQuery(), new MetricDataHandler() {
+                @Override
+                public void handle(MetricData metricData) {
+                    handled.add(metricData);
+                }
+            });
+            fail("Request Exception Expected");
+        } catch (ResponseTooLargeException e) {
+            fail("Timeouts after metric data are not too large responses");
+        } catch (RequestException e) {
+            // Expected
+        }
+        // Neither retried nor split, the controller is taken for failing.
+        assertEquals(1, handled.size());
+        assertEquals(1, appDTestHandler.getRequests());
+        assertEquals(CircuitBreaker.State.OPEN, metricDataRequest.getCircuitBreaker().getState());
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        StringBuilder body = new StringBuilder("[");
+        for (int i = 0; i < 100; i++) {
+            body.append(i == 0 ? "" : ",").append("{\"metricPath\": \"A|B").append(i)
+                    .append("\", \"metricValues\": [{\"startTimeInMillis\": 1435686360000, ")
+                    .append("\"value\": 57}]}");
+        }
+        appDTestHandler.setBody(body.append("]").toString());
+        appDTestHandler.setGzip(true);
+        MetricDataRequest metricDataRequest = getMetricDataRequest();
+        List<MetricData> metricDataList = metricDataRequest.get(getQuery());
+        assertEquals(100, metricDataList.size());
+        assertEquals("A|B99", metricDataList.get(99).metricPath);
+        assertEquals(57L, metricDataList.get(99).metricValues.get(0).value);
+        long received = metricDataRequest.getBytesReceived();
+        long decoded = metricDataRequest.getBytesDecoded();
+        assertEquals(body.length(), decoded);
+        assertTrue(received < decoded / 4);
+
+        // Not asked for.
+        metricDataRequest.setCompression(false);
+        assertEquals(100, metricDataRequest.get(getQuery()).size());
+        assertEquals(body.length(), metricDataRequest.getBytesReceived() - received);
+        assertEquals(body.length(), metricDataRequest.getBytesDecoded() - decoded);
+    }
+
+    private MetricDataRequest getMetricDataRequest(RetryPolicy retryPolicy,
+                                                   CircuitBreaker circuitBreaker) {
+        final int port = server.getConnectors()[0].getLocalPort();
+        return new MetricDataRequest("http://localhost:" + port, "user", "pass",
+                MetricDataRequest.DEFAULT_MAX_CONNECTIONS, retryPolicy, circuitBreaker);
+    }
+
+    private static void getAll(MetricDataRequest metricDataRequest, int count) throws Exception {
+        List<ListenableFuture<List<MetricData>>> futures = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            futures.add(metricDataRequest.getAsync(new MetricDataQuery("Any", "Path " + i,
+                    MetricDataRequest.TimeParams.beforeNow(2))));
+        }
+        Futures.allAsList(futures).get();
+    }
+
     private MetricDataRequest getMetricDataRequest() {
         final int port = server.getConnectors()[0].getLocalPort();
-        MetricDataRequest metricDataRequest = new MetricDataRequest("http://localhost:" + port,
-                "user", "pass");
-        metricDataRequest.setAppName("Any");
-        metricDataRequest.setMetricPath("DontCare");
-        metricDataRequest.setTimeParams(MetricDataRequest.TimeParams.beforeNow(2));
-        return metricDataRequest;
+        return new MetricDataRequest("http://localhost:" + port, "user", "pass");
+    }
+
+    private MetricDataQuery getQuery() {
+        return new MetricDataQuery("Any", "DontCare", MetricDataRequest.TimeParams.beforeNow(2));
     }
 
     @Test
@@ -126,20 +422,120 @@ public class MetricDataRequestTest {
     private class AppDTestHandler extends AbstractHandler {
 
         private int status = HttpStatus.OK_200;
+        private long delayMillis = 0;
+        private long delayPerInFlightMillis = 0;
+        private long bodyDelayMillis = 0;
+        private String retryAfter;
+        private String body;
+        private boolean gzip;
+        private final AtomicInteger failures = new AtomicInteger(Integer.MAX_VALUE);
+        private final AtomicInteger requests = new AtomicInteger();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger maxInFlight = new AtomicInteger();
+        private final Set<String> metricPaths =
+                Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
         public void setStatus(int status) {
             this.status = status;
         }
 
+        public void setDelayMillis(long delayMillis) {
+            this.delayMillis = delayMillis;
+        }
+
+        public void setDelayPerInFlightMillis(long delayPerInFlightMillis) {
+            this.delayPerInFlightMillis = delayPerInFlightMillis;
+        }
+
+        /**
+         * Stall responses after their first metric data.
+         */
+        public void setBodyDelayMillis(long bodyDelayMillis) {
+            this.bodyDelayMillis = bodyDelayMillis;
+        }
+
+        public void setBody(String body) {
+            this.body = body;
+        }
+
+        /**
+         * Encode responses with gzip when asked for.
+         */
+        public void setGzip(boolean gzip) {
+            this.gzip = gzip;
+        }
+
+        public void setRetryAfter(String retryAfter) {
+            this.retryAfter = retryAfter;
+        }
+
+        /**
+         * Answer only the given number of requests with the status, then with 200.
+         */
+        public void setFailures(int failures) {
+            this.failures.set(failures);
+        }
+
+        public int getRequests() {
+            return requests.get();
+        }
+
+        public int getMaxInFlight() {
+            return maxInFlight.get();
+        }
+
+        public Set<String> getMetricPaths() {
+            return metricPaths;
+        }
+
         public void handle(String target, Request baseRequest, HttpServletRequest request,
                            HttpServletResponse response)
                 throws IOException, ServletException {
-            String responseString =
+            requests.incrementAndGet();
+            int status = failures.getAndDecrement() > 0 ? this.status : HttpStatus.OK_200;
+            int current = inFlight.incrementAndGet();
+            while (true) {
+                int max = maxInFlight.get();
+                if (current <= max || maxInFlight.compareAndSet(max, current)) {
+                    break;
+                }
+            }
+            metricPaths.add(request.getParameter("metric-path"));
+            try {
+                Thread.sleep(delayMillis + delayPerInFlightMillis * current);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            inFlight.decrementAndGet();
+            String resource = target.endsWith("/metrics") ? "browse" : "response";
+            String responseString = body != null && status == HttpStatus.OK_200 ? body :
                     IOUtils.toString(
                             getClass().getResourceAsStream(
-                                    String.format("/metric_response_%d.json", status)));
+                                    String.format("/metric_%s_%d.json", resource, status)));
             response.setStatus(status);
-            response.getWriter().write(responseString);
+            if (retryAfter != null && status != HttpStatus.OK_200) {
+                response.setHeader("Retry-After", retryAfter);
+            }
+            String acceptEncoding = request.getHeader("Accept-Encoding");
+            if (gzip && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                response.setHeader("Content-Encoding", "gzip");
+                try (OutputStream out = new GZIPOutputStream(response.getOutputStream())) {
+                    out.write(responseString.getBytes(StandardCharsets.UTF_8));
+                }
+            } else if (bodyDelayMillis > 0) {
+                int split = responseString.indexOf("},") + 2;
+                OutputStream out = response.getOutputStream();
+                out.write(responseString.substring(0, split).getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                try {
+                    Thread.sleep(bodyDelayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                out.write(responseString.substring(split).getBytes(StandardCharsets.UTF_8));
+            } else {
+                response.getWriter().write(responseString);
+            }
             baseRequest.setHandled(true);
         }
     }
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.signalfx.appd.client.exception.RequestException;
+import com.signalfx.appd.client.exception.ResponseTooLargeException;
+import com.signalfx.appd.client.model.MetricData;
+import com.signalfx.appd.client.model.MetricTreeNode;
+import com.signalfx.appd.client.model.MetricValue;
+
+public class ReplayMetricDataRequestTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeController controller;
+    private MetricDataRequest metricDataRequest;
+    private ResponseRecorder recorder;
+
+    @Before
+    public void setUp() throws Exception {
+        controller = new FakeController("A|Tier*3|Metric*2");
+        metricDataRequest = new MetricDataRequest(controller.start(0), "user", "pass");
+        recorder = new ResponseRecorder(folder.getRoot().toPath());
+        metricDataRequest.setRecorder(recorder);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        metricDataRequest.close();
+        controller.shutdown();
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        MetricDataQuery all = new MetricDataQuery("App", "A|*|*",
+                MetricDataRequest.TimeParams.beforeNow(3));
+        MetricDataQuery one = new MetricDataQuery("App", "A|Tier1|Metric0",
+                MetricDataRequest.TimeParams.beforeNow(3));
+        List<MetricData> allRecorded = metricDataRequest.get(all);
+        List<MetricData> oneRecorded = metricDataRequest.get(one);
+        List<MetricTreeNode> nodesRecorded = metricDataRequest.browse("App", "A");
+        Thread.sleep(300);
+        List<MetricData> oneRecordedAgain = metricDataRequest.get(new MetricDataQuery("App",
+                "A|Tier1|Metric0", MetricDataRequest.TimeParams.beforeNow(1)));
+
+        // Not recorded.
+        metricDataRequest.setMaxMetricData(1);
+        try {
+            metricDataRequest.get(all);
+            fail("Response Too Large Exception Expected");
+        } catch (ResponseTooLargeException e) {
+            // Expected
+        }
+        assertEquals(4, recorder.getRecorded());
+        assertEquals(4, folder.getRoot().list().length);
+
+        try (ReplayMetricDataRequest replay =
+                     new ReplayMetricDataRequest(folder.getRoot().toPath(), 0, 1)) {
+            assertEquals(4, replay.getRemaining());
+            // Matched by application and metric path, whatever the time parameters.
+            assertMetricData(oneRecorded, replay.get(new MetricDataQuery("App",
+                    "A|Tier1|Metric0", MetricDataRequest.TimeParams.beforeNow(60))));
+            assertMetricData(oneRecordedAgain, replay.get(one));
+            assertEquals(nodesRecorded, replay.browse("App", "A"));
+            assertMetricData(allRecorded, replay.getAsync(all).get());
+            try {
+                replay.get(one);
+                fail("Request Exception Expected");
+            } catch (RequestException e) {
+                // Expected
+            }
+            assertEquals(0, replay.getRemaining());
+            assertEquals(4, replay.getReplayed());
+        }
+
+        try (ReplayMetricDataRequest replay =
+                     new ReplayMetricDataRequest(folder.getRoot().toPath(), 1, 1)) {
+            long start = System.currentTimeMillis();
+            replay.get(all);
+            replay.get(one);
+            replay.browse("App", "A");
+            assertTrue(System.currentTimeMillis() - start < 300);
+            // Served at the pace it was received.
+            replay.get(one);
+            assertTrue(System.currentTimeMillis() - start >= 300);
+        }
+    }
+
+    private static void assertMetricData(List<MetricData> expected, List<MetricData> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).metricPath, actual.get(i).metricPath);
+            List<MetricValue> expectedValues = expected.get(i).metricValues;
+            List<MetricValue> actualValues = actual.get(i).metricValues;
+            assertEquals(expectedValues.size(), actualValues.size());
+            for (int j = 0; j < expectedValues.size(); j++) {
+                assertEquals(expectedValues.get(j).startTimeInMillis,
+                        actualValues.get(j).startTimeInMillis);
+                assertEquals(expectedValues.get(j).value, actualValues.get(j).value);
+            }
+        }
+    }
+
+    @Test
+    public void testNoCaptures() throws Exception {
+        File empty = folder.newFolder();
+        try (ReplayMetricDataRequest replay = new ReplayMetricDataRequest(empty.toPath(), 0, 1)) {
+            assertEquals(0, replay.getRemaining());
+            try {
+                replay.browse("App", "A");
+                fail("Request Exception Expected");
+            } catch (RequestException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testRecordingDropped() throws Exception {
+        MetricDataQuery one = new MetricDataQuery("App", "A|Tier1|Metric0",
+                MetricDataRequest.TimeParams.beforeNow(3));
+        folder.delete();
+
+        // Requests still succeed, the responses are counted as dropped.
+        assertEquals(1, metricDataRequest.get(one).size());
+        assertEquals(1, metricDataRequest.get(one).size());
+        assertEquals(0, recorder.getRecorded());
+        assertEquals(2, recorder.getDropped());
+    }
+}
@@ -3,23 +3,45 @@
  */
 package com.signalfx.appd.process;
 
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.signalfx.appd.client.MetricDataHandler;
+import com.signalfx.appd.client.MetricDataQuery;
 import com.signalfx.appd.client.MetricDataRequest;
+import com.signalfx.appd.client.exception.CircuitOpenException;
 import com.signalfx.appd.client.exception.RequestException;
+import com.signalfx.appd.client.exception.ResponseTooLargeException;
 import com.signalfx.appd.client.exception.UnauthorizedException;
+import com.signalfx.appd.client.model.Frequency;
 import com.signalfx.appd.client.model.MetricData;
+import com.signalfx.appd.client.model.MetricValue;
+import com.signalfx.appd.process.discovery.DiscoveryService;
 import com.signalfx.appd.process.info.AppInfo;
 import com.signalfx.appd.process.info.MetricInfo;
 import com.signalfx.appd.process.model.MetricTimeSeries;
+import com.signalfx.appd.process.planner.PlannedQuery;
+import com.signalfx.appd.process.planner.QueryPlanner;
+import com.signalfx.appd.process.planner.QuerySplitter;
 import com.signalfx.appd.process.processor.Processor;
+import com.signalfx.appd.process.processor.QueryWatermarks;
+import com.signalfx.appd.process.reporter.ReportPipeline;
 import com.signalfx.appd.process.reporter.Reporter;
 import com.signalfx.appd.process.status.StatusType;
 import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers;
@@ -33,80 +55,585 @@ public class ReportAppD {
 
     protected static final Logger log = LoggerFactory.getLogger(ReportAppD.class);
 
+    /**
+     * Name of the optional binding for maximum AppDynamics queries in flight.
+     */
+    public static final String CONCURRENCY = "appd.concurrency";
+
+    /**
+     * Name of the optional binding for minutes between queries of rules without their own
+     * interval.
+     */
+    public static final String INTERVAL = "appd.interval";
+
+    /**
+     * Name of the optional binding for minutes before the watermark that are fetched again.
+     */
+    public static final String OVERLAP = "appd.overlap";
+
+    /**
+     * Name of the optional binding for maximum minutes a query looks back.
+     */
+    public static final String MAX_LOOKBACK = "appd.maxLookback";
+
+    /**
+     * Name of the optional binding for maximum data points reported at once.
+     */
+    public static final String REPORT_CHUNK_SIZE = "appd.reportChunkSize";
+
+    /**
+     * Name of the optional binding for maximum milliseconds a data point waits to be reported.
+     */
+    public static final String REPORT_CHUNK_DELAY = "appd.reportChunkDelay";
+
+    private static final long MINUTE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * Maximum metric data of a query waiting to be processed, beyond which reading its response
+     * waits.
+     */
+    private static final int BUFFER_SIZE = 1000;
+
     private final MetricDataRequest dataRequest;
     private final Processor processor;
-    private final Reporter reporter;
+    private final ReportPipeline reportPipeline;
+    private final QueryPlanner queryPlanner;
+    private final QuerySplitter querySplitter;
+    private final QueryWatermarks queryWatermarks;
 
-    private final Counter counterDataPointsReported;
     private final Counter counterMtsReported;
     private final Counter counterMtsEmpty;
+    private final Counter counterMtsExcluded;
     private final Counter counterAppDRequestFailure;
+    private final Counter counterMtsEvicted;
+    private final Counter counterAppDRequestSaved;
+    private final Counter counterAppDRequestShortCircuited;
+
+    private DiscoveryService discoveryService;
+    private int concurrency = 1;
+    private int overlap = 1;
+    private int maxLookback = 240;
+    private int interval = 1;
+    private long lastSweepMinute = Long.MIN_VALUE;
 
     @Inject
     public ReportAppD(MetricDataRequest metricDataRequest, Processor processor, Reporter reporter,
+                      QueryPlanner queryPlanner, QueryWatermarks queryWatermarks,
                       MetricRegistry metricRegistry) {
         this.dataRequest = metricDataRequest;
         this.processor = processor;
-        this.reporter = reporter;
+        this.reportPipeline = new ReportPipeline(reporter, metricRegistry);
+        this.queryPlanner = queryPlanner;
+        this.querySplitter = new QuerySplitter(metricDataRequest, metricRegistry);
+        this.queryWatermarks = queryWatermarks;
 
-        counterDataPointsReported = metricRegistry.counter(StatusType.dataPointsReported.name());
         counterMtsReported = metricRegistry.counter(StatusType.mtsReported.name());
         counterMtsEmpty = metricRegistry.counter(StatusType.mtsEmpty.name());
+        counterMtsExcluded = metricRegistry.counter(StatusType.mtsExcluded.name());
         counterAppDRequestFailure = metricRegistry.counter(StatusType.appdRequestFailure.name());
+        counterMtsEvicted = metricRegistry.counter(StatusType.mtsEvicted.name());
+        counterAppDRequestSaved = metricRegistry.counter(StatusType.appdRequestSaved.name());
+        counterAppDRequestShortCircuited =
+                metricRegistry.counter(StatusType.appdRequestShortCircuited.name());
+        metricRegistry.register(StatusType.mtsLive.name(), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return ReportAppD.this.processor.size();
+            }
+        });
+    }
+
+    /**
+     * Set the maximum number of AppDynamics queries in flight during {@link #perform}. It should
+     * be the maximum of the {@link MetricDataRequest}'s adaptive limit, so enough queries are
+     * pending for the limit to grow.
+     *
+     * @param concurrency
+     *         maximum queries in flight, 1 queries one rule at a time.
+     */
+    @Inject(optional = true)
+    public void setConcurrency(@Named(CONCURRENCY) int concurrency) {
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    /**
+     * Set the minutes between queries of rules without their own interval, so their series are
+     * kept for as many of their queries as series of rules with their own interval.
+     *
+     * @param interval
+     *         minutes between queries, at least 1.
+     */
+    @Inject(optional = true)
+    public void setInterval(@Named(INTERVAL) int interval) {
+        this.interval = Math.max(1, interval);
+        querySplitter.setInterval(this.interval);
+    }
+
+    /**
+     * Set the service discovering metric paths, so queries whose metric paths are known can be
+     * narrowed.
+     *
+     * @param discoveryService
+     *         discovery service, ignored while disabled.
+     */
+    @Inject(optional = true)
+    public void setDiscoveryService(DiscoveryService discoveryService) {
+        this.discoveryService = discoveryService;
+    }
+
+    /**
+     * Set the maximum number of data points reported to SignalFx at once.
+     *
+     * @param reportChunkSize
+     *         maximum data points per report.
+     */
+    @Inject(optional = true)
+    public void setReportChunkSize(@Named(REPORT_CHUNK_SIZE) int reportChunkSize) {
+        reportPipeline.setChunkSize(reportChunkSize);
+    }
+
+    /**
+     * Set the maximum time a data point waits for more data points before being reported.
+     *
+     * @param reportChunkDelay
+     *         maximum milliseconds to wait.
+     */
+    @Inject(optional = true)
+    public void setReportChunkDelay(@Named(REPORT_CHUNK_DELAY) int reportChunkDelay) {
+        reportPipeline.setChunkDelayMillis(reportChunkDelay);
+    }
+
+    /**
+     * Set the safety margin of minutes before a query's watermark that are fetched again to pick
+     * up data AppDynamics fills in late.
+     *
+     * @param overlap
+     *         minutes fetched again.
+     */
+    @Inject(optional = true)
+    public void setOverlap(@Named(OVERLAP) int overlap) {
+        this.overlap = Math.max(0, overlap);
+    }
+
+    /**
+     * Set the maximum minutes a query looks back when its watermark is old.
+     *
+     * @param maxLookback
+     *         maximum minutes to look back.
+     */
+    @Inject(optional = true)
+    public void setMaxLookback(@Named(MAX_LOOKBACK) int maxLookback) {
+        this.maxLookback = Math.max(1, maxLookback);
     }
 
     /**
      * Perform reading and reporting of AppDynamics metrics to SignalFx
      *
+     * Rules are turned into queries by the {@link QueryPlanner}, and queries are issued
+     * round-robin across apps so that an app with many rules cannot starve the others, with at
+     * most {@code concurrency} queries in flight. Results are processed in that same order on
+     * the calling thread, so data points and counters do not depend on which query finishes
+     * first. Each {@link MetricData} is processed as soon as it is decoded, while the rest of its
+     * response is still being read, and at most {@link #BUFFER_SIZE} of them wait per query in
+     * flight, so memory does not grow with the size of responses. Data points are reported
+     * through a {@link ReportPipeline} while fetching goes on, and perform returns once all of
+     * them have been reported.
+     *
+     * A query that already received data only fetches from its watermark (minus the overlap
+     * margin) to now. Other queries use the given time parameters.
+     *
+     * Queries whose data AppDynamics returns rolled up into buckets coarser than a minute are
+     * skipped until a new bucket is complete, and then fetch exactly from that bucket.
+     *
+     * Queries whose response is too large, or that time out before returning any metric data,
+     * are split into narrower queries by the {@link QuerySplitter}, which are fetched in the same
+     * cycle and replace the query in later cycles. When the {@link DiscoveryService} knows every
+     * metric path a query selects, it may be replaced by a query per metric path, or left out if
+     * it selects nothing.
+     *
+     * At the end of a complete cycle, series that are no longer returned are evicted from the
+     * {@link Processor}, and queries that are no longer fetched are evicted from the
+     * {@link QueryWatermarks}. Both count the minutes since the last complete cycle, so they
+     * expire after the same number of intervals of their rule however often perform is called.
+     * Splits of queries that are no longer planned are forgotten by the {@link QuerySplitter}.
+     *
      * @param timeParams
-     *         Time paracounters to query metrics from AppDynamics.
+     *         Time paracounters to query metrics from AppDynamics when there is no watermark.
      */
     public void perform(List<AppInfo> apps, MetricDataRequest.TimeParams timeParams) {
-        List<SignalFxProtocolBuffers.DataPoint> dataPoints = new LinkedList<>();
-        for (AppInfo app : apps) {
-            dataRequest.setAppName(app.name);
-            for (MetricInfo metricInfo : app.metrics) {
-                dataRequest.setTimeParams(timeParams);
-                dataRequest.setMetricPath(metricInfo.metricPathQuery);
-
-                List<MetricData> metricDataList;
-                try {
-                    metricDataList = dataRequest.get();
-                } catch (RequestException e) {
-                    // too bad
-                    log.error("Metric query failure for \"{}\"", metricInfo.metricPathQuery);
-                    counterAppDRequestFailure.inc();
+        long now = currentTimeMillis();
+        reportPipeline.start();
+        try {
+            if (fetch(apps, timeParams, now)) {
+                sweep(now);
+            }
+        } finally {
+            try {
+                reportPipeline.finish();
+            } catch (InterruptedException e) {
+                log.error("Reporting got interrupted");
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Fetch and process all planned queries.
+     *
+     * @return false when the cycle was aborted.
+     */
+    private boolean fetch(List<AppInfo> apps, MetricDataRequest.TimeParams timeParams,
+                          long now) {
+        Deque<PlannedQuery> plannedQueries = new ArrayDeque<>();
+        for (PlannedQuery plannedQuery : getPlannedQueries(apps)) {
+            for (PlannedQuery expanded : querySplitter.expand(plannedQuery, now)) {
+                if (discoveryService == null) {
+                    plannedQueries.add(expanded);
                     continue;
-                } catch (UnauthorizedException e) {
-                    log.error("AppDynamics authentication failed");
-                    return;
                 }
-                if (metricDataList != null && metricDataList.size() > 0) {
-                    for (MetricData metricData : metricDataList) {
-                        MetricTimeSeries mts =
-                                metricInfo.getMetricTimeSeries(metricData.metricPath);
-                        List<SignalFxProtocolBuffers.DataPoint> mtsDataPoints = processor
-                                .process(mts, metricData.metricValues);
-                        dataPoints.addAll(mtsDataPoints);
-                        if (!mtsDataPoints.isEmpty()) {
-                            counterMtsReported.inc();
-                        } else {
-                            counterMtsEmpty.inc();
-                        }
+                List<PlannedQuery> narrowed = discoveryService.narrow(expanded);
+                if (narrowed.isEmpty()) {
+                    // Known to select nothing.
+                    counterAppDRequestSaved.inc();
+                }
+                plannedQueries.addAll(narrowed);
+            }
+        }
+        Deque<PendingQuery> pendingQueries = new ArrayDeque<>(concurrency);
+        while (!plannedQueries.isEmpty() || !pendingQueries.isEmpty()) {
+            if (plannedQueries.isEmpty() || pendingQueries.size() >= concurrency) {
+                // Completing a query may split it into more planned queries.
+                if (!complete(pendingQueries.poll(), plannedQueries, now)) {
+                    cancel(pendingQueries);
+                    return false;
+                }
+                continue;
+            }
+            PlannedQuery plannedQuery = plannedQueries.poll();
+            touch(plannedQuery);
+            if (!isBucketComplete(plannedQuery, now)) {
+                counterAppDRequestSaved.inc();
+                continue;
+            }
+            final MetricDataBuffer buffer = new MetricDataBuffer();
+            ListenableFuture<Void> future = dataRequest.getAsync(
+                    new MetricDataQuery(plannedQuery.appName, plannedQuery.metricPath,
+                            getTimeParams(plannedQuery, timeParams, now)), buffer);
+            future.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    buffer.finish();
+                }
+            }, MoreExecutors.directExecutor());
+            pendingQueries.add(new PendingQuery(plannedQuery, future, buffer));
+        }
+        return true;
+    }
+
+    /**
+     * Evict expired series, queries and splits, ending a processing cycle for every minute since
+     * the last sweep.
+     */
+    private void sweep(long now) {
+        long minute = now / MINUTE_MILLIS;
+        long minutes = lastSweepMinute == Long.MIN_VALUE ? 1 : minute - lastSweepMinute;
+        lastSweepMinute = minute;
+        int endedCycles = (int) Math.min(Integer.MAX_VALUE, Math.max(1, minutes));
+        counterMtsEvicted.inc(processor.sweep(endedCycles));
+        queryWatermarks.sweep(endedCycles);
+        querySplitter.sweep(now);
+    }
+
+    /**
+     * Keep the watermark of a query for as many intervals as the series of its rules.
+     */
+    private void touch(PlannedQuery plannedQuery) {
+        int queryInterval = 1;
+        for (MetricInfo metricInfo : plannedQuery.metricInfos) {
+            queryInterval = Math.max(queryInterval,
+                    metricInfo.interval > 0 ? metricInfo.interval : interval);
+        }
+        queryWatermarks.touch(QueryWatermarks.key(plannedQuery.appName, plannedQuery.metricPath),
+                queryInterval);
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Whether a bucket after the query's watermark is complete, always true for queries without
+     * a watermark or with buckets of a minute.
+     */
+    private boolean isBucketComplete(PlannedQuery plannedQuery, long now) {
+        long key = QueryWatermarks.key(plannedQuery.appName, plannedQuery.metricPath);
+        Long watermark = queryWatermarks.get(key);
+        long bucketMillis = queryWatermarks.getBucketMillis(key);
+        if (watermark == null || bucketMillis <= MINUTE_MILLIS) {
+            return true;
+        }
+        return now >= watermark + 2 * bucketMillis;
+    }
+
+    /**
+     * Time parameters fetching only data newer than the query's watermark.
+     */
+    private MetricDataRequest.TimeParams getTimeParams(PlannedQuery plannedQuery,
+                                                       MetricDataRequest.TimeParams timeParams,
+                                                       long now) {
+        long key = QueryWatermarks.key(plannedQuery.appName, plannedQuery.metricPath);
+        Long watermark = queryWatermarks.get(key);
+        if (watermark == null) {
+            return timeParams;
+        }
+        long bucketMillis = queryWatermarks.getBucketMillis(key);
+        long startTime;
+        if (bucketMillis > MINUTE_MILLIS) {
+            // Coarse data is final once its bucket is complete, start at the next bucket.
+            startTime = watermark + bucketMillis;
+        } else {
+            startTime = watermark + MINUTE_MILLIS - overlap * MINUTE_MILLIS;
+        }
+        startTime = Math.max(startTime, now - maxLookback * MINUTE_MILLIS);
+        startTime = Math.min(startTime, now - MINUTE_MILLIS);
+        return MetricDataRequest.TimeParams.betweenTime(startTime, now);
+    }
+
+    /**
+     * Plan queries of all apps and interleave them round-robin.
+     */
+    private List<PlannedQuery> getPlannedQueries(List<AppInfo> apps) {
+        List<List<PlannedQuery>> appQueries = new ArrayList<>(apps.size());
+        int maxQueries = 0;
+        for (AppInfo app : apps) {
+            List<PlannedQuery> plannedQueries = queryPlanner.plan(app);
+            appQueries.add(plannedQueries);
+            maxQueries = Math.max(maxQueries, plannedQueries.size());
+        }
+        List<PlannedQuery> plannedQueries = new ArrayList<>();
+        for (int i = 0; i < maxQueries; i++) {
+            for (List<PlannedQuery> queries : appQueries) {
+                if (i < queries.size()) {
+                    plannedQueries.add(queries.get(i));
+                }
+            }
+        }
+        return plannedQueries;
+    }
+
+    /**
+     * Process the metric data of the query as it arrives, then add its narrower queries to the
+     * planned queries if its response was too large.
+     *
+     * @return false when the cycle should be aborted.
+     */
+    private boolean complete(PendingQuery pendingQuery, Deque<PlannedQuery> plannedQueries,
+                             long now) {
+        PlannedQuery plannedQuery = pendingQuery.plannedQuery;
+        long key = QueryWatermarks.key(plannedQuery.appName, plannedQuery.metricPath);
+        boolean coalesced = plannedQuery.isCoalesced();
+        List<MetricInfo> metricInfos = plannedQuery.metricInfos;
+        long[] ruleKeys = new long[metricInfos.size()];
+        for (int i = 0; i < ruleKeys.length; i++) {
+            ruleKeys[i] = Processor.ruleKey(plannedQuery.appName, metricInfos.get(i));
+        }
+        boolean[] found = new boolean[metricInfos.size()];
+        boolean received = false;
+        long bucketMillis = Long.MAX_VALUE;
+        Throwable failure = null;
+        try {
+            MetricData metricData;
+            while ((metricData = pendingQuery.buffer.take()) != null) {
+                received = true;
+                for (MetricValue metricValue : metricData.metricValues) {
+                    queryWatermarks.update(key, metricValue.startTimeInMillis);
+                }
+                if (!metricData.metricValues.isEmpty()) {
+                    // Finest frequency of the query decides when it has new data.
+                    Frequency frequency = metricData.getFrequency();
+                    bucketMillis = Math.min(bucketMillis,
+                            frequency == null ? MINUTE_MILLIS : frequency.toMillis());
+                }
+                for (int i = 0; i < ruleKeys.length; i++) {
+                    MetricInfo metricInfo = metricInfos.get(i);
+                    if (coalesced && !metricInfo.matches(metricData.metricPath)) {
+                        continue;
                     }
-                } else {
-                    // no metrics found, something is wrong with selection
-                    log.warn("No metric found for query \"{}\"", metricInfo.metricPathQuery);
+                    found[i] = true;
+                    if (metricInfo.isExcluded(metricData.metricPath)) {
+                        counterMtsExcluded.inc();
+                        continue;
+                    }
+                    process(ruleKeys[i], metricInfo, metricData);
                 }
             }
+            pendingQuery.future.get();
+        } catch (InterruptedException e) {
+            log.error("Metric query got interrupted");
+            Thread.currentThread().interrupt();
+            pendingQuery.future.cancel(true);
+            pendingQuery.buffer.cancel();
+            return false;
+        } catch (ExecutionException e) {
+            failure = e.getCause();
+        }
+        if (bucketMillis != Long.MAX_VALUE) {
+            queryWatermarks.setBucketMillis(key, bucketMillis);
         }
-        if (!dataPoints.isEmpty()) {
+        if (received || failure == null) {
+            // A new watermark is only seen in this cycle.
+            touch(plannedQuery);
+        }
+        if (failure instanceof UnauthorizedException) {
+            log.error("AppDynamics authentication failed");
+            return false;
+        }
+        if (failure instanceof CircuitOpenException) {
+            log.debug("Metric query skipped for \"{}\"", plannedQuery.metricPath);
+            counterAppDRequestShortCircuited.inc();
+            return true;
+        }
+        if (failure instanceof ResponseTooLargeException) {
+            // Metric data already processed are deduplicated when the narrower queries fetch
+            // them again.
+            return split(plannedQuery, plannedQueries, now);
+        }
+        if (failure != null) {
+            // too bad
+            log.error("Metric query failure for \"{}\"", plannedQuery.metricPath);
+            counterAppDRequestFailure.inc();
+            return true;
+        }
+        for (int i = 0; i < found.length; i++) {
+            if (!found[i]) {
+                // no metrics found, something is wrong with selection
+                log.warn("No metric found for query \"{}\"", metricInfos.get(i).metricPathQuery);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Split a query whose response was too large and plan its narrower queries.
+     *
+     * @return false when the cycle should be aborted.
+     */
+    private boolean split(PlannedQuery plannedQuery, Deque<PlannedQuery> plannedQueries,
+                          long now) {
+        List<PlannedQuery> subQueries;
+        try {
+            subQueries = querySplitter.split(plannedQuery, now);
+        } catch (UnauthorizedException e) {
+            log.error("AppDynamics authentication failed");
+            return false;
+        } catch (RequestException e) {
+            log.error("Metric browse failure for \"{}\"", plannedQuery.metricPath);
+            counterAppDRequestFailure.inc();
+            return true;
+        }
+        if (subQueries == null) {
+            log.error("Metric query for \"{}\" is too large and cannot be split",
+                    plannedQuery.metricPath);
+            counterAppDRequestFailure.inc();
+            return true;
+        }
+        plannedQueries.addAll(subQueries);
+        return true;
+    }
+
+    private void process(long ruleKey, MetricInfo metricInfo, MetricData metricData)
+            throws InterruptedException {
+        MetricTimeSeries mts = metricInfo.getMetricTimeSeries(metricData.metricPath);
+        List<SignalFxProtocolBuffers.DataPoint> mtsDataPoints = processor
+                .process(Processor.seriesKey(ruleKey, metricData), mts, metricData.metricValues,
+                        metricInfo.interval > 0 ? metricInfo.interval : interval);
+        reportPipeline.add(mtsDataPoints);
+        if (!mtsDataPoints.isEmpty()) {
+            counterMtsReported.inc();
+        } else {
+            counterMtsEmpty.inc();
+        }
+    }
+
+    private void cancel(Deque<PendingQuery> pendingQueries) {
+        for (PendingQuery pendingQuery : pendingQueries) {
+            pendingQuery.future.cancel(true);
+            pendingQuery.buffer.cancel();
+        }
+        pendingQueries.clear();
+    }
+
+    /**
+     * Planned query that has been sent to AppDynamics.
+     */
+    private static class PendingQuery {
+        private final PlannedQuery plannedQuery;
+        private final Future<Void> future;
+        private final MetricDataBuffer buffer;
+
+        private PendingQuery(PlannedQuery plannedQuery, Future<Void> future,
+                             MetricDataBuffer buffer) {
+            this.plannedQuery = plannedQuery;
+            this.future = future;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Metric data of a query handed over from the request executor as its response is read, to
+     * be processed on the calling thread. Reading waits while {@link #BUFFER_SIZE} of them wait.
+     */
+    private static class MetricDataBuffer implements MetricDataHandler {
+        private final Deque<MetricData> metricDataQueue = new ArrayDeque<>();
+        private boolean finished;
+        private boolean cancelled;
+
+        @Override
+        public synchronized void handle(MetricData metricData) {
             try {
-                reporter.report(dataPoints);
-                counterDataPointsReported.inc(dataPoints.size());
-            } catch (Reporter.ReportException e) {
-                log.error("There were errors reporting metric");
+                while (metricDataQueue.size() >= BUFFER_SIZE && !cancelled) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancelled = true;
+            }
+            if (cancelled) {
+                throw new CancellationException("Metric query was cancelled");
+            }
+            metricDataQueue.addLast(metricData);
+            notifyAll();
+        }
+
+        /**
+         * @return next metric data of the query, null once the query is done and all of them
+         * were taken.
+         */
+        private synchronized MetricData take() throws InterruptedException {
+            while (metricDataQueue.isEmpty() && !finished) {
+                wait();
             }
+            MetricData metricData = metricDataQueue.pollFirst();
+            notifyAll();
+            return metricData;
+        }
+
+        /**
+         * Mark the query as done, successfully or not.
+         */
+        private synchronized void finish() {
+            finished = true;
+            notifyAll();
+        }
+
+        /**
+         * Drop the metric data waiting and stop the query from handing over more.
+         */
+        private synchronized void cancel() {
+            cancelled = true;
+            finished = true;
+            metricDataQueue.clear();
+            notifyAll();
         }
     }
 }
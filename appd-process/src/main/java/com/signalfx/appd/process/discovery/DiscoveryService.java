@@ -0,0 +1,296 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.process.discovery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.signalfx.appd.client.MetricDataRequest;
+import com.signalfx.appd.client.exception.RequestException;
+import com.signalfx.appd.client.exception.UnauthorizedException;
+import com.signalfx.appd.client.model.MetricTreeNode;
+import com.signalfx.appd.process.info.AppInfo;
+import com.signalfx.appd.process.info.MetricInfo;
+import com.signalfx.appd.process.planner.PlannedQuery;
+import com.signalfx.appd.process.status.StatusType;
+
+/**
+ * DiscoveryService browses the AppDynamics metric hierarchy of each app in the background and
+ * keeps a {@link MetricTree} of it, so queries can be planned against the metric paths that
+ * actually exist.
+ *
+ * Only the folders on the way of a rule's metric path are browsed. Each pass browses at most
+ * {@link #MAX_BROWSES_PER_PASS} folders, so a large hierarchy is discovered over several passes,
+ * and a folder is browsed again once every {@code refresh} minutes. A pass starts at the rule
+ * the previous pass ran out of browses in, or the one after it if that rule took all of them,
+ * so one large rule does not keep the others from being discovered.
+ *
+ * A query whose metric paths are all known is replaced by a query per metric path when there
+ * are at most {@code maxLeafQueries} of them, which AppDynamics answers without expanding its
+ * wildcards and which go out in parallel. Metric paths the rules exclude are not queried, and a
+ * query known to select nothing else is not sent at all. The trade-off is that metric paths
+ * added to AppDynamics, like those of a new node, are only queried once their folder is browsed
+ * again, up to {@code refresh} minutes later, and their data before that is not fetched.
+ *
+ * Discovery is disabled until a refresh interval is set.
+ */
+@Singleton
+public class DiscoveryService {
+
+    protected static final Logger log = LoggerFactory.getLogger(DiscoveryService.class);
+
+    /**
+     * Name of the optional binding for minutes between refreshes of a browsed folder, 0 disables
+     * discovery.
+     */
+    public static final String REFRESH = "appd.discovery.refresh";
+
+    /**
+     * Name of the optional binding for maximum metric paths a query is replaced by.
+     */
+    public static final String MAX_LEAF_QUERIES = "appd.discovery.maxLeafQueries";
+
+    static final int MAX_BROWSES_PER_PASS = 100;
+    private static final long PASS_PERIOD_SECONDS = 60;
+
+    private final MetricDataRequest dataRequest;
+    private final ConcurrentMap<String, MetricTree> trees = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+
+    private final Counter counterDiscoveryBrowses;
+
+    private long refreshMillis;
+    private int maxLeafQueries = 10;
+    // Index of the rule across all apps the next pass starts at.
+    private int nextRule;
+
+    @Inject
+    public DiscoveryService(MetricDataRequest dataRequest, MetricRegistry metricRegistry) {
+        this.dataRequest = dataRequest;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("appd-discovery-%d")
+                .setDaemon(true)
+                .build());
+
+        counterDiscoveryBrowses = metricRegistry.counter(StatusType.discoveryBrowses.name());
+        metricRegistry.register(StatusType.discoveredMetrics.name(), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                int size = 0;
+                for (MetricTree tree : trees.values()) {
+                    size += tree.size();
+                }
+                return size;
+            }
+        });
+    }
+
+    /**
+     * Set the minutes between refreshes of a browsed folder.
+     *
+     * @param refresh
+     *         minutes between refreshes, 0 disables discovery.
+     */
+    @Inject(optional = true)
+    public void setRefresh(@Named(REFRESH) int refresh) {
+        this.refreshMillis = TimeUnit.MINUTES.toMillis(Math.max(0, refresh));
+    }
+
+    /**
+     * Set the maximum number of metric paths a query is replaced by.
+     *
+     * @param maxLeafQueries
+     *         maximum queries per metric path, 0 only leaves out queries selecting nothing.
+     */
+    @Inject(optional = true)
+    public void setMaxLeafQueries(@Named(MAX_LEAF_QUERIES) int maxLeafQueries) {
+        this.maxLeafQueries = Math.max(0, maxLeafQueries);
+    }
+
+    /**
+     * @return true if a refresh interval is set.
+     */
+    public boolean isEnabled() {
+        return refreshMillis > 0;
+    }
+
+    /**
+     * Start discovering the metric paths of the apps' rules in the background, if enabled.
+     *
+     * @param apps
+     *         apps with the rules to discover.
+     */
+    public void start(final List<AppInfo> apps) {
+        if (!isEnabled()) {
+            return;
+        }
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    discover(apps);
+                } catch (RuntimeException e) {
+                    log.error("Unexpected error discovering metrics", e);
+                }
+            }
+        }, 0, PASS_PERIOD_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop discovering.
+     */
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Browse the folders on the way of the apps' rules that were never browsed or are due for a
+     * refresh, up to {@link #MAX_BROWSES_PER_PASS} of them, starting where the previous pass
+     * stopped.
+     *
+     * @param apps
+     *         apps with the rules to discover.
+     */
+    public void discover(List<AppInfo> apps) {
+        if (!isEnabled()) {
+            return;
+        }
+        List<AppInfo> ruleApps = new ArrayList<>();
+        List<MetricInfo> rules = new ArrayList<>();
+        for (AppInfo app : apps) {
+            for (MetricInfo metricInfo : app.metrics) {
+                ruleApps.add(app);
+                rules.add(metricInfo);
+            }
+        }
+        if (rules.isEmpty()) {
+            return;
+        }
+        long now = currentTimeMillis();
+        int first = nextRule % rules.size();
+        int browses = 0;
+        for (int i = 0; i < rules.size(); i++) {
+            int rule = (first + i) % rules.size();
+            AppInfo app = ruleApps.get(rule);
+            MetricInfo metricInfo = rules.get(rule);
+            MetricTree tree = getTree(app.name);
+            List<String> stale;
+            // Browsing a folder reveals the folders below it.
+            while (!(stale = tree.getStale(metricInfo.metricPathQuery,
+                    now - refreshMillis)).isEmpty()) {
+                for (String metricPath : stale) {
+                    if (browses++ >= MAX_BROWSES_PER_PASS) {
+                        // Go on with this rule, unless it took the whole pass.
+                        nextRule = i == 0 ? rule + 1 : rule;
+                        return;
+                    }
+                    List<MetricTreeNode> children;
+                    try {
+                        children = dataRequest.browse(app.name, metricPath);
+                    } catch (RequestException | UnauthorizedException e) {
+                        log.warn("Failed to browse \"{}\" of app \"{}\"", metricPath,
+                                app.name);
+                        nextRule = rule + 1;
+                        return;
+                    }
+                    counterDiscoveryBrowses.inc();
+                    tree.update(metricPath, children, now);
+                }
+            }
+            log.debug("Rule \"{}\" of app \"{}\" selects {} metric(s)",
+                    metricInfo.metricPathQuery, app.name,
+                    tree.count(metricInfo.metricPathQuery));
+        }
+    }
+
+    /**
+     * Replace a query by a query per metric path it selects, if they are all known and there are
+     * not too many of them.
+     *
+     * @param plannedQuery
+     *         query to narrow.
+     * @return queries per metric path, empty if the query selects nothing, or the query itself.
+     */
+    public List<PlannedQuery> narrow(PlannedQuery plannedQuery) {
+        if (!isEnabled() || !plannedQuery.metricPath.contains(MetricInfo.WILDCARD)) {
+            return Collections.singletonList(plannedQuery);
+        }
+        MetricTree tree = trees.get(plannedQuery.appName);
+        List<String> metricPaths = tree == null ? null : tree.expand(plannedQuery.metricPath);
+        if (metricPaths == null) {
+            return Collections.singletonList(plannedQuery);
+        }
+        List<PlannedQuery> plannedQueries = new ArrayList<>();
+        for (String metricPath : metricPaths) {
+            if (isSelected(metricPath, plannedQuery.metricInfos)) {
+                plannedQueries.add(new PlannedQuery(plannedQuery.appName, metricPath,
+                        plannedQuery.metricInfos));
+            }
+        }
+        if (plannedQueries.size() > maxLeafQueries) {
+            return Collections.singletonList(plannedQuery);
+        }
+        return plannedQueries;
+    }
+
+    /**
+     * Whether a rule selects the metric path without excluding it.
+     */
+    private static boolean isSelected(String metricPath, List<MetricInfo> metricInfos) {
+        for (MetricInfo metricInfo : metricInfos) {
+            if (metricInfo.matches(metricPath) && !metricInfo.isExcluded(metricPath)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Estimate the number of metric paths a rule selects.
+     *
+     * @param appName
+     *         AppDynamics application name.
+     * @param metricInfo
+     *         rule to estimate.
+     * @return number of metric paths, or -1 if they are not all known yet.
+     */
+    public int estimate(String appName, MetricInfo metricInfo) {
+        MetricTree tree = trees.get(appName);
+        return tree == null ? -1 : tree.count(metricInfo.metricPathQuery);
+    }
+
+    /**
+     * @param appName
+     *         AppDynamics application name.
+     * @return tree of the app's metric hierarchy browsed so far.
+     */
+    public MetricTree getTree(String appName) {
+        MetricTree tree = trees.get(appName);
+        if (tree == null) {
+            trees.putIfAbsent(appName, new MetricTree());
+            tree = trees.get(appName);
+        }
+        return tree;
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.process.discovery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.signalfx.appd.client.model.MetricTreeNode;
+import com.signalfx.appd.process.info.MetricInfo;
+
+/**
+ * MetricTree is the part of an app's AppDynamics metric hierarchy that has been browsed, kept in
+ * memory as a tree of path elements.
+ *
+ * Each folder remembers when its children were last browsed, so a query can tell whether every
+ * metric path its wildcards select is known and which folders have to be browsed (again) to
+ * find out.
+ *
+ * The tree is updated by one thread while others read it. Children are kept sorted by name.
+ */
+public class MetricTree {
+
+    private static final long NEVER = Long.MIN_VALUE;
+
+    private final Node root = new Node(false);
+    private final AtomicInteger leafCount = new AtomicInteger();
+
+    /**
+     * Metric paths of the known leaves a query selects.
+     *
+     * @param metricPathQuery
+     *         pipe (|) separated metric path with wildcards (*).
+     * @return selected metric paths, or null if some folder on the way has not been browsed.
+     */
+    public List<String> expand(String metricPathQuery) {
+        List<String> metricPaths = new ArrayList<>();
+        if (!expand(root, metricPathQuery.split("\\|"), 0, new StringBuilder(), metricPaths)) {
+            return null;
+        }
+        return metricPaths;
+    }
+
+    /**
+     * Number of known leaves a query selects.
+     *
+     * @param metricPathQuery
+     *         pipe (|) separated metric path with wildcards (*).
+     * @return number of selected metric paths, or -1 if some folder on the way has not been
+     * browsed.
+     */
+    public int count(String metricPathQuery) {
+        List<String> metricPaths = expand(metricPathQuery);
+        return metricPaths == null ? -1 : metricPaths.size();
+    }
+
+    /**
+     * Folders on the way of a query that were never browsed, or last browsed before the given
+     * time. Folders below a folder that was never browsed are not known yet.
+     *
+     * @param metricPathQuery
+     *         pipe (|) separated metric path with wildcards (*).
+     * @param staleBeforeMillis
+     *         folders browsed before this time are stale.
+     * @return metric paths of the folders to browse, the empty path being the top level.
+     */
+    public List<String> getStale(String metricPathQuery, long staleBeforeMillis) {
+        List<String> stale = new ArrayList<>();
+        getStale(root, metricPathQuery.split("\\|"), 0, "", staleBeforeMillis, stale);
+        return stale;
+    }
+
+    /**
+     * Replace the known children of a folder with the ones just browsed. Children that are still
+     * there keep what is known below them.
+     *
+     * @param metricPath
+     *         pipe (|) separated metric path of the folder, empty for the top level.
+     * @param children
+     *         children returned by the metric browser.
+     * @param nowMillis
+     *         time of browsing.
+     */
+    public synchronized void update(String metricPath, List<MetricTreeNode> children,
+                                    long nowMillis) {
+        Node node = root;
+        if (!metricPath.isEmpty()) {
+            for (String name : metricPath.split("\\|")) {
+                Node child = node.children.get(name);
+                if (child == null) {
+                    child = new Node(false);
+                    node.children.put(name, child);
+                }
+                node = child;
+            }
+        }
+        Set<String> names = new HashSet<>();
+        for (MetricTreeNode child : children) {
+            if (child.name == null || child.name.contains("|")) {
+                continue;
+            }
+            names.add(child.name);
+            Node existing = node.children.get(child.name);
+            if (existing == null || existing.leaf == child.isFolder()) {
+                if (existing != null) {
+                    remove(existing);
+                }
+                Node added = new Node(!child.isFolder());
+                if (added.leaf) {
+                    leafCount.incrementAndGet();
+                }
+                node.children.put(child.name, added);
+            }
+        }
+        for (Map.Entry<String, Node> entry : node.children.entrySet()) {
+            if (!names.contains(entry.getKey())) {
+                remove(entry.getValue());
+                node.children.remove(entry.getKey());
+            }
+        }
+        node.browsedMillis = nowMillis;
+    }
+
+    /**
+     * @return number of known leaves.
+     */
+    public int size() {
+        return leafCount.get();
+    }
+
+    private boolean expand(Node node, String[] segments, int index, StringBuilder path,
+                           List<String> metricPaths) {
+        if (node.browsedMillis == NEVER) {
+            return false;
+        }
+        boolean last = index == segments.length - 1;
+        int length = path.length();
+        for (Map.Entry<String, Node> entry : select(node, segments[index]).entrySet()) {
+            Node child = entry.getValue();
+            // Only leaves end a metric path, and only folders have more elements below.
+            if (child.leaf != last) {
+                continue;
+            }
+            if (length > 0) {
+                path.append('|');
+            }
+            path.append(entry.getKey());
+            if (last) {
+                metricPaths.add(path.toString());
+            } else if (!expand(child, segments, index + 1, path, metricPaths)) {
+                return false;
+            }
+            path.setLength(length);
+        }
+        return true;
+    }
+
+    private void getStale(Node node, String[] segments, int index, String path,
+                          long staleBeforeMillis, List<String> stale) {
+        if (node.browsedMillis < staleBeforeMillis) {
+            stale.add(path);
+        }
+        if (node.browsedMillis == NEVER || index == segments.length - 1) {
+            return;
+        }
+        for (Map.Entry<String, Node> entry : select(node, segments[index]).entrySet()) {
+            if (!entry.getValue().leaf) {
+                getStale(entry.getValue(), segments, index + 1,
+                        path.isEmpty() ? entry.getKey() : path + '|' + entry.getKey(),
+                        staleBeforeMillis, stale);
+            }
+        }
+    }
+
+    /**
+     * Children of the node a path element selects.
+     */
+    private static Map<String, Node> select(Node node, String segment) {
+        if (MetricInfo.WILDCARD.equals(segment)) {
+            return node.children;
+        }
+        Node child = node.children.get(segment);
+        return child == null ?
+                Collections.<String, Node>emptyMap() :
+                Collections.singletonMap(segment, child);
+    }
+
+    /**
+     * Forget the leaves below a removed node.
+     */
+    private void remove(Node node) {
+        if (node.leaf) {
+            leafCount.decrementAndGet();
+        }
+        for (Node child : node.children.values()) {
+            remove(child);
+        }
+    }
+
+    /**
+     * Element of the metric hierarchy.
+     */
+    private static class Node {
+        private final boolean leaf;
+        private final Map<String, Node> children = new ConcurrentSkipListMap<>();
+        private volatile long browsedMillis = NEVER;
+
+        private Node(boolean leaf) {
+            this.leaf = leaf;
+        }
+    }
+}
@@ -3,13 +3,19 @@
  */
 package com.signalfx.appd.process.info;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.InvalidPropertiesFormatException;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.signalfx.appd.process.model.MetricTimeSeries;
 
 /**
@@ -42,10 +48,31 @@ import com.signalfx.appd.process.model.MetricTimeSeries;
  *
  * Extra dimensions could also be added to metric data with extra {@link Map}
  *
+ * Each MetricInfo may be queried at its own interval in minutes, rules without an interval use
+ * the default interval of the process.
+ *
+ * Metric paths selected by the metric path query can be left out with exclude patterns, which
+ * have the same number of elements as the query. Each element is a wildcard (*), an element
+ * with * standing for any characters, or an exact element, and a metric path is excluded when
+ * all of its elements match a pattern.
+ *
+ * e.g. MetricPath = Business Transaction Performance|Business Transactions|*|*|Calls per Minute
+ *      Exclude = *|*|*|_APPDYNAMICS_DEFAULT_TX_|*, *|*|*|*Health*|*
+ *
  * @author 9park
  */
 public class MetricInfo {
 
+    /**
+     * Metric path segment matching any single segment
+     */
+    public static final String WILDCARD = "*";
+
+    /**
+     * Maximum number of {@link MetricTimeSeries} cached per MetricInfo
+     */
+    public static final int MAX_CACHED_SERIES = 50000;
+
     /**
      * AppDynamics Metric Path used in a query
      */
@@ -56,11 +83,45 @@ public class MetricInfo {
      */
     public final Map<String, String> dimensions;
 
+    /**
+     * Minutes between queries of this MetricInfo, 0 to use the default interval
+     */
+    public final int interval;
+
+    /**
+     * Pipe (|) separated patterns of metric paths left out, as configured
+     */
+    public final List<String> exclude;
+
+    /**
+     * Pipe (|) separated mapping of AppDynamics path to SignalFx dimensions as configured
+     */
+    private final String dimensionsPathMap;
+
     /**
      * Mapping of AppDynamics path to SignalFx dimensions
      */
     private final String[] dimensionsPath;
 
+    /**
+     * Segments of AppDynamics Metric Path used in a query
+     */
+    private final String[] metricPathSegments;
+
+    /**
+     * Compiled exclude patterns
+     */
+    private final PathPattern[] excludePatterns;
+
+    /**
+     * Cache of actual metric path to its {@link MetricTimeSeries}, series not returned for an
+     * hour are dropped.
+     */
+    private final Cache<String, MetricTimeSeries> seriesCache = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_SERIES)
+            .expireAfterAccess(1, TimeUnit.HOURS)
+            .build();
+
     /**
      * @param metricPathQuery
      *         pipe (|) separated metric path used for querying against AppDynamics.
@@ -72,10 +133,52 @@ public class MetricInfo {
      * @throws InvalidPropertiesFormatException
      *         when metric path query and dimensions path map size
      */
+    public MetricInfo(String metricPathQuery, String dimensionsPathMap,
+                      Map<String, String> dimensions) throws InvalidPropertiesFormatException {
+        this(metricPathQuery, dimensionsPathMap, dimensions, null);
+    }
+
+    /**
+     * @param metricPathQuery
+     *         pipe (|) separated metric path used for querying against AppDynamics.
+     * @param dimensionsPathMap
+     *         pipe(|) separated mapping of dimension names to be mapped against corresponding
+     *         position in metric path.
+     * @param dimensions
+     *         extra dimensions to be included with the metric.
+     * @param interval
+     *         minutes between queries, null to use the default interval.
+     * @throws InvalidPropertiesFormatException
+     *         when metric path query and dimensions path map size or interval is negative
+     */
+    public MetricInfo(String metricPathQuery, String dimensionsPathMap,
+                      Map<String, String> dimensions, Integer interval)
+            throws InvalidPropertiesFormatException {
+        this(metricPathQuery, dimensionsPathMap, dimensions, interval, null);
+    }
+
+    /**
+     * @param metricPathQuery
+     *         pipe (|) separated metric path used for querying against AppDynamics.
+     * @param dimensionsPathMap
+     *         pipe(|) separated mapping of dimension names to be mapped against corresponding
+     *         position in metric path.
+     * @param dimensions
+     *         extra dimensions to be included with the metric.
+     * @param interval
+     *         minutes between queries, null to use the default interval.
+     * @param exclude
+     *         pipe (|) separated patterns of metric paths to leave out, null for none.
+     * @throws InvalidPropertiesFormatException
+     *         when metric path query and dimensions path map or an exclude pattern size,
+     *         or interval is negative
+     */
     @JsonCreator
     public MetricInfo(@JsonProperty("metric_path") String metricPathQuery,
                       @JsonProperty("dimensions_path_map") String dimensionsPathMap,
-                      @JsonProperty("dimensions") Map<String, String> dimensions)
+                      @JsonProperty("dimensions") Map<String, String> dimensions,
+                      @JsonProperty("interval") Integer interval,
+                      @JsonProperty("exclude") List<String> exclude)
             throws InvalidPropertiesFormatException {
         this.metricPathQuery = metricPathQuery;
         if (dimensions == null) {
@@ -86,37 +189,152 @@ public class MetricInfo {
         // Always add metric_source as AppDynamics.
         this.dimensions.put("metric_source", "AppDynamics");
 
+        this.dimensionsPathMap = dimensionsPathMap;
         dimensionsPath = dimensionsPathMap.split("\\|");
 
-        int metricPathLength = metricPathQuery.split("\\|").length;
-        if (metricPathLength != dimensionsPath.length + 1) {
+        metricPathSegments = metricPathQuery.split("\\|");
+        if (metricPathSegments.length != dimensionsPath.length + 1) {
             throw new InvalidPropertiesFormatException(
                     String.format("MetricPath %s has %d properties but dimensions path have %d",
-                            metricPathQuery, metricPathLength, dimensionsPath.length));
+                            metricPathQuery, metricPathSegments.length, dimensionsPath.length));
+        }
+
+        this.interval = interval == null ? 0 : interval;
+        if (this.interval < 0) {
+            throw new InvalidPropertiesFormatException(
+                    String.format("MetricPath %s has negative interval %d", metricPathQuery,
+                            this.interval));
+        }
+
+        this.exclude = exclude == null ?
+                Collections.<String>emptyList() :
+                Collections.unmodifiableList(new ArrayList<>(exclude));
+        excludePatterns = new PathPattern[this.exclude.size()];
+        for (int i = 0; i < excludePatterns.length; i++) {
+            excludePatterns[i] = new PathPattern(this.exclude.get(i));
+            if (excludePatterns[i].size() != metricPathSegments.length) {
+                throw new InvalidPropertiesFormatException(
+                        String.format("MetricPath %s has %d properties but exclude %s have %d",
+                                metricPathQuery, metricPathSegments.length,
+                                this.exclude.get(i), excludePatterns[i].size()));
+            }
+        }
+    }
+
+    /**
+     * @return pipe (|) separated mapping of dimension names as configured.
+     */
+    public String getDimensionsPathMap() {
+        return dimensionsPathMap;
+    }
+
+    /**
+     * Check whether an actual metric path returned by AppDynamics is selected by the metric path
+     * query of this MetricInfo, with wildcard (*) matching any single element.
+     *
+     * @param actualMetricPath
+     *         metric path returned by AppDynamics.
+     * @return true if the metric path query selects the actual metric path.
+     */
+    public boolean matches(String actualMetricPath) {
+        int start = 0;
+        for (int i = 0; i < metricPathSegments.length; i++) {
+            boolean last = i == metricPathSegments.length - 1;
+            int end = actualMetricPath.indexOf('|', start);
+            if (end < 0) {
+                if (!last) {
+                    return false;
+                }
+                end = actualMetricPath.length();
+            } else if (last) {
+                return false;
+            }
+            String segment = metricPathSegments[i];
+            if (!WILDCARD.equals(segment) && (segment.length() != end - start ||
+                    !actualMetricPath.regionMatches(start, segment, 0, segment.length()))) {
+                return false;
+            }
+            start = end + 1;
+        }
+        return true;
+    }
+
+    /**
+     * Check whether an actual metric path returned by AppDynamics is left out by an exclude
+     * pattern of this MetricInfo.
+     *
+     * @param actualMetricPath
+     *         metric path returned by AppDynamics.
+     * @return true if an exclude pattern matches the actual metric path.
+     */
+    public boolean isExcluded(String actualMetricPath) {
+        for (PathPattern excludePattern : excludePatterns) {
+            if (excludePattern.matches(actualMetricPath)) {
+                return true;
+            }
         }
+        return false;
     }
 
     /**
-     * Create a {@link MetricTimeSeries} for a given metric path. It will use the given metric path
+     * Check whether every metric path a query selects is left out by an exclude pattern of this
+     * MetricInfo, so the query does not need to be sent for it.
+     *
+     * @param metricPath
+     *         pipe (|) separated metric path with wildcards (*).
+     * @return true if a single exclude pattern matches every metric path the query selects.
+     */
+    public boolean isExcludedAll(String metricPath) {
+        if (excludePatterns.length == 0) {
+            return false;
+        }
+        String[] querySegments = metricPath.split("\\|");
+        for (PathPattern excludePattern : excludePatterns) {
+            if (excludePattern.matchesAll(querySegments)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the {@link MetricTimeSeries} for a given metric path. It will use the given metric path
      * as dimensions mapping and add extra dimensions as specified in the MetricInfo.
      *
+     * Metric paths are returned again every cycle, so the series are cached and the same instance
+     * is returned for the same metric path.
+     *
      * @param actualMetricPath
      *         metric path used to mapped to dimensions in metric time series.
      * @return {@link MetricTimeSeries}
      */
     public MetricTimeSeries getMetricTimeSeries(String actualMetricPath) {
+        MetricTimeSeries mts = seriesCache.getIfPresent(actualMetricPath);
+        if (mts == null) {
+            mts = createMetricTimeSeries(actualMetricPath);
+            seriesCache.put(actualMetricPath, mts);
+        }
+        return mts;
+    }
+
+    private MetricTimeSeries createMetricTimeSeries(String actualMetricPath) {
         Map<String, String> actualDimensions = new HashMap<>();
 
         actualDimensions.putAll(dimensions);
 
-        String[] path = actualMetricPath.split("\\|");
-        for (int i = 0; i < dimensionsPath.length; i++) {
-            if ("-".equals(dimensionsPath[i])) {
-                continue;
+        int start = 0;
+        for (int i = 0; i < dimensionsPath.length && start <= actualMetricPath.length(); i++) {
+            int end = actualMetricPath.indexOf('|', start);
+            if (end < 0) {
+                end = actualMetricPath.length();
+            }
+            if (!"-".equals(dimensionsPath[i])) {
+                actualDimensions.put(dimensionsPath[i], actualMetricPath.substring(start, end));
             }
-            actualDimensions.put(dimensionsPath[i], path[i]);
+            start = end + 1;
         }
-        return new MetricTimeSeries(path[path.length - 1], actualDimensions);
+        String metricName = actualMetricPath.substring(actualMetricPath.lastIndexOf('|') + 1);
+        return new MetricTimeSeries(metricName, Collections.unmodifiableMap(actualDimensions));
     }
 
     @Override
@@ -126,6 +344,8 @@ public class MetricInfo {
         result = prime * result + metricPathQuery.hashCode();
         result = prime * result + Arrays.hashCode(dimensionsPath);
         result = prime * result + dimensions.hashCode();
+        result = prime * result + interval;
+        result = prime * result + exclude.hashCode();
         return result;
     }
 
@@ -137,12 +357,16 @@ public class MetricInfo {
     public boolean equals(MetricInfo that) {
         return this.metricPathQuery.equals(that.metricPathQuery) &&
                 Arrays.equals(this.dimensionsPath, that.dimensionsPath) &&
-                this.dimensions.equals(that.dimensions);
+                this.dimensions.equals(that.dimensions) &&
+                this.interval == that.interval &&
+                this.exclude.equals(that.exclude);
     }
 
     @Override
     public String toString() {
-        return String.format("metricPathQuery:%s, dimensionsPath:%s, dimensions:%s",
-                metricPathQuery, Arrays.toString(dimensionsPath), dimensions.toString());
+        return String.format(
+                "metricPathQuery:%s, dimensionsPath:%s, dimensions:%s, interval:%d, exclude:%s",
+                metricPathQuery, Arrays.toString(dimensionsPath), dimensions.toString(),
+                interval, exclude);
     }
 }
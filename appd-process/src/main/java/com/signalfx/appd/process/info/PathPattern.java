@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.process.info;
+
+import java.util.regex.Pattern;
+
+/**
+ * PathPattern is a pipe (|) separated metric path pattern compiled for matching. Each element is
+ * matched on its own: * matches any element, an element containing * matches elements with any
+ * characters in place of each *, and any other element only matches itself.
+ *
+ * e.g. *|Business Transactions|*|*health*|*
+ */
+class PathPattern {
+
+    private final String pattern;
+
+    // Per element, both null for an element matching anything.
+    private final String[] literals;
+    private final Pattern[] globs;
+
+    PathPattern(String pattern) {
+        this.pattern = pattern;
+        String[] segments = pattern.split("\\|");
+        this.literals = new String[segments.length];
+        this.globs = new Pattern[segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+            if (MetricInfo.WILDCARD.equals(segment)) {
+                continue;
+            }
+            if (!segment.contains(MetricInfo.WILDCARD)) {
+                literals[i] = segment;
+                continue;
+            }
+            StringBuilder regex = new StringBuilder();
+            int start = 0;
+            int end;
+            while ((end = segment.indexOf('*', start)) >= 0) {
+                if (end > start) {
+                    regex.append(Pattern.quote(segment.substring(start, end)));
+                }
+                regex.append(".*");
+                start = end + 1;
+            }
+            if (start < segment.length()) {
+                regex.append(Pattern.quote(segment.substring(start)));
+            }
+            globs[i] = Pattern.compile(regex.toString(), Pattern.DOTALL);
+        }
+    }
+
+    /**
+     * @return number of elements of the pattern.
+     */
+    int size() {
+        return literals.length;
+    }
+
+    /**
+     * @param actualMetricPath
+     *         metric path returned by AppDynamics.
+     * @return true if every element of the metric path matches.
+     */
+    boolean matches(String actualMetricPath) {
+        int start = 0;
+        for (int i = 0; i < literals.length; i++) {
+            boolean last = i == literals.length - 1;
+            int end = actualMetricPath.indexOf('|', start);
+            if (end < 0) {
+                if (!last) {
+                    return false;
+                }
+                end = actualMetricPath.length();
+            } else if (last) {
+                return false;
+            }
+            String literal = literals[i];
+            if (literal != null) {
+                if (literal.length() != end - start ||
+                        !actualMetricPath.regionMatches(start, literal, 0, literal.length())) {
+                    return false;
+                }
+            } else if (globs[i] != null &&
+                    !globs[i].matcher(actualMetricPath).region(start, end).matches()) {
+                return false;
+            }
+            start = end + 1;
+        }
+        return true;
+    }
+
+    /**
+     * @param querySegments
+     *         elements of a metric path with wildcards (*).
+     * @return true if every metric path the elements select matches.
+     */
+    boolean matchesAll(String[] querySegments) {
+        if (querySegments.length != literals.length) {
+            return false;
+        }
+        for (int i = 0; i < literals.length; i++) {
+            if (literals[i] == null && globs[i] == null) {
+                continue;
+            }
+            if (MetricInfo.WILDCARD.equals(querySegments[i])) {
+                return false;
+            }
+            if (literals[i] != null ?
+                    !literals[i].equals(querySegments[i]) :
+                    !globs[i].matcher(querySegments[i]).matches()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+}
@@ -5,13 +5,36 @@ package com.signalfx.appd.process.model;
 
 import java.util.Map;
 
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers;
+
+/**
+ * MetricTimeSeries is the SignalFx metric name and dimensions of a series. It is immutable and
+ * carries a prebuilt data point template, so data points of the series only need a timestamp and
+ * a value.
+ */
 public class MetricTimeSeries {
-    public String metricName;
-    public Map<String, String> dimensions;
+    public final String metricName;
+    public final Map<String, String> dimensions;
+
+    /**
+     * Data point with the metric name and dimensions of the series, without timestamp and value.
+     */
+    public final SignalFxProtocolBuffers.DataPoint template;
 
     public MetricTimeSeries(String metricName, Map<String, String> dimensions) {
         this.metricName = metricName;
         this.dimensions = dimensions;
+
+        SignalFxProtocolBuffers.DataPoint.Builder templateBuilder =
+                SignalFxProtocolBuffers.DataPoint.newBuilder().setMetric(metricName);
+        if (dimensions != null) {
+            for (Map.Entry<String, String> entry : dimensions.entrySet()) {
+                templateBuilder.addDimensions(SignalFxProtocolBuffers.Dimension.newBuilder()
+                        .setKey(entry.getKey())
+                        .setValue(entry.getValue()));
+            }
+        }
+        this.template = templateBuilder.build();
     }
 
     @Override
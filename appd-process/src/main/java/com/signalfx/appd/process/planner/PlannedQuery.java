@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.process.planner;
+
+import java.util.List;
+
+import com.signalfx.appd.process.info.MetricInfo;
+
+/**
+ * PlannedQuery is a single AppDynamics metric path query serving one or more
+ * {@link MetricInfo} rules of the same app.
+ */
+public class PlannedQuery {
+
+    /**
+     * AppDynamics application name
+     */
+    public final String appName;
+
+    /**
+     * AppDynamics Metric Path used in the query
+     */
+    public final String metricPath;
+
+    /**
+     * Rules served by the query, in configuration order
+     */
+    public final List<MetricInfo> metricInfos;
+
+    public PlannedQuery(String appName, String metricPath, List<MetricInfo> metricInfos) {
+        this.appName = appName;
+        this.metricPath = metricPath;
+        this.metricInfos = metricInfos;
+    }
+
+    /**
+     * @return true if the query is broader than its single rule and returned metric paths have to
+     * be routed with {@link MetricInfo#matches(String)}.
+     */
+    public boolean isCoalesced() {
+        return metricInfos.size() > 1 || !metricPath.equals(metricInfos.get(0).metricPathQuery);
+    }
+
+    @Override
+    public int hashCode() {
+        int prime = 31;
+        int result = 1;
+        result = prime * result + (appName != null ? appName.hashCode() : 0);
+        result = prime * result + metricPath.hashCode();
+        result = prime * result + metricInfos.hashCode();
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object that) {
+        return that instanceof PlannedQuery && equals((PlannedQuery) that);
+    }
+
+    public boolean equals(PlannedQuery that) {
+        return (this.appName == null ? that.appName == null : this.appName.equals(that.appName)) &&
+                this.metricPath.equals(that.metricPath) &&
+                this.metricInfos.equals(that.metricInfos);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("appName:%s, metricPath:%s, metricInfos:%s", appName, metricPath,
+                metricInfos);
+    }
+}
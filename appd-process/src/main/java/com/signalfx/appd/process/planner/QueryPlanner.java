@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.process.planner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Joiner;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.signalfx.appd.process.info.AppInfo;
+import com.signalfx.appd.process.info.MetricInfo;
+
+/**
+ * QueryPlanner turns the {@link MetricInfo} rules of an app into the AppDynamics queries to
+ * perform.
+ *
+ * With coalescing enabled, rules of the same depth that only differ in their last
+ * {@code coalesceDepth} path elements are merged into one query with wildcards (*) in place of
+ * the differing elements, e.g.
+ *
+ *      Overall Application Performance|Calls per Minute
+ *      Overall Application Performance|Average Response Time (ms)
+ *
+ *      would be queried as
+ *
+ *      Overall Application Performance|*
+ *
+ * Each returned metric path is then routed back to the rules it matches so every rule keeps its
+ * own dimensions mapping, and metric paths matching none of the rules are dropped.
+ *
+ * Only rules with the same interval setting are coalesced, and the rule scheduler runs the rules
+ * of a query together, so a query is planned the same whatever other rules are due with it.
+ */
+public class QueryPlanner {
+
+    /**
+     * Name of the optional binding for number of trailing path elements that may be merged.
+     */
+    public static final String COALESCE_DEPTH = "appd.coalesceDepth";
+
+    private static final Joiner PATH_JOINER = Joiner.on('|');
+
+    private int coalesceDepth = 0;
+
+    @Inject
+    public QueryPlanner() {
+    }
+
+    /**
+     * Set the number of trailing path elements rules may differ in to be coalesced.
+     *
+     * @param coalesceDepth
+     *         number of trailing path elements, 0 disables coalescing.
+     */
+    @Inject(optional = true)
+    public void setCoalesceDepth(@Named(COALESCE_DEPTH) int coalesceDepth) {
+        this.coalesceDepth = Math.max(0, coalesceDepth);
+    }
+
+    /**
+     * Plan the queries for the rules of an app.
+     *
+     * @param app
+     *         app with its rules.
+     * @return queries in order of their first rule.
+     */
+    public List<PlannedQuery> plan(AppInfo app) {
+        List<Group> groups = new ArrayList<>(app.metrics.size());
+        for (MetricInfo metricInfo : app.metrics) {
+            groups.add(new Group(metricInfo));
+        }
+        for (int depth = 1; depth <= coalesceDepth; depth++) {
+            groups = coalesce(groups, depth);
+        }
+        List<PlannedQuery> plannedQueries = new ArrayList<>(groups.size());
+        for (Group group : groups) {
+            plannedQueries.add(new PlannedQuery(app.name, PATH_JOINER.join(group.segments),
+                    Collections.unmodifiableList(group.metricInfos)));
+        }
+        return plannedQueries;
+    }
+
+    /**
+     * Merge groups with the same interval and number of elements whose paths only differ in the
+     * last depth elements. At least one leading element is always kept.
+     */
+    private List<Group> coalesce(List<Group> groups, int depth) {
+        Map<String, Group> merged = new LinkedHashMap<>();
+        List<Group> result = new ArrayList<>(groups.size());
+        for (Group group : groups) {
+            int prefixLength = group.segments.length - depth;
+            if (prefixLength < 1) {
+                result.add(group);
+                continue;
+            }
+            String key = group.interval + ":" + group.segments.length + ":" +
+                    PATH_JOINER.join(Arrays.asList(group.segments).subList(0, prefixLength));
+            Group existing = merged.get(key);
+            if (existing == null) {
+                merged.put(key, group);
+                result.add(group);
+            } else {
+                existing.merge(group);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Rules sharing one query path.
+     */
+    private static class Group {
+        private final String[] segments;
+        private final int interval;
+        private final List<MetricInfo> metricInfos = new ArrayList<>();
+
+        private Group(MetricInfo metricInfo) {
+            this.segments = metricInfo.metricPathQuery.split("\\|");
+            this.interval = metricInfo.interval;
+            this.metricInfos.add(metricInfo);
+        }
+
+        private void merge(Group group) {
+            for (int i = 0; i < segments.length; i++) {
+                if (!segments[i].equals(group.segments[i])) {
+                    segments[i] = MetricInfo.WILDCARD;
+                }
+            }
+            metricInfos.addAll(group.metricInfos);
+        }
+    }
+}
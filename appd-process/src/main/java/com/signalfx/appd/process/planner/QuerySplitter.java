@@ -0,0 +1,276 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.process.planner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Joiner;
+import com.signalfx.appd.client.MetricDataRequest;
+import com.signalfx.appd.client.exception.RequestException;
+import com.signalfx.appd.client.exception.UnauthorizedException;
+import com.signalfx.appd.client.model.MetricTreeNode;
+import com.signalfx.appd.process.info.MetricInfo;
+import com.signalfx.appd.process.status.StatusType;
+
+/**
+ * QuerySplitter splits a {@link PlannedQuery} whose response is too large into narrower queries.
+ *
+ * The first wildcard (*) of the query's metric path is expanded into the children AppDynamics
+ * lists for the path before it in its metric browser, e.g.
+ *
+ *      Business Transaction Performance|Business Transactions|*|*|Calls per Minute
+ *
+ *      could be split into
+ *
+ *      Business Transaction Performance|Business Transactions|Tier1|*|Calls per Minute
+ *      Business Transaction Performance|Business Transactions|Tier2|*|Calls per Minute
+ *
+ * Narrower queries that are still too large are split again on their next wildcard. Children
+ * that none of the query's rules can match, or whose metric paths a rule excludes entirely, are
+ * left out.
+ *
+ * Splits are remembered, so later cycles query the narrower metric paths right away. They are
+ * browsed again after an hour to pick up new children. A split without any children is never
+ * remembered, the query is sent whole instead of being dropped. A split that is not expanded for
+ * two intervals of its rules is forgotten, as its rules are no longer planned.
+ */
+public class QuerySplitter {
+
+    protected static final Logger log = LoggerFactory.getLogger(QuerySplitter.class);
+
+    private static final long SPLIT_EXPIRY_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long MINUTE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final int IDLE_INTERVALS = 2;
+    private static final Joiner PATH_JOINER = Joiner.on('|');
+
+    private final MetricDataRequest dataRequest;
+    private final Counter counterQuerySplit;
+
+    // A map of app name and metric path of a split query to its split.
+    private final Map<String, Split> splits = new HashMap<>();
+
+    private int interval = 1;
+
+    public QuerySplitter(MetricDataRequest dataRequest, MetricRegistry metricRegistry) {
+        this.dataRequest = dataRequest;
+        this.counterQuerySplit = metricRegistry.counter(StatusType.appdQuerySplit.name());
+    }
+
+    /**
+     * Set the minutes between queries of rules without their own interval.
+     *
+     * @param interval
+     *         minutes between queries, at least 1.
+     */
+    public void setInterval(int interval) {
+        this.interval = Math.max(1, interval);
+    }
+
+    /**
+     * Replace a query by the narrower queries it was split into in earlier cycles, refreshing
+     * splits that expired.
+     *
+     * @param plannedQuery
+     *         query to expand.
+     * @param now
+     *         current time in milliseconds.
+     * @return narrower queries, or the query itself if it was never split.
+     */
+    public List<PlannedQuery> expand(PlannedQuery plannedQuery, long now) {
+        Split split = splits.get(key(plannedQuery));
+        if (split == null) {
+            return Collections.singletonList(plannedQuery);
+        }
+        split.usedMillis = now;
+        if (now - split.createdMillis >= SPLIT_EXPIRY_MILLIS) {
+            try {
+                split = browse(plannedQuery, now);
+                if (split.metricPaths.isEmpty()) {
+                    log.warn("Split of \"{}\" has no children left, querying it whole",
+                            plannedQuery.metricPath);
+                    return Collections.singletonList(plannedQuery);
+                }
+            } catch (RequestException | UnauthorizedException e) {
+                log.warn("Failed to refresh split of \"{}\", keeping the previous one",
+                        plannedQuery.metricPath);
+                split.createdMillis = now;
+            }
+        }
+        List<PlannedQuery> plannedQueries = new ArrayList<>();
+        for (String metricPath : split.metricPaths) {
+            plannedQueries.addAll(expand(new PlannedQuery(plannedQuery.appName, metricPath,
+                    plannedQuery.metricInfos), now));
+        }
+        return plannedQueries;
+    }
+
+    /**
+     * Split a query on its first wildcard and remember the split for later cycles.
+     *
+     * @param plannedQuery
+     *         query whose response is too large.
+     * @param now
+     *         current time in milliseconds.
+     * @return narrower queries, or null if the metric path has no wildcard left to split or no
+     * children to split into.
+     * @throws RequestException
+     *         when the metric browser request failed.
+     * @throws UnauthorizedException
+     *         when unable to authorize with given credentials.
+     */
+    public List<PlannedQuery> split(PlannedQuery plannedQuery, long now)
+            throws RequestException, UnauthorizedException {
+        Split split = browse(plannedQuery, now);
+        if (split == null) {
+            return null;
+        }
+        if (split.metricPaths.isEmpty()) {
+            log.warn("Metric browser lists no children of \"{}\" that a rule matches",
+                    plannedQuery.metricPath);
+            return null;
+        }
+        counterQuerySplit.inc();
+        log.info("Split \"{}\" into {} queries", plannedQuery.metricPath,
+                split.metricPaths.size());
+        List<PlannedQuery> plannedQueries = new ArrayList<>(split.metricPaths.size());
+        for (String metricPath : split.metricPaths) {
+            plannedQueries.add(
+                    new PlannedQuery(plannedQuery.appName, metricPath, plannedQuery.metricInfos));
+        }
+        return plannedQueries;
+    }
+
+    /**
+     * Forget the splits that were not expanded for two intervals of their rules.
+     *
+     * @param now
+     *         current time in milliseconds.
+     * @return number of splits forgotten.
+     */
+    public int sweep(long now) {
+        int removed = 0;
+        Iterator<Split> iterator = splits.values().iterator();
+        while (iterator.hasNext()) {
+            Split split = iterator.next();
+            if (now - split.usedMillis > IDLE_INTERVALS * split.interval * MINUTE_MILLIS) {
+                iterator.remove();
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            log.info("Forgot {} splits of rules no longer planned", removed);
+        }
+        return removed;
+    }
+
+    /**
+     * @return number of queries split.
+     */
+    public int size() {
+        return splits.size();
+    }
+
+    /**
+     * Browse the children at the first wildcard and remember the split, unless it has none.
+     */
+    private Split browse(PlannedQuery plannedQuery, long now)
+            throws RequestException, UnauthorizedException {
+        String[] segments = plannedQuery.metricPath.split("\\|");
+        int wildcard = -1;
+        for (int i = 0; i < segments.length; i++) {
+            if (MetricInfo.WILDCARD.equals(segments[i])) {
+                wildcard = i;
+                break;
+            }
+        }
+        if (wildcard < 0) {
+            return null;
+        }
+        boolean last = wildcard == segments.length - 1;
+        String parentPath = PATH_JOINER.join(Arrays.asList(segments).subList(0, wildcard));
+        int splitInterval = 1;
+        for (MetricInfo metricInfo : plannedQuery.metricInfos) {
+            splitInterval = Math.max(splitInterval,
+                    metricInfo.interval > 0 ? metricInfo.interval : interval);
+        }
+        Split split = new Split(now, splitInterval);
+        for (MetricTreeNode node : dataRequest.browse(plannedQuery.appName, parentPath)) {
+            // Only leaves end a metric path, and only folders have more elements below.
+            if (node.name == null || node.isFolder() == last || node.name.contains("|")) {
+                continue;
+            }
+            segments[wildcard] = node.name;
+            if (matchesAnyRule(segments, plannedQuery.metricInfos)) {
+                split.metricPaths.add(PATH_JOINER.join(segments));
+            }
+        }
+        if (split.metricPaths.isEmpty()) {
+            splits.remove(key(plannedQuery));
+        } else {
+            splits.put(key(plannedQuery), split);
+        }
+        return split;
+    }
+
+    /**
+     * Whether any rule could match a metric path selected by the segments, and not all of them
+     * are excluded by the rule.
+     */
+    private static boolean matchesAnyRule(String[] segments, List<MetricInfo> metricInfos) {
+        for (MetricInfo metricInfo : metricInfos) {
+            String[] ruleSegments = metricInfo.metricPathQuery.split("\\|");
+            if (ruleSegments.length != segments.length) {
+                continue;
+            }
+            // Metric paths selected by both the segments and the rule.
+            String[] selected = new String[segments.length];
+            for (int i = 0; i < segments.length && selected != null; i++) {
+                if (MetricInfo.WILDCARD.equals(segments[i])) {
+                    selected[i] = ruleSegments[i];
+                } else if (MetricInfo.WILDCARD.equals(ruleSegments[i]) ||
+                        segments[i].equals(ruleSegments[i])) {
+                    selected[i] = segments[i];
+                } else {
+                    selected = null;
+                }
+            }
+            if (selected != null && !metricInfo.isExcludedAll(PATH_JOINER.join(selected))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String key(PlannedQuery plannedQuery) {
+        return plannedQuery.appName + '\0' + plannedQuery.metricPath;
+    }
+
+    /**
+     * Narrower metric paths a query was split into.
+     */
+    private static class Split {
+        private final List<String> metricPaths = new ArrayList<>();
+        private final int interval;
+        private long createdMillis;
+        private long usedMillis;
+
+        private Split(long createdMillis, int interval) {
+            this.createdMillis = createdMillis;
+            this.usedMillis = createdMillis;
+            this.interval = interval;
+        }
+    }
+}
@@ -3,13 +3,28 @@
  */
 package com.signalfx.appd.process.processor;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.signalfx.appd.client.model.MetricData;
 import com.signalfx.appd.client.model.MetricValue;
+import com.signalfx.appd.process.info.MetricInfo;
 import com.signalfx.appd.process.model.MetricTimeSeries;
 import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers;
 
@@ -17,62 +32,264 @@ import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers;
  * Processor handles processing of MetricValues retrieved from AppDynamics and filters already
  * processed data point by timestamp
  *
+ * Each series is identified by a primitive 64-bit key combining the rule that produced it and
+ * the AppDynamics metric id, see {@link #ruleKey(String, MetricInfo)} and
+ * {@link #seriesKey(long, MetricData)}, so that looking up the last timestamp sent does not need
+ * a {@link MetricTimeSeries} and keeps no object per series.
+ *
+ * Series that are not processed for {@code seriesExpiry} intervals of their rule, like those of
+ * nodes that went away, are forgotten by {@link #sweep(int)}, which counts cycles in minutes so
+ * that series of rules queried every hour are kept as many queries as series of rules queried
+ * every minute. The number of series kept can also be capped, in which case the least recently
+ * processed series are forgotten first.
+ *
+ * When a checkpoint directory is set, the last timestamps are kept in a
+ * {@link WatermarkCheckpoint} so data points already sent are not sent again after a restart.
+ * Only the latest timestamp is checkpointed, late data points older than it are not accepted
+ * after a restart.
+ *
  * @author 9park
  */
 public class Processor {
 
+    protected static final Logger log = LoggerFactory.getLogger(Processor.class);
+
+    /**
+     * Name of the optional binding for number of intervals a series is kept without being
+     * processed.
+     */
+    public static final String SERIES_EXPIRY = "appd.seriesExpiry";
+
+    /**
+     * Name of the optional binding for maximum number of series kept.
+     */
+    public static final String MAX_SERIES = "appd.maxSeries";
+
+    /**
+     * Number of minutes before the latest timestamp sent in which late data points are accepted.
+     */
+    public static final int WINDOW_MINUTES = 64;
+
+    private static final long MINUTE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
     @Inject
     public Processor() {
     }
 
-    // A map of MTS to last timestamp sent.
-    private final Map<MetricTimeSeries, Long> mtsToLastTimestamp = new HashMap<>();
+    // A map of series key to last timestamp sent.
+    private final SeriesStateMap seriesToLastTimestamp = new SeriesStateMap();
+
+    private WatermarkCheckpoint checkpoint;
+
+    private int seriesExpiry = 60;
+    private int maxSeries = 0;
+
+    /**
+     * Load and keep checkpointing the last timestamps sent in the directory. Checkpointing is
+     * skipped if the checkpoint could not be opened.
+     *
+     * @param directory
+     *         directory of checkpoint files.
+     */
+    @Inject(optional = true)
+    public void setCheckpointDirectory(
+            @Named(WatermarkCheckpoint.CHECKPOINT_DIR) String directory) {
+        Path path = Paths.get(directory, "series.checkpoint");
+        try {
+            Files.createDirectories(path.getParent());
+            checkpoint = new WatermarkCheckpoint(path, seriesToLastTimestamp);
+            log.info("Loaded {} series from checkpoint {}", seriesToLastTimestamp.size(), path);
+        } catch (IOException e) {
+            log.error("Failed to open checkpoint {}", path, e);
+        }
+    }
+
+    /**
+     * Set the number of intervals of its rule a series is kept without being processed.
+     *
+     * @param seriesExpiry
+     *         number of intervals, at least 1.
+     */
+    @Inject(optional = true)
+    public void setSeriesExpiry(@Named(SERIES_EXPIRY) int seriesExpiry) {
+        this.seriesExpiry = Math.max(1, seriesExpiry);
+    }
+
+    /**
+     * Set the maximum number of series kept.
+     *
+     * @param maxSeries
+     *         maximum number of series, 0 for no limit.
+     */
+    @Inject(optional = true)
+    public void setMaxSeries(@Named(MAX_SERIES) int maxSeries) {
+        this.maxSeries = Math.max(0, maxSeries);
+    }
+
+    /**
+     * Identify a rule of an app. The key is stable across restarts and does not depend on how
+     * the rule is queried.
+     *
+     * @param appName
+     *         AppDynamics application name.
+     * @param metricInfo
+     *         rule producing the series.
+     * @return 64-bit key of the rule.
+     */
+    public static long ruleKey(String appName, MetricInfo metricInfo) {
+        Hasher hasher = HASH_FUNCTION.newHasher()
+                .putString(appName, StandardCharsets.UTF_8).putChar('\0')
+                .putString(metricInfo.getDimensionsPathMap(), StandardCharsets.UTF_8).putChar('\0')
+                .putString(metricInfo.metricPathQuery, StandardCharsets.UTF_8);
+        for (Map.Entry<String, String> entry : new TreeMap<>(metricInfo.dimensions).entrySet()) {
+            hasher.putChar('\0').putString(entry.getKey(), StandardCharsets.UTF_8)
+                    .putChar('=').putString(entry.getValue(), StandardCharsets.UTF_8);
+        }
+        return hasher.hash().asLong();
+    }
+
+    /**
+     * Identify a series produced by a rule. AppDynamics metric id is used when present,
+     * otherwise the metric path is hashed.
+     *
+     * @param ruleKey
+     *         key of the rule from {@link #ruleKey(String, MetricInfo)}.
+     * @param metricData
+     *         metric data returned by AppDynamics for the rule.
+     * @return non-zero 64-bit key of the series.
+     */
+    public static long seriesKey(long ruleKey, MetricData metricData) {
+        long key;
+        if (metricData.id > 0) {
+            key = mix(ruleKey + mix(metricData.id));
+        } else {
+            key = HASH_FUNCTION.newHasher().putLong(ruleKey)
+                    .putString(metricData.metricPath, StandardCharsets.UTF_8).hash().asLong();
+        }
+        return key == 0 ? 1 : key;
+    }
 
     /**
-     * Process {@link MetricTimeSeries} and {@link MetricValue} filtering out data point earlier or
-     * equal to timestamp that was marked as already sent.
+     * @return number of series with a last timestamp.
+     */
+    public int size() {
+        return seriesToLastTimestamp.size();
+    }
+
+    /**
+     * Process {@link MetricTimeSeries} and {@link MetricValue} filtering out data point that was
+     * already sent.
      *
+     * Data points newer than the latest timestamp sent are always sent. Older data points that
+     * AppDynamics filled in late are sent once if they are within {@link #WINDOW_MINUTES} minutes
+     * of the latest timestamp sent, older ones are dropped.
+     *
+     * @param seriesKey
+     *         key of the series from {@link #seriesKey(long, MetricData)}.
      * @param mts
      *         MetricTimeSeries for the values
      * @param metricValues
-     *         metric values from AppDynamics. Timestamp needs to be incrementally ordered.
+     *         metric values from AppDynamics.
      * @return list of {@link com.signalfx.metrics.protobuf.SignalFxProtocolBuffers.DataPoint} to be
      * submitted to SignalFx
      */
-    public List<SignalFxProtocolBuffers.DataPoint> process(MetricTimeSeries mts,
+    public List<SignalFxProtocolBuffers.DataPoint> process(long seriesKey, MetricTimeSeries mts,
                                                            List<MetricValue> metricValues) {
-        Long lastTimestamp = mtsToLastTimestamp.get(mts);
-        Long latestTimestamp = lastTimestamp;
+        return process(seriesKey, mts, metricValues, 1);
+    }
+
+    /**
+     * Process metric values of a series whose rule is queried every given number of minutes, see
+     * {@link #process(long, MetricTimeSeries, List)}.
+     *
+     * @param interval
+     *         minutes between queries of the series' rule.
+     */
+    public List<SignalFxProtocolBuffers.DataPoint> process(long seriesKey, MetricTimeSeries mts,
+                                                           List<MetricValue> metricValues,
+                                                           int interval) {
+        // NO_VALUE is smaller than any timestamp, so a new series gets all values.
+        int index = seriesToLastTimestamp.indexOf(seriesKey);
+        long lastTimestamp = index < 0 ?
+                SeriesStateMap.NO_VALUE :
+                seriesToLastTimestamp.valueAt(index);
+        // Bit i is set when the minute i minutes before the latest timestamp was sent.
+        long window = index < 0 ? 0 : seriesToLastTimestamp.bitsAt(index);
+        long latestTimestamp = lastTimestamp;
         List<SignalFxProtocolBuffers.DataPoint> dataPoints = new LinkedList<>();
-        SignalFxProtocolBuffers.DataPoint.Builder dataPointBuilder = SignalFxProtocolBuffers.DataPoint
-                .newBuilder()
-                .setMetric(mts.metricName);
-
-        if (mts.dimensions != null) {
-            for (Map.Entry<String, String> entry : mts.dimensions.entrySet()) {
-                dataPointBuilder.addDimensions(SignalFxProtocolBuffers.Dimension.newBuilder()
-                        .setKey(entry.getKey())
-                        .setValue(entry.getValue()));
-            }
-        }
+        // Builder is created lazily, most series have no new data points most of the time.
+        SignalFxProtocolBuffers.DataPoint.Builder dataPointBuilder = null;
 
         for (MetricValue metricValue : metricValues) {
-            if (lastTimestamp == null || metricValue.startTimeInMillis > lastTimestamp) {
-                SignalFxProtocolBuffers.DataPoint dataPoint = dataPointBuilder
-                        .setTimestamp(metricValue.startTimeInMillis)
-                        .setValue(SignalFxProtocolBuffers.Datum.newBuilder()
-                                .setIntValue(metricValue.value)).build();
-                dataPoints.add(dataPoint);
-
-                latestTimestamp = lastTimestamp == null ?
-                        metricValue.startTimeInMillis :
-                        Math.max(metricValue.startTimeInMillis, latestTimestamp);
+            long timestamp = metricValue.startTimeInMillis;
+            long minutes = timestamp / MINUTE_MILLIS;
+            if (timestamp > latestTimestamp) {
+                long shift = latestTimestamp == SeriesStateMap.NO_VALUE ?
+                        WINDOW_MINUTES :
+                        minutes - latestTimestamp / MINUTE_MILLIS;
+                window = (shift >= WINDOW_MINUTES ? 0 : window << shift) | 1L;
+                latestTimestamp = timestamp;
+            } else {
+                long age = latestTimestamp / MINUTE_MILLIS - minutes;
+                if (age >= WINDOW_MINUTES || (window & (1L << age)) != 0) {
+                    continue;
+                }
+                window |= 1L << age;
+            }
+            if (dataPointBuilder == null) {
+                dataPointBuilder = mts.template.toBuilder();
             }
+            SignalFxProtocolBuffers.DataPoint dataPoint = dataPointBuilder
+                    .setTimestamp(timestamp)
+                    .setValue(SignalFxProtocolBuffers.Datum.newBuilder()
+                            .setIntValue(metricValue.value)).build();
+            dataPoints.add(dataPoint);
         }
-        if (lastTimestamp == null || latestTimestamp > lastTimestamp) {
-            mtsToLastTimestamp.put(mts, latestTimestamp);
+        if (latestTimestamp != SeriesStateMap.NO_VALUE) {
+            // Also marks the series as seen, as if later for rules queried less often.
+            seriesToLastTimestamp.put(seriesKey, latestTimestamp, window,
+                    seriesExpiry * (Math.max(1, interval) - 1));
+            if (checkpoint != null && latestTimestamp > lastTimestamp) {
+                checkpoint.append(seriesKey, latestTimestamp);
+            }
         }
         return dataPoints;
     }
 
+    /**
+     * End a processing cycle of a minute, forgetting series that expired or do not fit into the
+     * maximum number of series.
+     *
+     * @return number of series forgotten.
+     */
+    public int sweep() {
+        return sweep(1);
+    }
+
+    /**
+     * End processing cycles of the minutes since the last sweep, forgetting series that expired
+     * or do not fit into the maximum number of series.
+     *
+     * @param minutes
+     *         minutes since the last sweep, at least 1.
+     * @return number of series forgotten.
+     */
+    public int sweep(int minutes) {
+        return seriesToLastTimestamp.sweep(seriesExpiry, maxSeries, minutes);
+    }
+
+    /**
+     * Finalization step of MurmurHash3 spreading all bits of the input over the output.
+     */
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
 }
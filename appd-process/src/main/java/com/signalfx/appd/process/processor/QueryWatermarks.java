@@ -0,0 +1,180 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.process.processor;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.Hashing;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * QueryWatermarks keeps the latest data point timestamp received for each AppDynamics query, so
+ * the next fetch of that query only has to ask for newer data.
+ *
+ * It also keeps the bucket size each query's data is rolled up into, as learned from the
+ * frequency of its latest response, so coarse queries are only fetched once a new bucket is
+ * complete. Bucket sizes are not checkpointed and are learned again after a restart.
+ *
+ * When a checkpoint directory is set, the watermarks are kept in a {@link WatermarkCheckpoint}
+ * so that after a restart each query fetches the data missed while the process was down.
+ *
+ * Queries that are not fetched for {@code seriesExpiry} intervals of their rules, like those
+ * replaced by narrower queries or of rules that were removed, are forgotten by
+ * {@link #sweep(int)}, and the checkpoint is compacted so they are not loaded again.
+ */
+public class QueryWatermarks {
+
+    protected static final Logger log = LoggerFactory.getLogger(QueryWatermarks.class);
+
+    // A map of query key to latest timestamp received.
+    private final SeriesStateMap queryToWatermark = new SeriesStateMap();
+
+    // A map of query key to milliseconds covered by each data point.
+    private final SeriesStateMap queryToBucket = new SeriesStateMap();
+
+    private WatermarkCheckpoint checkpoint;
+
+    private int expiry = 60;
+
+    @Inject
+    public QueryWatermarks() {
+    }
+
+    /**
+     * Load and keep checkpointing the watermarks in the directory. Checkpointing is skipped if the
+     * checkpoint could not be opened.
+     *
+     * @param directory
+     *         directory of checkpoint files.
+     */
+    @Inject(optional = true)
+    public void setCheckpointDirectory(
+            @Named(WatermarkCheckpoint.CHECKPOINT_DIR) String directory) {
+        Path path = Paths.get(directory, "queries.checkpoint");
+        try {
+            Files.createDirectories(path.getParent());
+            checkpoint = new WatermarkCheckpoint(path, queryToWatermark);
+            log.info("Loaded {} queries from checkpoint {}", queryToWatermark.size(), path);
+        } catch (IOException e) {
+            log.error("Failed to open checkpoint {}", path, e);
+        }
+    }
+
+    /**
+     * Set the number of intervals of its rules a query is kept without being fetched.
+     *
+     * @param expiry
+     *         number of intervals, at least 1.
+     */
+    @Inject(optional = true)
+    public void setExpiry(@Named(Processor.SERIES_EXPIRY) int expiry) {
+        this.expiry = Math.max(1, expiry);
+    }
+
+    /**
+     * @param appName
+     *         AppDynamics application name.
+     * @param metricPath
+     *         AppDynamics metric path of the query.
+     * @return non-zero key identifying the query, stable across restarts.
+     */
+    public static long key(String appName, String metricPath) {
+        long key = Hashing.murmur3_128().newHasher()
+                .putString(appName, StandardCharsets.UTF_8).putChar('\0')
+                .putString(metricPath, StandardCharsets.UTF_8).hash().asLong();
+        return key == 0 ? 1 : key;
+    }
+
+    /**
+     * @param key
+     *         query key from {@link #key(String, String)}.
+     * @return latest timestamp received for the query or null if nothing was received yet.
+     */
+    public Long get(long key) {
+        long watermark = queryToWatermark.get(key);
+        return watermark == SeriesStateMap.NO_VALUE ? null : watermark;
+    }
+
+    /**
+     * Move the watermark of the query forward to timestamp, earlier timestamps are ignored.
+     *
+     * @param key
+     *         query key from {@link #key(String, String)}.
+     * @param timestamp
+     *         timestamp of data point received.
+     */
+    public void update(long key, long timestamp) {
+        if (timestamp > queryToWatermark.get(key)) {
+            queryToWatermark.put(key, timestamp);
+            if (checkpoint != null) {
+                checkpoint.append(key, timestamp);
+            }
+        }
+    }
+
+    /**
+     * @param key
+     *         query key from {@link #key(String, String)}.
+     * @return milliseconds covered by each data point of the query or 0 if not known yet.
+     */
+    public long getBucketMillis(long key) {
+        long bucketMillis = queryToBucket.get(key);
+        return bucketMillis == SeriesStateMap.NO_VALUE ? 0 : bucketMillis;
+    }
+
+    /**
+     * Set the milliseconds covered by each data point of the query, as seen in its latest
+     * response.
+     *
+     * @param key
+     *         query key from {@link #key(String, String)}.
+     * @param bucketMillis
+     *         milliseconds covered by each data point.
+     */
+    public void setBucketMillis(long key, long bucketMillis) {
+        queryToBucket.put(key, bucketMillis);
+    }
+
+    /**
+     * Mark the query as fetched in the current cycle, so it is not forgotten.
+     *
+     * @param key
+     *         query key from {@link #key(String, String)}.
+     * @param interval
+     *         minutes between fetches of the query.
+     */
+    public void touch(long key, int interval) {
+        int extraCycles = expiry * (Math.max(1, interval) - 1);
+        queryToWatermark.touch(key, extraCycles);
+        queryToBucket.touch(key, extraCycles);
+    }
+
+    /**
+     * End processing cycles of the minutes since the last sweep, forgetting queries that expired.
+     *
+     * @param minutes
+     *         minutes since the last sweep, at least 1.
+     * @return number of queries forgotten.
+     */
+    public int sweep(int minutes) {
+        int removed = queryToWatermark.sweep(expiry, 0, minutes);
+        queryToBucket.sweep(expiry, 0, minutes);
+        if (removed > 0 && checkpoint != null) {
+            try {
+                checkpoint.compact();
+            } catch (IOException e) {
+                log.error("Failed to compact checkpoint", e);
+            }
+        }
+        return removed;
+    }
+}
@@ -0,0 +1,410 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.process.processor;
+
+import java.util.Arrays;
+
+/**
+ * SeriesStateMap is an open addressing map from a primitive series key to a primitive value.
+ *
+ * Keys and values are kept in parallel primitive arrays with linear probing, so an entry costs
+ * a few array slots instead of a map entry, a boxed key and a boxed value. Removal shifts the
+ * following entries of the probe run back, so no tombstones are left behind.
+ *
+ * Next to its value, each entry carries 64 bits of extra state and remembers the cycle in which
+ * it was last written, so that entries that are no longer seen can be swept out with
+ * {@link #sweep(int, int)}. An entry written less often than every cycle can be written as if
+ * seen some cycles later, so it is kept that much longer.
+ *
+ * Key 0 is reserved to mark empty slots and cannot be stored.
+ */
+public class SeriesStateMap {
+
+    /**
+     * Value returned by {@link #get(long)} when the key is not in the map.
+     */
+    public static final long NO_VALUE = Long.MIN_VALUE;
+
+    private static final int MIN_CAPACITY = 16;
+    private static final float MAX_LOAD = 0.7f;
+
+    private long[] keys;
+    private long[] values;
+    private long[] bits;
+    private int[] lastSeen;
+    private int cycle;
+    private int mask;
+    private int size;
+    private int maxSize;
+
+    public SeriesStateMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize
+     *         number of entries the map should hold without growing.
+     */
+    public SeriesStateMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * MAX_LOAD < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * @return number of entries in the map.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return number of slots allocated, each slot takes 28 bytes.
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * @param key
+     *         series key, not 0.
+     * @return value of the key or {@link #NO_VALUE} if the key is not in the map.
+     */
+    public long get(long key) {
+        int index = indexOf(key);
+        return index < 0 ? NO_VALUE : values[index];
+    }
+
+    /**
+     * Find the slot of a key, for reading its value and bits without probing twice. The slot is
+     * valid until the map is modified.
+     *
+     * @param key
+     *         series key, not 0.
+     * @return slot of the key or -1 if the key is not in the map.
+     */
+    public int indexOf(long key) {
+        checkKey(key);
+        int index = slot(key);
+        while (keys[index] != 0) {
+            if (keys[index] == key) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @param index
+     *         slot from {@link #indexOf(long)}.
+     * @return value in the slot.
+     */
+    public long valueAt(int index) {
+        return values[index];
+    }
+
+    /**
+     * @param index
+     *         slot from {@link #indexOf(long)}.
+     * @return bits in the slot.
+     */
+    public long bitsAt(int index) {
+        return bits[index];
+    }
+
+    /**
+     * Associate the value with the key with all bits set, replacing any previous value, and mark
+     * the key as seen in the current cycle.
+     *
+     * @param key
+     *         series key, not 0.
+     * @param value
+     *         value to store.
+     */
+    public void put(long key, long value) {
+        put(key, value, -1L);
+    }
+
+    /**
+     * Associate the value and bits with the key, replacing any previous ones, and mark the key as
+     * seen in the current cycle.
+     *
+     * @param key
+     *         series key, not 0.
+     * @param value
+     *         value to store.
+     * @param bits
+     *         bits to store.
+     */
+    public void put(long key, long value, long bits) {
+        put(key, value, bits, 0);
+    }
+
+    /**
+     * Associate the value and bits with the key, replacing any previous ones, and mark the key as
+     * seen the given number of cycles after the current one, unless it is already marked as seen
+     * later.
+     *
+     * @param key
+     *         series key, not 0.
+     * @param value
+     *         value to store.
+     * @param bits
+     *         bits to store.
+     * @param extraCycles
+     *         cycles the key is kept longer than keys seen in the current cycle.
+     */
+    public void put(long key, long value, long bits, int extraCycles) {
+        checkKey(key);
+        int seen = cycle + Math.max(0, extraCycles);
+        int index = slot(key);
+        while (keys[index] != 0) {
+            if (keys[index] == key) {
+                values[index] = value;
+                this.bits[index] = bits;
+                lastSeen[index] = Math.max(lastSeen[index], seen);
+                return;
+            }
+            index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        values[index] = value;
+        this.bits[index] = bits;
+        lastSeen[index] = seen;
+        if (++size > maxSize) {
+            rehash(keys.length << 1);
+        }
+    }
+
+    /**
+     * Mark the key as seen the given number of cycles after the current one without changing its
+     * value, unless it is already marked as seen later.
+     *
+     * @param key
+     *         series key, not 0.
+     * @param extraCycles
+     *         cycles the key is kept longer than keys seen in the current cycle.
+     * @return true if the key is in the map.
+     */
+    public boolean touch(long key, int extraCycles) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return false;
+        }
+        lastSeen[index] = Math.max(lastSeen[index], cycle + Math.max(0, extraCycles));
+        return true;
+    }
+
+    /**
+     * @param key
+     *         series key, not 0.
+     * @return true if the key was in the map.
+     */
+    public boolean remove(long key) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return false;
+        }
+        shiftBack(index);
+        size--;
+        return true;
+    }
+
+    /**
+     * Remove all entries, keeping the allocated capacity.
+     */
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, 0);
+        Arrays.fill(bits, 0);
+        Arrays.fill(lastSeen, 0);
+        size = 0;
+    }
+
+    /**
+     * Visit all entries of the map. The map must not be modified while visiting.
+     *
+     * @param visitor
+     *         visitor called for each entry.
+     */
+    public void forEach(Visitor visitor) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                visitor.visit(keys[i], values[i]);
+            }
+        }
+    }
+
+    /**
+     * End the current cycle. Entries not written for maxIdleCycles cycles, counting the current
+     * one, are removed. If more than maxSize entries are left, the least recently written ones
+     * are removed as well.
+     *
+     * @param maxIdleCycles
+     *         number of cycles an entry is kept without being written, at least 1.
+     * @param maxSize
+     *         maximum number of entries to keep, 0 for no limit.
+     * @return number of entries removed.
+     */
+    public int sweep(int maxIdleCycles, int maxSize) {
+        return sweep(maxIdleCycles, maxSize, 1);
+    }
+
+    /**
+     * End the given number of cycles at once, as {@link #sweep(int, int)} does for one cycle.
+     *
+     * @param maxIdleCycles
+     *         number of cycles an entry is kept without being written, at least 1.
+     * @param maxSize
+     *         maximum number of entries to keep, 0 for no limit.
+     * @param endedCycles
+     *         number of cycles that ended, at least 1.
+     * @return number of entries removed.
+     */
+    public int sweep(int maxIdleCycles, int maxSize, int endedCycles) {
+        cycle += Math.max(1, endedCycles) - 1;
+        int removed = 0;
+        int oldestKept = cycle - maxIdleCycles + 1;
+        if (maxSize > 0 && size > maxSize) {
+            // Find the cycle of the newest entry that still has to go to fit into maxSize.
+            int[] cycles = new int[size];
+            int count = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != 0) {
+                    cycles[count++] = lastSeen[i];
+                }
+            }
+            Arrays.sort(cycles);
+            int threshold = cycles[size - maxSize - 1];
+            if (threshold >= oldestKept) {
+                // Entries older than threshold all go, entries of threshold cycle only as needed.
+                int excess = size - maxSize;
+                for (int i = 0; i < count && cycles[i] < threshold; i++) {
+                    excess--;
+                }
+                removed += removeSeenBefore(threshold);
+                removed += removeSeenIn(threshold, excess);
+            }
+        }
+        removed += removeSeenBefore(oldestKept);
+        cycle++;
+        return removed;
+    }
+
+    /**
+     * Remove all entries last seen before the cycle.
+     */
+    private int removeSeenBefore(int oldestKept) {
+        int removed = 0;
+        int index = 0;
+        while (index < keys.length) {
+            // Shifting back never moves an entry that was not visited yet before index.
+            if (keys[index] != 0 && lastSeen[index] < oldestKept) {
+                shiftBack(index);
+                size--;
+                removed++;
+            } else {
+                index++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Remove up to count entries last seen in the cycle.
+     */
+    private int removeSeenIn(int seen, int count) {
+        int removed = 0;
+        int index = 0;
+        while (index < keys.length && removed < count) {
+            if (keys[index] != 0 && lastSeen[index] == seen) {
+                shiftBack(index);
+                size--;
+                removed++;
+            } else {
+                index++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Fill the gap left at index by moving back following entries of the probe run that are
+     * allowed to live there.
+     */
+    private void shiftBack(int gap) {
+        int index = gap;
+        while (true) {
+            index = (index + 1) & mask;
+            long key = keys[index];
+            if (key == 0) {
+                break;
+            }
+            // Entry can move to gap only if gap is not before its home slot in the probe run.
+            int home = slot(key);
+            if (((index - home) & mask) >= ((index - gap) & mask)) {
+                keys[gap] = key;
+                values[gap] = values[index];
+                bits[gap] = bits[index];
+                lastSeen[gap] = lastSeen[index];
+                gap = index;
+            }
+        }
+        keys[gap] = 0;
+        values[gap] = 0;
+        bits[gap] = 0;
+        lastSeen[gap] = 0;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        long[] oldBits = bits;
+        int[] oldLastSeen = lastSeen;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            long key = oldKeys[i];
+            if (key != 0) {
+                int index = slot(key);
+                while (keys[index] != 0) {
+                    index = (index + 1) & mask;
+                }
+                keys[index] = key;
+                values[index] = oldValues[i];
+                bits[index] = oldBits[i];
+                lastSeen[index] = oldLastSeen[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new long[capacity];
+        bits = new long[capacity];
+        lastSeen = new int[capacity];
+        mask = capacity - 1;
+        maxSize = (int) (capacity * MAX_LOAD);
+    }
+
+    private int slot(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private static void checkKey(long key) {
+        if (key == 0) {
+            throw new IllegalArgumentException("Key 0 is reserved");
+        }
+    }
+
+    /**
+     * Visitor of the entries of a {@link SeriesStateMap}.
+     */
+    public interface Visitor {
+        void visit(long key, long value);
+    }
+}
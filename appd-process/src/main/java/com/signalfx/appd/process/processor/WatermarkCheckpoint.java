@@ -0,0 +1,166 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.process.processor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * WatermarkCheckpoint persists the watermarks of a {@link SeriesStateMap} to a local file so they
+ * survive a restart.
+ *
+ * The file is memory-mapped and every change is appended as a 16 bytes (key, watermark) record,
+ * so a checkpoint is a plain memory write that the operating system flushes in the background.
+ * When the file is full, the live entries of the map are compacted into a new file that replaces
+ * the old one.
+ *
+ * Watermarks only move forward, so on load the largest watermark recorded for a key wins and a
+ * record torn by a crash can only make the watermark older.
+ */
+public class WatermarkCheckpoint implements Closeable {
+
+    protected static final Logger log = LoggerFactory.getLogger(WatermarkCheckpoint.class);
+
+    /**
+     * Name of the optional binding for directory of checkpoint files.
+     */
+    public static final String CHECKPOINT_DIR = "appd.checkpointDir";
+
+    private static final long MAGIC = 0x41505044574d4b31L;
+    private static final int HEADER_BYTES = 8;
+    private static final int RECORD_BYTES = 16;
+    private static final int MAX_RECORDS = (Integer.MAX_VALUE - HEADER_BYTES) / RECORD_BYTES;
+    private static final int DEFAULT_MIN_RECORDS = 1 << 16;
+
+    private final Path path;
+    private final SeriesStateMap map;
+    private final int minRecords;
+    private MappedByteBuffer buffer;
+
+    /**
+     * Open the checkpoint file, loading its watermarks into the map.
+     *
+     * @param path
+     *         checkpoint file, created if it does not exist.
+     * @param map
+     *         map of watermarks kept in the checkpoint.
+     * @throws IOException
+     *         when the checkpoint file could not be read or written.
+     */
+    public WatermarkCheckpoint(Path path, SeriesStateMap map) throws IOException {
+        this(path, map, DEFAULT_MIN_RECORDS);
+    }
+
+    WatermarkCheckpoint(Path path, SeriesStateMap map, int minRecords) throws IOException {
+        this.path = path;
+        this.map = map;
+        this.minRecords = minRecords;
+        if (Files.exists(path)) {
+            load();
+        }
+        compact();
+    }
+
+    /**
+     * Record the watermark of a key, the map has to be updated by the caller.
+     *
+     * @param key
+     *         key of the map, not 0.
+     * @param watermark
+     *         new watermark of the key.
+     */
+    public void append(long key, long watermark) {
+        if (buffer == null) {
+            return;
+        }
+        if (buffer.remaining() < RECORD_BYTES) {
+            // The map already has the new watermark.
+            try {
+                compact();
+            } catch (IOException e) {
+                log.error("Failed to compact checkpoint {}, checkpointing stopped", path, e);
+                buffer = null;
+            }
+            return;
+        }
+        buffer.putLong(key);
+        buffer.putLong(watermark);
+    }
+
+    @Override
+    public void close() {
+        if (buffer != null) {
+            buffer.force();
+            buffer = null;
+        }
+    }
+
+    private void load() throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES) {
+                return;
+            }
+            ByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(channel.size(), HEADER_BYTES + (long) MAX_RECORDS * RECORD_BYTES));
+            if (records.getLong() != MAGIC) {
+                log.warn("Ignoring checkpoint {} of unknown format", path);
+                return;
+            }
+            while (records.remaining() >= RECORD_BYTES) {
+                long key = records.getLong();
+                long watermark = records.getLong();
+                if (key == 0) {
+                    // Rest of the file was never written.
+                    break;
+                }
+                if (watermark > map.get(key)) {
+                    map.put(key, watermark);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the live entries into a new file with room for appending and swap it in, so entries
+     * removed from the map are not loaded again.
+     *
+     * @throws IOException
+     *         when the new file could not be written, the old one is kept.
+     */
+    void compact() throws IOException {
+        int records = (int) Math.min(MAX_RECORDS, Math.max(minRecords, 4L * map.size()));
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        final MappedByteBuffer compacted;
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            compacted = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_BYTES + (long) records * RECORD_BYTES);
+        }
+        compacted.putLong(MAGIC);
+        map.forEach(new SeriesStateMap.Visitor() {
+            @Override
+            public void visit(long key, long value) {
+                if (compacted.remaining() >= RECORD_BYTES) {
+                    compacted.putLong(key);
+                    compacted.putLong(value);
+                }
+            }
+        });
+        compacted.force();
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        buffer = compacted;
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.process.reporter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.signalfx.appd.process.status.StatusType;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers;
+
+/**
+ * ReportPipeline hands data points to a {@link Reporter} on a separate thread while they are
+ * still being produced.
+ *
+ * Data points go through a bounded queue and are reported in chunks, either when a chunk is full
+ * or when its first data point has waited for the maximum chunk delay. When the reporter is
+ * slower than the producer, the queue fills up and {@link #add(List)} blocks.
+ *
+ * A pipeline runs one cycle at a time, from {@link #start()} to {@link #finish()}.
+ */
+public class ReportPipeline {
+
+    protected static final Logger log = LoggerFactory.getLogger(ReportPipeline.class);
+
+    // Marks the end of a cycle in the queue.
+    private static final SignalFxProtocolBuffers.DataPoint END =
+            SignalFxProtocolBuffers.DataPoint.newBuilder().setMetric("").build();
+
+    private final Reporter reporter;
+    private final ExecutorService executor;
+
+    private final Counter counterDataPointsReported;
+    private final Timer timerChunkLatency;
+
+    private int chunkSize = 10000;
+    private long chunkDelayMillis = 5000;
+    private BlockingQueue<SignalFxProtocolBuffers.DataPoint> queue;
+    private Future<?> drain;
+
+    public ReportPipeline(Reporter reporter, MetricRegistry metricRegistry) {
+        this.reporter = reporter;
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("appd-report-%d")
+                .setDaemon(true)
+                .build());
+
+        counterDataPointsReported = metricRegistry.counter(StatusType.dataPointsReported.name());
+        timerChunkLatency = metricRegistry.timer(StatusType.reportChunkLatency.name());
+        metricRegistry.register(StatusType.reportQueueDepth.name(), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                BlockingQueue<SignalFxProtocolBuffers.DataPoint> current = queue;
+                return current == null ? 0 : current.size();
+            }
+        });
+    }
+
+    /**
+     * @param chunkSize
+     *         maximum data points reported at once, the queue holds 4 chunks.
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    /**
+     * @param chunkDelayMillis
+     *         maximum milliseconds a data point waits for its chunk to fill up.
+     */
+    public void setChunkDelayMillis(long chunkDelayMillis) {
+        this.chunkDelayMillis = Math.max(0, chunkDelayMillis);
+    }
+
+    /**
+     * Start a cycle.
+     */
+    public void start() {
+        final BlockingQueue<SignalFxProtocolBuffers.DataPoint> cycleQueue =
+                new ArrayBlockingQueue<>(chunkSize * 4);
+        final int cycleChunkSize = chunkSize;
+        final long cycleChunkDelayNanos = TimeUnit.MILLISECONDS.toNanos(chunkDelayMillis);
+        queue = cycleQueue;
+        drain = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    drain(cycleQueue, cycleChunkSize, cycleChunkDelayNanos);
+                } catch (InterruptedException e) {
+                    log.error("Reporting got interrupted");
+                }
+            }
+        });
+    }
+
+    /**
+     * Queue data points for reporting, waiting for room in the queue if needed.
+     *
+     * @param dataPoints
+     *         data points to report.
+     * @throws InterruptedException
+     *         when interrupted while waiting for room in the queue.
+     */
+    public void add(List<SignalFxProtocolBuffers.DataPoint> dataPoints)
+            throws InterruptedException {
+        for (SignalFxProtocolBuffers.DataPoint dataPoint : dataPoints) {
+            queue.put(dataPoint);
+        }
+    }
+
+    /**
+     * Finish the cycle, waiting until all data points queued have been reported.
+     *
+     * @throws InterruptedException
+     *         when interrupted while waiting.
+     */
+    public void finish() throws InterruptedException {
+        queue.put(END);
+        try {
+            drain.get();
+        } catch (ExecutionException e) {
+            log.error("Reporting failed", e.getCause());
+        } finally {
+            queue = null;
+            drain = null;
+        }
+    }
+
+    private void drain(BlockingQueue<SignalFxProtocolBuffers.DataPoint> cycleQueue,
+                       int cycleChunkSize, long cycleChunkDelayNanos)
+            throws InterruptedException {
+        List<SignalFxProtocolBuffers.DataPoint> chunk = new ArrayList<>();
+        long deadline = 0;
+        while (true) {
+            SignalFxProtocolBuffers.DataPoint dataPoint;
+            if (chunk.isEmpty()) {
+                dataPoint = cycleQueue.take();
+                deadline = System.nanoTime() + cycleChunkDelayNanos;
+            } else {
+                dataPoint = cycleQueue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+            if (dataPoint == END) {
+                report(chunk);
+                return;
+            }
+            if (dataPoint != null) {
+                chunk.add(dataPoint);
+            }
+            if (dataPoint == null || chunk.size() >= cycleChunkSize) {
+                report(chunk);
+                chunk = new ArrayList<>();
+            }
+        }
+    }
+
+    private void report(List<SignalFxProtocolBuffers.DataPoint> chunk) {
+        if (chunk.isEmpty()) {
+            return;
+        }
+        Timer.Context context = timerChunkLatency.time();
+        try {
+            reporter.report(chunk);
+            counterDataPointsReported.inc(chunk.size());
+        } catch (Reporter.ReportException e) {
+            log.error("There were errors reporting metric");
+        } catch (RuntimeException e) {
+            log.error("Unexpected error reporting metric", e);
+        } finally {
+            context.stop();
+        }
+    }
+}
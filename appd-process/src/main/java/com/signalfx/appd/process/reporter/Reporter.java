@@ -25,8 +25,25 @@ public interface Reporter {
     void report(List<SignalFxProtocolBuffers.DataPoint> dataPoints) throws ReportException;
 
     class ReportException extends Exception {
+
+        private final List<SignalFxProtocolBuffers.DataPoint> failedDataPoints;
+
         public ReportException(String message, Throwable cause) {
+            this(message, cause, null);
+        }
+
+        public ReportException(String message, Throwable cause,
+                               List<SignalFxProtocolBuffers.DataPoint> failedDataPoints) {
             super(message, cause);
+            this.failedDataPoints = failedDataPoints;
+        }
+
+        /**
+         * @return data points that were not reported, or null if it is not known which of the
+         * data points were reported.
+         */
+        public List<SignalFxProtocolBuffers.DataPoint> getFailedDataPoints() {
+            return failedDataPoints;
         }
     }
 }
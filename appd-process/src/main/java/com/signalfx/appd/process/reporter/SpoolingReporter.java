@@ -0,0 +1,385 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.process.reporter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.signalfx.appd.process.status.StatusType;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers;
+
+/**
+ * SpoolingReporter is a {@link Reporter} that keeps data points its delegate failed to report in
+ * a local spool and replays them later, so an outage of SignalFx does not leave a gap.
+ *
+ * Failed data points are appended as length-delimited protobuf to segment files, which are
+ * rolled once they reach {@link #SEGMENT_BYTES}. A background thread replays the segments oldest
+ * first, rate limited so live reporting keeps its share of the connection, and deletes each
+ * segment once all of its data points were reported. Oldest segments are dropped when the spool
+ * grows beyond its disk cap or when they get older than the age limit. A segment only partly
+ * replayed is rewritten with the data points left and keeps its modification time, so failed
+ * replays during an outage do not keep it from aging out.
+ */
+public class SpoolingReporter implements Reporter, Closeable {
+
+    protected static final Logger log = LoggerFactory.getLogger(SpoolingReporter.class);
+
+    /**
+     * Size at which a segment is rolled.
+     */
+    public static final long SEGMENT_BYTES = 4 * 1024 * 1024;
+
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final long REPLAY_PERIOD_SECONDS = 30;
+    private static final int MAX_REPLAY_CHUNK = 5000;
+
+    private final Reporter delegate;
+    private final Path directory;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private final RateLimiter replayRateLimiter;
+    private final int replayChunk;
+    private final ScheduledExecutorService scheduler;
+
+    private final Counter counterSpooled;
+    private final Counter counterReplayed;
+    private final Counter counterSegmentsDropped;
+
+    // Guards the segment files and the active segment.
+    private final Object lock = new Object();
+    private long nextSequence;
+    private Path activePath;
+    private OutputStream active;
+    private volatile long spoolBytes;
+
+    /**
+     * @param delegate
+     *         reporter sending data points.
+     * @param directory
+     *         spool directory, created if it does not exist. Segments left by a previous run are
+     *         replayed.
+     * @param maxBytes
+     *         disk cap of the spool.
+     * @param maxAgeMillis
+     *         age after which a segment is dropped.
+     * @param replayRate
+     *         maximum data points per second replayed.
+     * @param metricRegistry
+     *         registry of spool metrics.
+     * @throws IOException
+     *         when the spool directory could not be read.
+     */
+    public SpoolingReporter(Reporter delegate, Path directory, long maxBytes, long maxAgeMillis,
+                            double replayRate, MetricRegistry metricRegistry)
+            throws IOException {
+        this.delegate = delegate;
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.replayRateLimiter = RateLimiter.create(replayRate);
+        this.replayChunk = (int) Math.max(1, Math.min(MAX_REPLAY_CHUNK, replayRate));
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("appd-spool-%d")
+                .setDaemon(true)
+                .build());
+
+        counterSpooled = metricRegistry.counter(StatusType.dataPointsSpooled.name());
+        counterReplayed = metricRegistry.counter(StatusType.dataPointsReplayed.name());
+        counterSegmentsDropped = metricRegistry.counter(StatusType.spoolSegmentsDropped.name());
+        metricRegistry.register(StatusType.spoolBytes.name(), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return spoolBytes;
+            }
+        });
+
+        Files.createDirectories(directory);
+        List<Path> segments = listSegments();
+        if (!segments.isEmpty()) {
+            nextSequence = sequenceOf(segments.get(segments.size() - 1)) + 1;
+            log.info("Found {} spooled segment(s) to replay", segments.size());
+        }
+        enforceLimits();
+    }
+
+    /**
+     * Start replaying spooled data points in the background.
+     */
+    public void start() {
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replay();
+                } catch (RuntimeException e) {
+                    log.error("Unexpected error replaying spool", e);
+                }
+            }
+        }, REPLAY_PERIOD_SECONDS, REPLAY_PERIOD_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Report data points through the delegate, spooling the ones that failed. The failure is
+     * still reported to the caller.
+     */
+    @Override
+    public void report(List<SignalFxProtocolBuffers.DataPoint> dataPoints) throws ReportException {
+        try {
+            delegate.report(dataPoints);
+        } catch (ReportException e) {
+            List<SignalFxProtocolBuffers.DataPoint> failed = e.getFailedDataPoints() == null ?
+                    dataPoints :
+                    e.getFailedDataPoints();
+            try {
+                spool(failed);
+            } catch (IOException spoolException) {
+                log.error("Failed to spool {} data point(s)", failed.size(), spoolException);
+                throw e;
+            }
+            throw new ReportException(
+                    String.format("Spooled %d data point(s) for replay", failed.size()), e,
+                    failed);
+        }
+    }
+
+    /**
+     * Replay spooled segments oldest first until the spool is empty or the delegate fails.
+     */
+    public void replay() {
+        while (true) {
+            Path segment;
+            try {
+                segment = nextReplaySegment();
+            } catch (IOException e) {
+                log.error("Failed to read spool", e);
+                return;
+            }
+            if (segment == null) {
+                return;
+            }
+            List<SignalFxProtocolBuffers.DataPoint> dataPoints = readSegment(segment);
+            int sent = 0;
+            while (sent < dataPoints.size()) {
+                List<SignalFxProtocolBuffers.DataPoint> chunk =
+                        dataPoints.subList(sent, Math.min(sent + replayChunk, dataPoints.size()));
+                replayRateLimiter.acquire(chunk.size());
+                try {
+                    delegate.report(chunk);
+                } catch (ReportException e) {
+                    List<SignalFxProtocolBuffers.DataPoint> remaining = new ArrayList<>();
+                    remaining.addAll(e.getFailedDataPoints() == null ?
+                            chunk :
+                            e.getFailedDataPoints());
+                    counterReplayed.inc(chunk.size() - remaining.size());
+                    remaining.addAll(dataPoints.subList(sent + chunk.size(), dataPoints.size()));
+                    if (remaining.size() < dataPoints.size()) {
+                        rewriteSegment(segment, remaining);
+                    }
+                    log.warn("Replaying spool failed, {} data point(s) left in segment",
+                            remaining.size());
+                    return;
+                }
+                counterReplayed.inc(chunk.size());
+                sent += chunk.size();
+            }
+            synchronized (lock) {
+                deleteQuietly(segment);
+                updateSpoolBytes();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        synchronized (lock) {
+            closeActive();
+        }
+    }
+
+    private void spool(List<SignalFxProtocolBuffers.DataPoint> dataPoints) throws IOException {
+        synchronized (lock) {
+            if (active == null) {
+                activePath = directory.resolve(
+                        String.format("%019d%s", nextSequence++, SEGMENT_SUFFIX));
+                active = new BufferedOutputStream(Files.newOutputStream(activePath));
+            }
+            for (SignalFxProtocolBuffers.DataPoint dataPoint : dataPoints) {
+                dataPoint.writeDelimitedTo(active);
+            }
+            active.flush();
+            counterSpooled.inc(dataPoints.size());
+            if (Files.size(activePath) >= SEGMENT_BYTES) {
+                closeActive();
+            }
+            enforceLimits();
+        }
+    }
+
+    /**
+     * @return oldest segment to replay, rolling the active one if it is the only one left.
+     */
+    private Path nextReplaySegment() throws IOException {
+        synchronized (lock) {
+            enforceLimits();
+            List<Path> segments = listSegments();
+            if (segments.isEmpty()) {
+                return null;
+            }
+            Path segment = segments.get(0);
+            if (segment.equals(activePath)) {
+                closeActive();
+            }
+            return segment;
+        }
+    }
+
+    private List<SignalFxProtocolBuffers.DataPoint> readSegment(Path segment) {
+        List<SignalFxProtocolBuffers.DataPoint> dataPoints = new ArrayList<>();
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(segment))) {
+            SignalFxProtocolBuffers.DataPoint dataPoint;
+            while ((dataPoint = SignalFxProtocolBuffers.DataPoint.parseDelimitedFrom(in)) != null) {
+                dataPoints.add(dataPoint);
+            }
+        } catch (IOException e) {
+            // A crash can leave the last data point incomplete.
+            log.warn("Read {} data point(s) of damaged segment {}", dataPoints.size(), segment, e);
+        }
+        return dataPoints;
+    }
+
+    /**
+     * Replace the data points of a segment, keeping its modification time for the age limit.
+     */
+    private void rewriteSegment(Path segment, List<SignalFxProtocolBuffers.DataPoint> dataPoints) {
+        synchronized (lock) {
+            if (!Files.exists(segment)) {
+                // Dropped by the limits in the meantime.
+                return;
+            }
+            Path tempPath = segment.resolveSibling(segment.getFileName() + ".tmp");
+            try {
+                FileTime lastModified = Files.getLastModifiedTime(segment);
+                try (OutputStream out = new BufferedOutputStream(
+                        Files.newOutputStream(tempPath))) {
+                    for (SignalFxProtocolBuffers.DataPoint dataPoint : dataPoints) {
+                        dataPoint.writeDelimitedTo(out);
+                    }
+                }
+                Files.move(tempPath, segment, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                Files.setLastModifiedTime(segment, lastModified);
+            } catch (IOException e) {
+                log.error("Failed to rewrite segment {}", segment, e);
+            }
+            updateSpoolBytes();
+        }
+    }
+
+    /**
+     * Drop segments older than the age limit, then oldest segments beyond the disk cap.
+     */
+    private void enforceLimits() throws IOException {
+        List<Path> segments = listSegments();
+        long oldest = System.currentTimeMillis() - maxAgeMillis;
+        long total = 0;
+        List<Long> sizes = new ArrayList<>(segments.size());
+        for (Path segment : segments) {
+            long size = Files.size(segment);
+            sizes.add(size);
+            total += size;
+        }
+        for (int i = 0; i < segments.size(); i++) {
+            Path segment = segments.get(i);
+            if (total > maxBytes ||
+                    Files.getLastModifiedTime(segment).toMillis() < oldest) {
+                if (segment.equals(activePath)) {
+                    closeActive();
+                }
+                log.warn("Dropping spooled segment {}", segment);
+                deleteQuietly(segment);
+                counterSegmentsDropped.inc();
+                total -= sizes.get(i);
+            }
+        }
+        spoolBytes = total;
+    }
+
+    private void updateSpoolBytes() {
+        long total = 0;
+        try {
+            for (Path segment : listSegments()) {
+                total += Files.size(segment);
+            }
+        } catch (IOException e) {
+            log.warn("Failed to read spool size", e);
+        }
+        spoolBytes = total;
+    }
+
+    private List<Path> listSegments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream =
+                     Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path segment : stream) {
+                segments.add(segment);
+            }
+        }
+        // Names are zero padded sequence numbers, so name order is spool order.
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private void closeActive() {
+        if (active != null) {
+            try {
+                active.close();
+            } catch (IOException e) {
+                log.error("Failed to close segment {}", activePath, e);
+            }
+            active = null;
+            activePath = null;
+        }
+    }
+
+    private static long sequenceOf(Path segment) {
+        String name = segment.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.error("Failed to delete {}", path, e);
+        }
+    }
+}
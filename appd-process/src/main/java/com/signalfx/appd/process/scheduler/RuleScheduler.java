@@ -0,0 +1,232 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.process.scheduler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.signalfx.appd.process.info.AppInfo;
+import com.signalfx.appd.process.info.MetricInfo;
+import com.signalfx.appd.process.planner.PlannedQuery;
+import com.signalfx.appd.process.planner.QueryPlanner;
+import com.signalfx.appd.process.status.StatusType;
+
+/**
+ * RuleScheduler decides which {@link MetricInfo} rules are due at each minute, so every rule is
+ * queried at its own interval.
+ *
+ * Runs are aligned to minute boundaries, counted in minutes since epoch. Queries of rules sharing
+ * an interval are given different offsets within it in configuration order, so for example rules
+ * queried every 10 minutes are spread over the 10 minutes instead of all running at once. Rules
+ * coalesced into one query by the {@link QueryPlanner} share its offset, so they are always due
+ * together and the query does not change from one run to the next.
+ *
+ * Rules are kept in a timing wheel with a slot per minute, along with their configuration order,
+ * so advancing the scheduler only looks at the rules due in the minutes that passed. When a rule
+ * is picked up a full interval or more after it was due, a run has been skipped and the rule is
+ * reported as overrun.
+ */
+public class RuleScheduler {
+
+    protected static final Logger log = LoggerFactory.getLogger(RuleScheduler.class);
+
+    private static final int WHEEL_SIZE = 64;
+
+    private static final Comparator<ScheduledRule> CONFIG_ORDER = new Comparator<ScheduledRule>() {
+        @Override
+        public int compare(ScheduledRule rule1, ScheduledRule rule2) {
+            return Integer.compare(rule1.order, rule2.order);
+        }
+    };
+
+    private final List<ScheduledRule> rules = new ArrayList<>();
+    private final List<List<ScheduledRule>> wheel = new ArrayList<>(WHEEL_SIZE);
+    private final int defaultInterval;
+
+    private final Counter counterRuleOverrun;
+
+    private long lastMinute = Long.MIN_VALUE;
+
+    /**
+     * Schedule every rule on its own.
+     *
+     * @param apps
+     *         apps with the rules to schedule.
+     * @param defaultInterval
+     *         minutes between queries of rules without their own interval.
+     * @param metricRegistry
+     *         registry of scheduling metrics.
+     */
+    public RuleScheduler(List<AppInfo> apps, int defaultInterval, MetricRegistry metricRegistry) {
+        this(apps, defaultInterval, new QueryPlanner(), metricRegistry);
+    }
+
+    /**
+     * @param apps
+     *         apps with the rules to schedule.
+     * @param defaultInterval
+     *         minutes between queries of rules without their own interval.
+     * @param queryPlanner
+     *         planner of the queries, whose rules are scheduled together.
+     * @param metricRegistry
+     *         registry of scheduling metrics.
+     */
+    public RuleScheduler(List<AppInfo> apps, int defaultInterval, QueryPlanner queryPlanner,
+                         MetricRegistry metricRegistry) {
+        this.defaultInterval = Math.max(1, defaultInterval);
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel.add(new ArrayList<ScheduledRule>());
+        }
+        Map<Integer, Integer> offsets = new HashMap<>();
+        for (AppInfo app : apps) {
+            Map<MetricInfo, ScheduledRule> appRules = new IdentityHashMap<>();
+            for (MetricInfo metricInfo : app.metrics) {
+                ScheduledRule rule = new ScheduledRule(app, metricInfo,
+                        getInterval(metricInfo), rules.size());
+                rules.add(rule);
+                appRules.put(metricInfo, rule);
+            }
+            // Rules of a query share an interval, and are given the offset of the query.
+            for (PlannedQuery plannedQuery : queryPlanner.plan(app)) {
+                int interval = getInterval(plannedQuery.metricInfos.get(0));
+                Integer offset = offsets.get(interval);
+                offset = offset == null ? 0 : offset;
+                offsets.put(interval, offset + 1);
+                for (MetricInfo metricInfo : plannedQuery.metricInfos) {
+                    appRules.get(metricInfo).offset = offset % interval;
+                }
+            }
+        }
+
+        counterRuleOverrun = metricRegistry.counter(StatusType.ruleOverrun.name());
+    }
+
+    /**
+     * @param metricInfo
+     *         scheduled rule.
+     * @return minutes between queries of the rule.
+     */
+    public int getInterval(MetricInfo metricInfo) {
+        return metricInfo.interval > 0 ? metricInfo.interval : defaultInterval;
+    }
+
+    /**
+     * @param apps
+     *         apps returned by {@link #advance(long)}.
+     * @return largest interval in minutes among the rules of the apps.
+     */
+    public int getMaxInterval(List<AppInfo> apps) {
+        int maxInterval = 0;
+        for (AppInfo app : apps) {
+            for (MetricInfo metricInfo : app.metrics) {
+                maxInterval = Math.max(maxInterval, getInterval(metricInfo));
+            }
+        }
+        return maxInterval;
+    }
+
+    /**
+     * Advance the scheduler to the given minute and collect the rules due since the last call.
+     * The first call only returns the rules whose offset falls on that minute.
+     *
+     * @param minute
+     *         current minute since epoch.
+     * @return apps with only their rules that are due, in configuration order, apps without
+     * rules due are left out.
+     */
+    public List<AppInfo> advance(long minute) {
+        if (lastMinute == Long.MIN_VALUE) {
+            for (ScheduledRule rule : rules) {
+                schedule(rule, minute - 1);
+            }
+            lastMinute = minute - 1;
+        }
+        if (minute <= lastMinute) {
+            return new ArrayList<>();
+        }
+
+        List<ScheduledRule> rescheduled = new ArrayList<>();
+        // Every slot is looked at most once, even after a long pause.
+        long from = Math.max(lastMinute + 1, minute - WHEEL_SIZE + 1);
+        for (long m = from; m <= minute; m++) {
+            Iterator<ScheduledRule> iterator = wheel.get(slot(m)).iterator();
+            while (iterator.hasNext()) {
+                ScheduledRule rule = iterator.next();
+                if (rule.dueMinute > minute) {
+                    // Due in a later turn of the wheel.
+                    continue;
+                }
+                iterator.remove();
+                if (minute - rule.dueMinute >= rule.interval) {
+                    counterRuleOverrun.inc();
+                    log.warn("Rule \"{}\" of app \"{}\" is {} minute(s) late and overran its {} " +
+                                    "minute(s) interval", rule.metricInfo.metricPathQuery,
+                            rule.app.name, minute - rule.dueMinute, rule.interval);
+                }
+                rescheduled.add(rule);
+            }
+        }
+        lastMinute = minute;
+
+        Collections.sort(rescheduled, CONFIG_ORDER);
+        List<AppInfo> dueApps = new ArrayList<>();
+        AppInfo app = null;
+        AppInfo dueApp = null;
+        for (ScheduledRule rule : rescheduled) {
+            if (rule.app != app) {
+                app = rule.app;
+                dueApp = new AppInfo(app.name, new ArrayList<MetricInfo>());
+                dueApps.add(dueApp);
+            }
+            dueApp.metrics.add(rule.metricInfo);
+            schedule(rule, minute);
+        }
+        return dueApps;
+    }
+
+    /**
+     * Put the rule in the wheel at its first aligned minute after the given one.
+     */
+    private void schedule(ScheduledRule rule, long after) {
+        long next = after + 1;
+        long remainder = ((next % rule.interval) + rule.interval) % rule.interval;
+        next += (rule.offset - remainder + rule.interval) % rule.interval;
+        rule.dueMinute = next;
+        wheel.get(slot(next)).add(rule);
+    }
+
+    private static int slot(long minute) {
+        return (int) (minute & (WHEEL_SIZE - 1));
+    }
+
+    /**
+     * Rule with its place in the schedule.
+     */
+    private static class ScheduledRule {
+        private final AppInfo app;
+        private final MetricInfo metricInfo;
+        private final int interval;
+        private final int order;
+        private int offset;
+        private long dueMinute;
+
+        private ScheduledRule(AppInfo app, MetricInfo metricInfo, int interval, int order) {
+            this.app = app;
+            this.metricInfo = metricInfo;
+            this.interval = interval;
+            this.order = order;
+        }
+    }
+}
@@ -12,5 +12,34 @@ public enum StatusType {
     mtsReported,
     mtsEmpty,
     dataPointsReported,
-    appdRequestFailure
+    appdRequestFailure,
+    mtsLive,
+    mtsEvicted,
+    reportQueueDepth,
+    reportChunkLatency,
+    reportBatchLatency,
+    reportBatchBytes,
+    reportBatchBytesSent,
+    reportBatchFailure,
+    dataPointsSpooled,
+    dataPointsReplayed,
+    spoolSegmentsDropped,
+    spoolBytes,
+    ruleOverrun,
+    appdRequestSaved,
+    appdConcurrencyLimit,
+    appdInFlight,
+    appdQueueWait,
+    appdRequestShortCircuited,
+    appdRequestRetries,
+    appdRetryBudgetExhausted,
+    appdCircuitState,
+    appdCircuitOpened,
+    appdQuerySplit,
+    discoveryBrowses,
+    discoveredMetrics,
+    mtsExcluded,
+    appdBytesReceived,
+    appdBytesDecoded,
+    appdRecordingsDropped
 }
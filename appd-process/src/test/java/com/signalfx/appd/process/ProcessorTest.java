@@ -4,6 +4,7 @@
 package com.signalfx.appd.process;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 
 import java.util.LinkedList;
 import java.util.List;
@@ -11,7 +12,9 @@ import java.util.List;
 import org.junit.Test;
 
 import com.google.common.collect.Lists;
+import com.signalfx.appd.client.model.MetricData;
 import com.signalfx.appd.client.model.MetricValue;
+import com.signalfx.appd.process.info.MetricInfo;
 import com.signalfx.appd.process.model.MetricTimeSeries;
 import com.signalfx.appd.process.processor.Processor;
 import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers;
@@ -31,7 +34,8 @@ public class ProcessorTest {
         Processor processor = new Processor();
 
         // Process normal data
-        List<SignalFxProtocolBuffers.DataPoint> dataPoints = processor.process(mts1, metricValues);
+        List<SignalFxProtocolBuffers.DataPoint> dataPoints =
+                processor.process(1L, mts1, metricValues);
 
         List<SignalFxProtocolBuffers.DataPoint> expectedDataPoints =
                 Lists.newArrayList(
@@ -45,16 +49,114 @@ public class ProcessorTest {
         // Same mts, overlapping timestamp
         metricValues.add(new MetricValue(0, 6, 0, 0, 0, 3));
         metricValues.add(new MetricValue(0, 4, 0, 0, 0, 4));
-        dataPoints = processor.process(mts1, metricValues);
+        dataPoints = processor.process(1L, mts1, metricValues);
         expectedDataPoints = Lists.newArrayList(getDataPoint("1", 4, 4));
         assertEquals(expectedDataPoints, dataPoints);
 
         // Different mts, overlap
-        dataPoints = processor.process(mts2, metricValues);
+        dataPoints = processor.process(2L, mts2, metricValues);
         expectedDataPoints = Lists.newArrayList(getDataPoint("2", 3, 6), getDataPoint("2", 4, 4));
         assertEquals(expectedDataPoints, dataPoints);
     }
 
+    @Test
+    public void testLateDataPoints() {
+        MetricTimeSeries mts1 = new MetricTimeSeries("1", null);
+        Processor processor = new Processor();
+
+        assertEquals(Lists.newArrayList(getDataPoint("1", minutes(1), 1),
+                        getDataPoint("1", minutes(3), 3)),
+                processor.process(1L, mts1, getMetricValues(1, 3)));
+
+        // Minute 2 filled in late is sent once, minute 3 is not sent again.
+        assertEquals(Lists.newArrayList(getDataPoint("1", minutes(2), 2),
+                        getDataPoint("1", minutes(4), 4)),
+                processor.process(1L, mts1, getMetricValues(2, 3, 4)));
+        assertEquals(0, processor.process(1L, mts1, getMetricValues(1, 2, 3, 4)).size());
+
+        // Only minutes within the window of the latest are accepted late.
+        processor.process(1L, mts1, getMetricValues(100));
+        int oldest = 100 - Processor.WINDOW_MINUTES + 1;
+        assertEquals(Lists.newArrayList(getDataPoint("1", minutes(oldest), oldest)),
+                processor.process(1L, mts1, getMetricValues(oldest - 1, oldest)));
+    }
+
+    @Test
+    public void testSweep() {
+        List<MetricValue> metricValues = Lists.newArrayList(new MetricValue(0, 9, 0, 0, 0, 1));
+        MetricTimeSeries mts1 = new MetricTimeSeries("1", null);
+
+        Processor processor = new Processor();
+        processor.setSeriesExpiry(2);
+        assertEquals(1, processor.process(1L, mts1, metricValues).size());
+        assertEquals(0, processor.sweep());
+
+        // Seen without new values, still kept.
+        assertEquals(0, processor.process(1L, mts1, metricValues).size());
+        assertEquals(0, processor.sweep());
+        assertEquals(0, processor.sweep());
+        assertEquals(1, processor.size());
+
+        // Not seen for 2 cycles, forgotten and sent again.
+        assertEquals(1, processor.sweep());
+        assertEquals(0, processor.size());
+        assertEquals(1, processor.process(1L, mts1, metricValues).size());
+    }
+
+    @Test
+    public void testSweepInterval() {
+        List<MetricValue> metricValues = Lists.newArrayList(new MetricValue(0, 9, 0, 0, 0, 1));
+        MetricTimeSeries mts1 = new MetricTimeSeries("1", null);
+
+        Processor processor = new Processor();
+        processor.setSeriesExpiry(2);
+        assertEquals(1, processor.process(1L, mts1, metricValues, 10).size());
+
+        // Series of a rule queried every 10 minutes is kept for 2 intervals, 20 minutes.
+        assertEquals(0, processor.sweep(20));
+        assertEquals(1, processor.size());
+        assertEquals(1, processor.sweep());
+        assertEquals(0, processor.size());
+    }
+
+    @Test
+    public void testSeriesKey() throws Exception {
+        MetricInfo metricInfo = new MetricInfo("A|B|C", "b|-", null);
+        long ruleKey = Processor.ruleKey("app", metricInfo);
+        assertEquals(ruleKey, Processor.ruleKey("app", new MetricInfo("A|B|C", "b|-", null)));
+        assertNotEquals(ruleKey, Processor.ruleKey("app2", metricInfo));
+        assertNotEquals(ruleKey, Processor.ruleKey("app", new MetricInfo("A|B|C", "-|c", null)));
+
+        MetricData metricData1 = new MetricData("ONE_MIN", 1, "C", "A|B|C");
+        MetricData metricData2 = new MetricData("ONE_MIN", 2, "C", "A|B|C");
+        assertEquals(Processor.seriesKey(ruleKey, metricData1),
+                Processor.seriesKey(ruleKey, new MetricData("ONE_MIN", 1, "C", "A|X|C")));
+        assertNotEquals(Processor.seriesKey(ruleKey, metricData1),
+                Processor.seriesKey(ruleKey, metricData2));
+
+        // No metric id, the metric path is used.
+        MetricData noId = new MetricData("ONE_MIN", 0, "C", "A|B|C");
+        assertEquals(Processor.seriesKey(ruleKey, noId),
+                Processor.seriesKey(ruleKey, new MetricData("ONE_MIN", 0, "C", "A|B|C")));
+        assertNotEquals(Processor.seriesKey(ruleKey, noId),
+                Processor.seriesKey(ruleKey, new MetricData("ONE_MIN", 0, "C", "A|X|C")));
+    }
+
+    private static long minutes(int minutes) {
+        return minutes * 60000L;
+    }
+
+    /**
+     * Values of the given minutes with the minute as value.
+     */
+    private static List<MetricValue> getMetricValues(int... minutes) {
+        List<MetricValue> metricValues = new LinkedList<>();
+        for (int minute : minutes) {
+            metricValues.add(new MetricValue(0, minute, 0, 0, 0, minutes(minute)));
+        }
+        return metricValues;
+    }
+
     private SignalFxProtocolBuffers.DataPoint getDataPoint(String metricName, long timestamp,
                                                            long value) {
         return SignalFxProtocolBuffers.DataPoint
@@ -7,21 +7,42 @@ import static org.junit.Assert.assertEquals;
 
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.Test;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.inject.AbstractModule;
 import com.google.inject.Guice;
+import com.google.inject.name.Names;
+import com.signalfx.appd.client.MetricDataHandler;
+import com.signalfx.appd.client.MetricDataQuery;
 import com.signalfx.appd.client.MetricDataRequest;
+import com.signalfx.appd.client.exception.CircuitOpenException;
 import com.signalfx.appd.client.exception.RequestException;
+import com.signalfx.appd.client.exception.ResponseTooLargeException;
 import com.signalfx.appd.client.exception.UnauthorizedException;
 import com.signalfx.appd.client.model.MetricData;
+import com.signalfx.appd.client.model.MetricTreeNode;
 import com.signalfx.appd.client.model.MetricValue;
 import com.signalfx.appd.process.info.AppInfo;
 import com.signalfx.appd.process.info.MetricInfo;
+import com.signalfx.appd.process.planner.QueryPlanner;
+import com.signalfx.appd.process.processor.Processor;
+import com.signalfx.appd.process.processor.QueryWatermarks;
 import com.signalfx.appd.process.reporter.Reporter;
 import com.signalfx.appd.process.status.StatusType;
 import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers;
@@ -39,8 +60,9 @@ public class ReportAppDTest {
         MetricData metricData = new MetricData("", 0L, "name", "A|B");
         metricData.metricValues.add(new MetricValue(1, 1, 1, 1, 1, 2));
 
-        MetricDataRequest request = Mockito.mock(MetricDataRequest.class);
-        Mockito.when(request.get()).thenReturn(Collections.singletonList(metricData));
+        MetricDataRequest request = mockRequest();
+        Mockito.when(request.get(Mockito.any(MetricDataQuery.class))).thenReturn(
+                Collections.singletonList(metricData));
 
         Reporter reporter = Mockito.mock(Reporter.class);
 
@@ -54,7 +76,7 @@ public class ReportAppDTest {
         Map<String, String> expectedDimensions = getExpectedDimensions();
         expectedDimensions.put("C", "A");
 
-        Mockito.verify(request, Mockito.times(1)).get();
+        Mockito.verify(request, Mockito.times(1)).get(Mockito.any(MetricDataQuery.class));
         Mockito.verify(reporter, Mockito.times(1)).report(
                 Collections.singletonList(getDataPoint("B", 2, 1, expectedDimensions)));
         assertEquals(1,
@@ -75,8 +97,9 @@ public class ReportAppDTest {
         AppInfo app = new AppInfo("any");
         app.metrics.add(new MetricInfo("A|B", "C", null));
 
-        MetricDataRequest request = Mockito.mock(MetricDataRequest.class);
-        Mockito.when(request.get()).thenThrow(new RequestException(""));
+        MetricDataRequest request = mockRequest();
+        Mockito.when(request.get(Mockito.any(MetricDataQuery.class))).thenThrow(
+                new RequestException(""));
 
         Reporter reporter = Mockito.mock(Reporter.class);
 
@@ -88,7 +111,7 @@ public class ReportAppDTest {
         reportAppD.perform(Collections.singletonList(app),
                 MetricDataRequest.TimeParams.beforeNow(10L));
 
-        Mockito.verify(request, Mockito.times(1)).get();
+        Mockito.verify(request, Mockito.times(1)).get(Mockito.any(MetricDataQuery.class));
         Mockito.verify(reporter, Mockito.never()).report(Mockito.anyList());
         assertEquals(0,
                 metricRegistry.counter(StatusType.dataPointsReported.name()).getCount());
@@ -100,6 +123,34 @@ public class ReportAppDTest {
                 metricRegistry.counter(StatusType.appdRequestFailure.name()).getCount());
     }
 
+    @Test
+    /**
+     * Queries are skipped while the AppDynamics controller is unhealthy.
+     */
+    public void testMetricRequestShortCircuited() throws Exception {
+        AppInfo app = new AppInfo("any");
+        app.metrics.add(new MetricInfo("A|B", "C", null));
+        app.metrics.add(new MetricInfo("A|D", "C", null));
+
+        MetricDataRequest request = mockRequest();
+        Mockito.when(request.get(Mockito.any(MetricDataQuery.class))).thenThrow(
+                new CircuitOpenException(""));
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+
+        ReportAppD reportAppD = Guice.createInjector(
+                new AppDReportTestModule(request, Mockito.mock(Reporter.class), metricRegistry))
+                .getInstance(ReportAppD.class);
+        reportAppD.perform(Collections.singletonList(app),
+                MetricDataRequest.TimeParams.beforeNow(10L));
+
+        Mockito.verify(request, Mockito.times(2)).get(Mockito.any(MetricDataQuery.class));
+        assertEquals(2,
+                metricRegistry.counter(StatusType.appdRequestShortCircuited.name()).getCount());
+        assertEquals(0,
+                metricRegistry.counter(StatusType.appdRequestFailure.name()).getCount());
+    }
+
     @Test
     /**
      * Request to AppDynamics was not authorized.
@@ -108,8 +159,9 @@ public class ReportAppDTest {
         AppInfo app = new AppInfo("any");
         app.metrics.add(new MetricInfo("A|B", "C", null));
 
-        MetricDataRequest request = Mockito.mock(MetricDataRequest.class);
-        Mockito.when(request.get()).thenThrow(new UnauthorizedException(""));
+        MetricDataRequest request = mockRequest();
+        Mockito.when(request.get(Mockito.any(MetricDataQuery.class))).thenThrow(
+                new UnauthorizedException(""));
 
         Reporter reporter = Mockito.mock(Reporter.class);
 
@@ -120,7 +172,7 @@ public class ReportAppDTest {
         reportAppD.perform(Collections.singletonList(app),
                 MetricDataRequest.TimeParams.beforeNow(10L));
 
-        Mockito.verify(request, Mockito.times(1)).get();
+        Mockito.verify(request, Mockito.times(1)).get(Mockito.any(MetricDataQuery.class));
         Mockito.verify(reporter,
                 Mockito.never()).report(Mockito.anyList());
         assertEquals(0,
@@ -144,8 +196,9 @@ public class ReportAppDTest {
         MetricData metricData = new MetricData("", 0L, "name", "A|B");
         metricData.metricValues.add(new MetricValue(1, 1, 1, 1, 1, 2));
 
-        MetricDataRequest request = Mockito.mock(MetricDataRequest.class);
-        Mockito.when(request.get()).thenReturn(Collections.singletonList(metricData));
+        MetricDataRequest request = mockRequest();
+        Mockito.when(request.get(Mockito.any(MetricDataQuery.class))).thenReturn(
+                Collections.singletonList(metricData));
 
         Reporter reporter = Mockito.mock(Reporter.class);
         Mockito.doThrow(new Reporter.ReportException("Something", null))
@@ -161,7 +214,7 @@ public class ReportAppDTest {
         Map<String, String> expectedDimensions = getExpectedDimensions();
         expectedDimensions.put("C", "A");
 
-        Mockito.verify(request, Mockito.times(1)).get();
+        Mockito.verify(request, Mockito.times(1)).get(Mockito.any(MetricDataQuery.class));
         Mockito.verify(reporter, Mockito.times(1)).report(
                 Collections.singletonList(getDataPoint("B", 2, 1, expectedDimensions)));
         assertEquals(0,
@@ -184,8 +237,9 @@ public class ReportAppDTest {
 
         MetricData metricData = new MetricData("", 0L, "name", "A|B");
 
-        MetricDataRequest request = Mockito.mock(MetricDataRequest.class);
-        Mockito.when(request.get()).thenReturn(Collections.singletonList(metricData));
+        MetricDataRequest request = mockRequest();
+        Mockito.when(request.get(Mockito.any(MetricDataQuery.class))).thenReturn(
+                Collections.singletonList(metricData));
 
         Reporter reporter = Mockito.mock(Reporter.class);
 
@@ -197,7 +251,7 @@ public class ReportAppDTest {
         reportAppD.perform(Collections.singletonList(app),
                 MetricDataRequest.TimeParams.beforeNow(10L));
 
-        Mockito.verify(request, Mockito.times(1)).get();
+        Mockito.verify(request, Mockito.times(1)).get(Mockito.any(MetricDataQuery.class));
         Mockito.verify(reporter,
                 Mockito.never()).report(Mockito.anyList());
         assertEquals(0,
@@ -218,8 +272,9 @@ public class ReportAppDTest {
         AppInfo app = new AppInfo("any");
         app.metrics.add(new MetricInfo("A|B", "C", null));
 
-        MetricDataRequest request = Mockito.mock(MetricDataRequest.class);
-        Mockito.when(request.get()).thenReturn(Collections.<MetricData>emptyList());
+        MetricDataRequest request = mockRequest();
+        Mockito.when(request.get(Mockito.any(MetricDataQuery.class))).thenReturn(
+                Collections.<MetricData>emptyList());
 
         Reporter reporter = Mockito.mock(Reporter.class);
 
@@ -230,7 +285,7 @@ public class ReportAppDTest {
         reportAppD.perform(Collections.singletonList(app),
                 MetricDataRequest.TimeParams.beforeNow(10L));
 
-        Mockito.verify(request, Mockito.times(1)).get();
+        Mockito.verify(request, Mockito.times(1)).get(Mockito.any(MetricDataQuery.class));
         Mockito.verify(reporter,
                 Mockito.never()).report(Mockito.anyList());
         assertEquals(0,
@@ -243,6 +298,447 @@ public class ReportAppDTest {
                 metricRegistry.counter(StatusType.appdRequestFailure.name()).getCount());
     }
 
+    @Test
+    /**
+     * Parallel queries across apps are limited and aggregated in round-robin rule order.
+     */
+    public void testProcessParallel() throws Exception {
+        AppInfo app1 = new AppInfo("app1");
+        app1.metrics.add(new MetricInfo("A|B", "C", null));
+        app1.metrics.add(new MetricInfo("A|D", "C", null));
+        app1.metrics.add(new MetricInfo("A|E", "C", null));
+        AppInfo app2 = new AppInfo("app2");
+        app2.metrics.add(new MetricInfo("F|G", "H", null));
+
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final ListeningExecutorService executor =
+                MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+        MetricDataRequest request = Mockito.mock(MetricDataRequest.class);
+        Mockito.when(request.getAsync(Mockito.any(MetricDataQuery.class),
+                Mockito.any(MetricDataHandler.class))).thenAnswer(
+                new Answer<ListenableFuture<Void>>() {
+                    @Override
+                    public ListenableFuture<Void> answer(InvocationOnMock invocation) {
+                        final MetricDataQuery query =
+                                (MetricDataQuery) invocation.getArguments()[0];
+                        final MetricDataHandler handler =
+                                (MetricDataHandler) invocation.getArguments()[1];
+                        return executor.submit(new Callable<Void>() {
+                            @Override
+                            public Void call() throws Exception {
+                                int current = inFlight.incrementAndGet();
+                                synchronized (maxInFlight) {
+                                    maxInFlight.set(Math.max(maxInFlight.get(), current));
+                                }
+                                // Earlier queries finish last.
+                                Thread.sleep(query.metricPath.equals("A|B") ? 200 : 20);
+                                inFlight.decrementAndGet();
+                                if (query.metricPath.equals("A|E")) {
+                                    throw new RequestException("");
+                                }
+                                MetricData metricData = new MetricData("", 0L, "name",
+                                        query.metricPath);
+                                metricData.metricValues.add(new MetricValue(1, 1, 1, 1, 1, 2));
+                                handler.handle(metricData);
+                                return null;
+                            }
+                        });
+                    }
+                });
+
+        Reporter reporter = Mockito.mock(Reporter.class);
+        MetricRegistry metricRegistry = new MetricRegistry();
+
+        ReportAppD reportAppD = Guice.createInjector(
+                new AppDReportTestModule(request, reporter, metricRegistry)).getInstance(
+                ReportAppD.class);
+        reportAppD.setConcurrency(2);
+        reportAppD.perform(Lists.newArrayList(app1, app2),
+                MetricDataRequest.TimeParams.beforeNow(1L));
+        executor.shutdown();
+
+        Map<String, String> dimensions1 = getExpectedDimensions();
+        dimensions1.put("C", "A");
+        Map<String, String> dimensions2 = getExpectedDimensions();
+        dimensions2.put("H", "F");
+
+        assertEquals(2, maxInFlight.get());
+        Mockito.verify(reporter, Mockito.times(1)).report(Lists.newArrayList(
+                getDataPoint("B", 2, 1, dimensions1),
+                getDataPoint("G", 2, 1, dimensions2),
+                getDataPoint("D", 2, 1, dimensions1)));
+        assertEquals(3,
+                metricRegistry.counter(StatusType.dataPointsReported.name()).getCount());
+        assertEquals(3,
+                metricRegistry.counter(StatusType.mtsReported.name()).getCount());
+        assertEquals(1,
+                metricRegistry.counter(StatusType.appdRequestFailure.name()).getCount());
+    }
+
+    @Test
+    /**
+     * Metric data are processed while the response is read, even beyond what can wait.
+     */
+    public void testProcessStreamed() throws Exception {
+        AppInfo app = new AppInfo("any");
+        app.metrics.add(new MetricInfo("A|*", "C", null));
+
+        final int count = 2500;
+        final ListeningExecutorService executor =
+                MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor());
+        MetricDataRequest request = Mockito.mock(MetricDataRequest.class);
+        Mockito.when(request.getAsync(Mockito.any(MetricDataQuery.class),
+                Mockito.any(MetricDataHandler.class))).thenAnswer(
+                new Answer<ListenableFuture<Void>>() {
+                    @Override
+                    public ListenableFuture<Void> answer(InvocationOnMock invocation) {
+                        final MetricDataHandler handler =
+                                (MetricDataHandler) invocation.getArguments()[1];
+                        return executor.submit(new Callable<Void>() {
+                            @Override
+                            public Void call() throws Exception {
+                                for (int i = 0; i < count; i++) {
+                                    MetricData metricData = new MetricData("", 0L, "name",
+                                            "A|B" + i);
+                                    metricData.metricValues.add(
+                                            new MetricValue(1, 1, 1, 1, 1, 2));
+                                    handler.handle(metricData);
+                                }
+                                return null;
+                            }
+                        });
+                    }
+                });
+
+        Reporter reporter = Mockito.mock(Reporter.class);
+        MetricRegistry metricRegistry = new MetricRegistry();
+
+        ReportAppD reportAppD = Guice.createInjector(
+                new AppDReportTestModule(request, reporter, metricRegistry)).getInstance(
+                ReportAppD.class);
+        reportAppD.perform(Collections.singletonList(app),
+                MetricDataRequest.TimeParams.beforeNow(1L));
+        executor.shutdown();
+
+        assertEquals(count,
+                metricRegistry.counter(StatusType.mtsReported.name()).getCount());
+        assertEquals(0,
+                metricRegistry.counter(StatusType.appdRequestFailure.name()).getCount());
+    }
+
+    @Test
+    /**
+     * Coalesced query results are routed back to the rules they match.
+     */
+    public void testProcessCoalesced() throws Exception {
+        AppInfo app = new AppInfo("any");
+        app.metrics.add(new MetricInfo("A|B", "C", null));
+        app.metrics.add(new MetricInfo("A|D", "E", null));
+
+        MetricData metricData1 = new MetricData("", 0L, "name", "A|B");
+        metricData1.metricValues.add(new MetricValue(1, 1, 1, 1, 1, 2));
+        MetricData metricData2 = new MetricData("", 0L, "name", "A|D");
+        metricData2.metricValues.add(new MetricValue(1, 3, 1, 1, 1, 2));
+        MetricData metricData3 = new MetricData("", 0L, "name", "A|X");
+        metricData3.metricValues.add(new MetricValue(1, 5, 1, 1, 1, 2));
+
+        MetricDataRequest request = mockRequest();
+        Mockito.when(request.get(Mockito.any(MetricDataQuery.class))).thenReturn(
+                Lists.newArrayList(metricData1, metricData2, metricData3));
+
+        Reporter reporter = Mockito.mock(Reporter.class);
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+
+        ReportAppD reportAppD = Guice.createInjector(
+                new AppDReportTestModule(request, reporter, metricRegistry),
+                new AbstractModule() {
+                    @Override
+                    protected void configure() {
+                        bindConstant().annotatedWith(Names.named(QueryPlanner.COALESCE_DEPTH))
+                                .to(1);
+                    }
+                }).getInstance(ReportAppD.class);
+        reportAppD.perform(Collections.singletonList(app),
+                MetricDataRequest.TimeParams.beforeNow(1L));
+
+        Map<String, String> dimensions1 = getExpectedDimensions();
+        dimensions1.put("C", "A");
+        Map<String, String> dimensions2 = getExpectedDimensions();
+        dimensions2.put("E", "A");
+
+        Mockito.verify(request, Mockito.times(1)).get(
+                new MetricDataQuery("any", "A|*", MetricDataRequest.TimeParams.beforeNow(1L)));
+        Mockito.verify(reporter, Mockito.times(1)).report(Lists.newArrayList(
+                getDataPoint("B", 2, 1, dimensions1),
+                getDataPoint("D", 2, 3, dimensions2)));
+        assertEquals(2,
+                metricRegistry.counter(StatusType.mtsReported.name()).getCount());
+    }
+
+    @Test
+    /**
+     * Queries that received data only fetch from their watermark on the next cycle.
+     */
+    public void testProcessFromWatermark() throws Exception {
+        final long minute = 60000L;
+        AppInfo app = new AppInfo("any");
+        app.metrics.add(new MetricInfo("A|B", "C", null));
+
+        MetricData metricData = new MetricData("", 0L, "name", "A|B");
+        metricData.metricValues.add(new MetricValue(1, 1, 1, 1, 1, 100 * minute));
+        metricData.metricValues.add(new MetricValue(1, 2, 1, 1, 1, 101 * minute));
+
+        MetricDataRequest request = mockRequest();
+        Mockito.when(request.get(Mockito.any(MetricDataQuery.class))).thenReturn(
+                Collections.singletonList(metricData));
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+        ReportAppD reportAppD = new ReportAppD(request, new Processor(),
+                Mockito.mock(Reporter.class), new QueryPlanner(), new QueryWatermarks(),
+                metricRegistry) {
+            @Override
+            protected long currentTimeMillis() {
+                return 103 * minute;
+            }
+        };
+        reportAppD.perform(Collections.singletonList(app),
+                MetricDataRequest.TimeParams.beforeNow(5L));
+        reportAppD.perform(Collections.singletonList(app),
+                MetricDataRequest.TimeParams.beforeNow(5L));
+        reportAppD.setOverlap(0);
+        reportAppD.perform(Collections.singletonList(app),
+                MetricDataRequest.TimeParams.beforeNow(5L));
+        // Overlap reaching further back than maximum lookback is cut off.
+        reportAppD.setOverlap(5);
+        reportAppD.setMaxLookback(1);
+        reportAppD.perform(Collections.singletonList(app),
+                MetricDataRequest.TimeParams.beforeNow(5L));
+
+        Mockito.verify(request, Mockito.times(1)).get(new MetricDataQuery("any", "A|B",
+                MetricDataRequest.TimeParams.beforeNow(5L)));
+        Mockito.verify(request, Mockito.times(1)).get(new MetricDataQuery("any", "A|B",
+                MetricDataRequest.TimeParams.betweenTime(101 * minute, 103 * minute)));
+        Mockito.verify(request, Mockito.times(2)).get(new MetricDataQuery("any", "A|B",
+                MetricDataRequest.TimeParams.betweenTime(102 * minute, 103 * minute)));
+        // Overlapping data already sent is still filtered by the processor.
+        assertEquals(1,
+                metricRegistry.counter(StatusType.mtsReported.name()).getCount());
+        assertEquals(3,
+                metricRegistry.counter(StatusType.mtsEmpty.name()).getCount());
+    }
+
+    @Test
+    /**
+     * Queries of data rolled up into coarse buckets are skipped until a new bucket is complete.
+     */
+    public void testProcessCoarseFrequency() throws Exception {
+        final long minute = 60000L;
+        AppInfo app = new AppInfo("any");
+        app.metrics.add(new MetricInfo("A|B", "C", null));
+
+        MetricData metricData = new MetricData("TEN_MIN", 0L, "name", "A|B");
+        metricData.metricValues.add(new MetricValue(1, 1, 1, 1, 1, 100 * minute));
+        metricData.metricValues.add(new MetricValue(1, 2, 1, 1, 1, 110 * minute));
+
+        MetricDataRequest request = mockRequest();
+        Mockito.when(request.get(Mockito.any(MetricDataQuery.class))).thenReturn(
+                Collections.singletonList(metricData));
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+        final AtomicLong now = new AtomicLong(121 * minute);
+        ReportAppD reportAppD = new ReportAppD(request, new Processor(),
+                Mockito.mock(Reporter.class), new QueryPlanner(), new QueryWatermarks(),
+                metricRegistry) {
+            @Override
+            protected long currentTimeMillis() {
+                return now.get();
+            }
+        };
+        reportAppD.perform(Collections.singletonList(app),
+                MetricDataRequest.TimeParams.beforeNow(15L));
+        // Bucket from 120 is not complete yet.
+        now.set(125 * minute);
+        reportAppD.perform(Collections.singletonList(app),
+                MetricDataRequest.TimeParams.beforeNow(15L));
+        now.set(130 * minute);
+        reportAppD.perform(Collections.singletonList(app),
+                MetricDataRequest.TimeParams.beforeNow(15L));
+
+        Mockito.verify(request, Mockito.times(2)).get(Mockito.any(MetricDataQuery.class));
+        Mockito.verify(request, Mockito.times(1)).get(new MetricDataQuery("any", "A|B",
+                MetricDataRequest.TimeParams.beforeNow(15L)));
+        Mockito.verify(request, Mockito.times(1)).get(new MetricDataQuery("any", "A|B",
+                MetricDataRequest.TimeParams.betweenTime(120 * minute, 130 * minute)));
+        assertEquals(1,
+                metricRegistry.counter(StatusType.appdRequestSaved.name()).getCount());
+    }
+
+    @Test
+    /**
+     * Queries whose response is too large are split and stay split in later cycles.
+     */
+    public void testProcessSplit() throws Exception {
+        AppInfo app = new AppInfo("any");
+        app.metrics.add(new MetricInfo("A|*|C", "a|b", null));
+
+        final MetricData metricDataX = new MetricData("", 0L, "name", "A|X|C");
+        metricDataX.metricValues.add(new MetricValue(1, 1, 1, 1, 1, 2));
+        final MetricData metricDataY = new MetricData("", 0L, "name", "A|Y|C");
+        metricDataY.metricValues.add(new MetricValue(1, 3, 1, 1, 1, 2));
+
+        final List<String> metricPaths = Lists.newArrayList();
+        MetricDataRequest request = mockRequest();
+        Mockito.when(request.get(Mockito.any(MetricDataQuery.class))).thenAnswer(
+                new Answer<List<MetricData>>() {
+                    @Override
+                    public List<MetricData> answer(InvocationOnMock invocation)
+                            throws Throwable {
+                        String metricPath =
+                                ((MetricDataQuery) invocation.getArguments()[0]).metricPath;
+                        metricPaths.add(metricPath);
+                        switch (metricPath) {
+                            case "A|X|C":
+                                return Collections.singletonList(metricDataX);
+                            case "A|Y|C":
+                                return Collections.singletonList(metricDataY);
+                            default:
+                                throw new ResponseTooLargeException("too large");
+                        }
+                    }
+                });
+        Mockito.when(request.browse("any", "A")).thenReturn(Lists.newArrayList(
+                new MetricTreeNode("X", MetricTreeNode.FOLDER),
+                new MetricTreeNode("Y", MetricTreeNode.FOLDER)));
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+        ReportAppD reportAppD = Guice.createInjector(
+                new AppDReportTestModule(request, Mockito.mock(Reporter.class), metricRegistry))
+                .getInstance(ReportAppD.class);
+        reportAppD.perform(Collections.singletonList(app),
+                MetricDataRequest.TimeParams.beforeNow(1L));
+        reportAppD.perform(Collections.singletonList(app),
+                MetricDataRequest.TimeParams.beforeNow(1L));
+
+        assertEquals(Lists.newArrayList("A|*|C", "A|X|C", "A|Y|C", "A|X|C", "A|Y|C"),
+                metricPaths);
+        Mockito.verify(request, Mockito.times(1)).browse("any", "A");
+        assertEquals(2,
+                metricRegistry.counter(StatusType.mtsReported.name()).getCount());
+        assertEquals(1,
+                metricRegistry.counter(StatusType.appdQuerySplit.name()).getCount());
+        assertEquals(0,
+                metricRegistry.counter(StatusType.appdRequestFailure.name()).getCount());
+    }
+
+    @Test
+    /**
+     * Metric paths excluded by a rule are dropped before processing.
+     */
+    public void testProcessExcluded() throws Exception {
+        AppInfo app = new AppInfo("any");
+        app.metrics.add(new MetricInfo("A|*", "C", null, null,
+                Collections.singletonList("*|X*")));
+
+        MetricData metricData1 = new MetricData("", 0L, "name", "A|B");
+        metricData1.metricValues.add(new MetricValue(1, 1, 1, 1, 1, 2));
+        MetricData metricData2 = new MetricData("", 0L, "name", "A|X1");
+        metricData2.metricValues.add(new MetricValue(1, 3, 1, 1, 1, 2));
+
+        MetricDataRequest request = mockRequest();
+        Mockito.when(request.get(Mockito.any(MetricDataQuery.class))).thenReturn(
+                Lists.newArrayList(metricData1, metricData2));
+
+        Reporter reporter = Mockito.mock(Reporter.class);
+        MetricRegistry metricRegistry = new MetricRegistry();
+        Processor processor = new Processor();
+        ReportAppD reportAppD = new ReportAppD(request, processor, reporter, new QueryPlanner(),
+                new QueryWatermarks(), metricRegistry);
+        reportAppD.perform(Collections.singletonList(app),
+                MetricDataRequest.TimeParams.beforeNow(1L));
+
+        Map<String, String> dimensions = getExpectedDimensions();
+        dimensions.put("C", "A");
+        Mockito.verify(reporter, Mockito.times(1)).report(
+                Collections.singletonList(getDataPoint("B", 2, 1, dimensions)));
+        assertEquals(1, processor.size());
+        assertEquals(1,
+                metricRegistry.counter(StatusType.mtsExcluded.name()).getCount());
+    }
+
+    @Test
+    /**
+     * Series expire after a number of intervals of their own rule, however often perform runs.
+     */
+    public void testProcessEvictInterval() throws Exception {
+        final long minute = 60000L;
+        AppInfo app = new AppInfo("any");
+        app.metrics.add(new MetricInfo("A|B", "C", null, 60));
+
+        MetricData metricData = new MetricData("", 0L, "name", "A|B");
+        metricData.metricValues.add(new MetricValue(1, 1, 1, 1, 1, 99 * minute));
+
+        MetricDataRequest request = mockRequest();
+        Mockito.when(request.get(Mockito.any(MetricDataQuery.class))).thenReturn(
+                Collections.singletonList(metricData), Collections.<MetricData>emptyList());
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+        Processor processor = new Processor();
+        processor.setSeriesExpiry(2);
+        final AtomicLong now = new AtomicLong(100 * minute);
+        ReportAppD reportAppD = new ReportAppD(request, processor, Mockito.mock(Reporter.class),
+                new QueryPlanner(), new QueryWatermarks(), metricRegistry) {
+            @Override
+            protected long currentTimeMillis() {
+                return now.get();
+            }
+        };
+        reportAppD.perform(Collections.singletonList(app),
+                MetricDataRequest.TimeParams.beforeNow(61L));
+        // An hour later the series was not seen for one interval and is kept.
+        now.set(160 * minute);
+        reportAppD.perform(Collections.singletonList(app),
+                MetricDataRequest.TimeParams.beforeNow(61L));
+        assertEquals(1, processor.size());
+        now.set(220 * minute);
+        reportAppD.perform(Collections.singletonList(app),
+                MetricDataRequest.TimeParams.beforeNow(61L));
+        assertEquals(0, processor.size());
+        assertEquals(1,
+                metricRegistry.counter(StatusType.mtsEvicted.name()).getCount());
+    }
+
+    /**
+     * Mock request whose asynchronous queries immediately hand over the result of
+     * {@link MetricDataRequest#get(MetricDataQuery)}.
+     */
+    private MetricDataRequest mockRequest() {
+        final MetricDataRequest request = Mockito.mock(MetricDataRequest.class);
+        Mockito.when(request.getAsync(Mockito.any(MetricDataQuery.class),
+                Mockito.any(MetricDataHandler.class))).thenAnswer(
+                new Answer<ListenableFuture<Void>>() {
+                    @Override
+                    public ListenableFuture<Void> answer(InvocationOnMock invocation) {
+                        MetricDataHandler handler =
+                                (MetricDataHandler) invocation.getArguments()[1];
+                        try {
+                            List<MetricData> metricDataList =
+                                    request.get((MetricDataQuery) invocation.getArguments()[0]);
+                            if (metricDataList != null) {
+                                for (MetricData metricData : metricDataList) {
+                                    handler.handle(metricData);
+                                }
+                            }
+                            return Futures.immediateFuture(null);
+                        } catch (Exception e) {
+                            return Futures.immediateFailedFuture(e);
+                        }
+                    }
+                });
+        return request;
+    }
+
     private SignalFxProtocolBuffers.DataPoint getDataPoint(String metricName, long timestamp,
                                                            long value,
                                                            Map<String, String> dimensions) {
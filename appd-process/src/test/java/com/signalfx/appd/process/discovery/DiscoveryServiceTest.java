@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.process.discovery;
+
+import static com.signalfx.appd.process.discovery.MetricTreeNodes.folder;
+import static com.signalfx.appd.process.discovery.MetricTreeNodes.leaf;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.Lists;
+import com.signalfx.appd.client.MetricDataRequest;
+import com.signalfx.appd.client.model.MetricTreeNode;
+import com.signalfx.appd.process.info.AppInfo;
+import com.signalfx.appd.process.info.MetricInfo;
+import com.signalfx.appd.process.planner.PlannedQuery;
+import com.signalfx.appd.process.status.StatusType;
+
+public class DiscoveryServiceTest {
+
+    private static final long MINUTE = 60000L;
+
+    private MetricDataRequest request;
+    private MetricRegistry metricRegistry;
+    private AtomicLong now;
+    private DiscoveryService discoveryService;
+    private MetricInfo metricInfo;
+    private List<AppInfo> apps;
+
+    @Before
+    public void setUp() throws Exception {
+        request = Mockito.mock(MetricDataRequest.class);
+        metricRegistry = new MetricRegistry();
+        now = new AtomicLong(100 * MINUTE);
+        discoveryService = new DiscoveryService(request, metricRegistry) {
+            @Override
+            protected long currentTimeMillis() {
+                return now.get();
+            }
+        };
+        discoveryService.setRefresh(60);
+        metricInfo = new MetricInfo("A|*|C", "a|b", null);
+        apps = Collections.singletonList(
+                new AppInfo("any", Collections.singletonList(metricInfo)));
+
+        Mockito.when(request.browse("any", "")).thenReturn(Lists.newArrayList(folder("A")));
+        Mockito.when(request.browse("any", "A")).thenReturn(
+                Lists.newArrayList(folder("X"), folder("Y")));
+        Mockito.when(request.browse("any", "A|X")).thenReturn(Lists.newArrayList(leaf("C")));
+        Mockito.when(request.browse("any", "A|Y")).thenReturn(
+                Lists.newArrayList(leaf("C"), leaf("D")));
+    }
+
+    @Test
+    public void testDiscover() throws Exception {
+        PlannedQuery query = new PlannedQuery("any", "A|*|C", apps.get(0).metrics);
+        assertEquals(-1, discoveryService.estimate("any", metricInfo));
+        assertEquals(Collections.singletonList(query), discoveryService.narrow(query));
+
+        discoveryService.discover(apps);
+        assertEquals(2, discoveryService.estimate("any", metricInfo));
+        assertEquals(Lists.newArrayList(
+                new PlannedQuery("any", "A|X|C", apps.get(0).metrics),
+                new PlannedQuery("any", "A|Y|C", apps.get(0).metrics)),
+                discoveryService.narrow(query));
+        assertEquals(4, metricRegistry.counter(StatusType.discoveryBrowses.name()).getCount());
+        assertEquals(3, metricRegistry.getGauges().get(StatusType.discoveredMetrics.name())
+                .getValue());
+
+        // Nothing is stale yet.
+        now.addAndGet(59 * MINUTE);
+        discoveryService.discover(apps);
+        assertEquals(4, metricRegistry.counter(StatusType.discoveryBrowses.name()).getCount());
+
+        Mockito.when(request.browse("any", "A")).thenReturn(
+                Lists.newArrayList(folder("X"), folder("Y"), folder("Z")));
+        Mockito.when(request.browse("any", "A|Z")).thenReturn(
+                Collections.<MetricTreeNode>emptyList());
+        now.addAndGet(2 * MINUTE);
+        discoveryService.discover(apps);
+        assertEquals(9, metricRegistry.counter(StatusType.discoveryBrowses.name()).getCount());
+
+        // Too many metric paths to replace the query.
+        discoveryService.setMaxLeafQueries(1);
+        assertEquals(Collections.singletonList(query), discoveryService.narrow(query));
+
+        PlannedQuery missing = new PlannedQuery("any", "B|*|C", apps.get(0).metrics);
+        assertEquals(0, discoveryService.narrow(missing).size());
+    }
+
+    @Test
+    public void testBrowseBudget() throws Exception {
+        List<MetricTreeNode> folders = Lists.newArrayList();
+        for (int i = 0; i < DiscoveryService.MAX_BROWSES_PER_PASS; i++) {
+            folders.add(folder(String.valueOf(i)));
+        }
+        Mockito.when(request.browse("any", "A")).thenReturn(folders);
+        discoveryService.discover(apps);
+        Mockito.verify(request, Mockito.times(DiscoveryService.MAX_BROWSES_PER_PASS))
+                .browse(Matchers.eq("any"), Matchers.anyString());
+        assertEquals(-1, discoveryService.estimate("any", metricInfo));
+
+        discoveryService.discover(apps);
+        assertEquals(0, discoveryService.estimate("any", metricInfo));
+    }
+
+    @Test
+    public void testBrowseRotation() throws Exception {
+        List<MetricTreeNode> folders = Lists.newArrayList();
+        for (int i = 0; i < 2 * DiscoveryService.MAX_BROWSES_PER_PASS; i++) {
+            folders.add(folder(String.valueOf(i)));
+        }
+        Mockito.when(request.browse("any", "A")).thenReturn(folders);
+        MetricInfo otherMetricInfo = new MetricInfo("B|C", "b", null);
+        Mockito.when(request.browse("other", "")).thenReturn(Lists.newArrayList(folder("B")));
+        Mockito.when(request.browse("other", "B")).thenReturn(Lists.newArrayList(leaf("C")));
+        List<AppInfo> twoApps = Lists.newArrayList(apps.get(0),
+                new AppInfo("other", Collections.singletonList(otherMetricInfo)));
+
+        // The first rule takes the whole first pass, the second pass starts at the other rule.
+        discoveryService.discover(twoApps);
+        assertEquals(-1, discoveryService.estimate("other", otherMetricInfo));
+        discoveryService.discover(twoApps);
+        assertEquals(1, discoveryService.estimate("other", otherMetricInfo));
+        assertEquals(-1, discoveryService.estimate("any", metricInfo));
+
+        discoveryService.discover(twoApps);
+        assertEquals(0, discoveryService.estimate("any", metricInfo));
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        discoveryService.setRefresh(0);
+        discoveryService.discover(apps);
+        Mockito.verifyZeroInteractions(request);
+        PlannedQuery query = new PlannedQuery("any", "A|*|C", apps.get(0).metrics);
+        assertEquals(Collections.singletonList(query), discoveryService.narrow(query));
+    }
+}
@@ -0,0 +1,23 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.process.discovery;
+
+import com.signalfx.appd.client.model.MetricTreeNode;
+
+/**
+ * Metric browser nodes of tests.
+ */
+public class MetricTreeNodes {
+
+    private MetricTreeNodes() {
+    }
+
+    public static MetricTreeNode folder(String name) {
+        return new MetricTreeNode(name, MetricTreeNode.FOLDER);
+    }
+
+    public static MetricTreeNode leaf(String name) {
+        return new MetricTreeNode(name, MetricTreeNode.LEAF);
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.process.discovery;
+
+import static com.signalfx.appd.process.discovery.MetricTreeNodes.folder;
+import static com.signalfx.appd.process.discovery.MetricTreeNodes.leaf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.signalfx.appd.client.model.MetricTreeNode;
+
+public class MetricTreeTest {
+
+    @Test
+    public void testExpand() {
+        MetricTree tree = new MetricTree();
+        assertNull(tree.expand("A|*|C"));
+        assertEquals(Collections.singletonList(""), tree.getStale("A|*|C", 0));
+
+        tree.update("", Lists.newArrayList(folder("A"), folder("B")), 10);
+        assertNull(tree.expand("A|*|C"));
+        assertEquals(0, tree.count("X|*|C"));
+        assertEquals(Collections.singletonList("A"), tree.getStale("A|*|C", 0));
+
+        tree.update("A", Lists.newArrayList(folder("X"), folder("Y"), leaf("C")), 10);
+        assertEquals(Lists.newArrayList("A|X", "A|Y"), tree.getStale("A|*|C", 0));
+        tree.update("A|X", Lists.newArrayList(leaf("C"), leaf("D"), folder("E")), 10);
+        tree.update("A|Y", Lists.newArrayList(leaf("C")), 10);
+
+        assertEquals(Lists.newArrayList("A|X|C", "A|Y|C"), tree.expand("A|*|C"));
+        assertEquals(Lists.newArrayList("A|X|C", "A|X|D"), tree.expand("A|X|*"));
+        assertEquals(Collections.singletonList("A|C"), tree.expand("A|*"));
+        assertEquals(0, tree.getStale("A|*|C", 10).size());
+        assertEquals(Lists.newArrayList("", "A", "A|X", "A|Y"), tree.getStale("A|*|C", 11));
+        assertEquals(4, tree.size());
+    }
+
+    @Test
+    public void testUpdate() {
+        MetricTree tree = new MetricTree();
+        tree.update("", Lists.newArrayList(folder("A")), 10);
+        tree.update("A", Lists.newArrayList(folder("X"), folder("Y")), 10);
+        tree.update("A|X", Lists.newArrayList(leaf("C"), leaf("D")), 10);
+        tree.update("A|Y", Lists.newArrayList(leaf("C")), 10);
+        assertEquals(3, tree.size());
+
+        // Y is gone, X keeps its children.
+        tree.update("A", Lists.newArrayList(folder("X"), folder("Z")), 20);
+        assertEquals(2, tree.size());
+        assertNull(tree.expand("A|*|C"));
+        tree.update("A|Z", Collections.<MetricTreeNode>emptyList(), 20);
+        assertEquals(Collections.singletonList("A|X|C"), tree.expand("A|*|C"));
+
+        // X turned into a leaf.
+        tree.update("A", Lists.newArrayList(leaf("X")), 30);
+        assertEquals(1, tree.size());
+        assertEquals(Collections.singletonList("A|X"), tree.expand("A|*"));
+    }
+}
@@ -5,6 +5,7 @@ package com.signalfx.appd.process.info;
 
 import static org.junit.Assert.assertEquals;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -36,13 +37,14 @@ public class InfoParserTest {
 
         // Overriding metric_source dimensions from the configurations with the default
         app1.metrics.add(new MetricInfo("Application Infrastructure Performance|Tier2|Individual Nodes|*|Agent|*|*",
-                "-|tier|-|node|-|category", getDimensions()));
+                "-|tier|-|node|-|category", getDimensions(), null,
+                Collections.singletonList("*|*|*|*|*|*|Availability*")));
 
         AppInfo app2 = new AppInfo("Two");
 
         dimensions = getDimensions();
         dimensions.put("c", "bla bla");
-        app2.metrics.add(new MetricInfo("1|2", "3", dimensions));
+        app2.metrics.add(new MetricInfo("1|2", "3", dimensions, 10));
 
         List<AppInfo> expectedConfig = Lists.newArrayList(app1, app2);
 
@@ -4,8 +4,13 @@
 package com.signalfx.appd.process.info;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.InvalidPropertiesFormatException;
 import java.util.Map;
@@ -61,4 +66,52 @@ public class MetricInfoTest {
 
         assertEquals(expectedMts, actualMts);
     }
+
+    @Test
+    public void testGetMetricTimeSeriesCached() throws InvalidPropertiesFormatException {
+        MetricInfo metricInfo = new MetricInfo("A|*|C", "1|-", null);
+        MetricTimeSeries mts = metricInfo.getMetricTimeSeries("W|X|Y");
+        assertSame(mts, metricInfo.getMetricTimeSeries("W|X|Y"));
+        assertNotSame(mts, metricInfo.getMetricTimeSeries("W|Z|Y"));
+
+        assertEquals("Y", mts.template.getMetric());
+        assertEquals(2, mts.template.getDimensionsCount());
+    }
+
+    @Test
+    public void testMatches() throws InvalidPropertiesFormatException {
+        MetricInfo metricInfo = new MetricInfo("A|*|C|*", "1|2|3", null);
+        assertTrue(metricInfo.matches("A|B|C|D"));
+        assertTrue(metricInfo.matches("A|X|C|Y"));
+        assertFalse(metricInfo.matches("A|B|CC|D"));
+        assertFalse(metricInfo.matches("A|B|C"));
+        assertFalse(metricInfo.matches("A|B|C|D|E"));
+        assertFalse(metricInfo.matches("B|B|C|D"));
+    }
+
+    @Test
+    public void testExclude() throws InvalidPropertiesFormatException {
+        MetricInfo metricInfo = new MetricInfo("A|*|*|D", "1|2|3", null, null,
+                Arrays.asList("*|*|_DEFAULT_|*", "*|T1|*Health*|*"));
+        assertFalse(metricInfo.isExcluded("A|T1|Login|D"));
+        assertTrue(metricInfo.isExcluded("A|T2|_DEFAULT_|D"));
+        assertTrue(metricInfo.isExcluded("A|T1|HealthCheck|D"));
+        assertTrue(metricInfo.isExcluded("A|T1|Health|D"));
+        assertFalse(metricInfo.isExcluded("A|T2|HealthCheck|D"));
+        assertFalse(metricInfo.isExcluded("A|T1|Health|D|E"));
+
+        assertTrue(metricInfo.isExcludedAll("A|T1|_DEFAULT_|D"));
+        assertTrue(metricInfo.isExcludedAll("A|*|_DEFAULT_|*"));
+        assertTrue(metricInfo.isExcludedAll("A|T1|MyHealth|*"));
+        assertFalse(metricInfo.isExcludedAll("A|*|MyHealth|*"));
+        assertFalse(metricInfo.isExcludedAll("A|T1|*|D"));
+        assertFalse(new MetricInfo("A|*", "1", null).isExcludedAll("A|*"));
+
+        try {
+            new MetricInfo("A|*|*|D", "1|2|3", null, null, Arrays.asList("*|_DEFAULT_|*"));
+            fail("Exception should have been thrown.");
+        } catch (InvalidPropertiesFormatException e) {
+            //expected
+        }
+    }
 }
@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.process.planner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.signalfx.appd.process.info.AppInfo;
+import com.signalfx.appd.process.info.MetricInfo;
+
+public class QueryPlannerTest {
+
+    @Test
+    public void testPlanWithoutCoalescing() throws Exception {
+        AppInfo app = getApp();
+        List<PlannedQuery> plannedQueries = new QueryPlanner().plan(app);
+
+        assertEquals(app.metrics.size(), plannedQueries.size());
+        for (int i = 0; i < app.metrics.size(); i++) {
+            assertEquals(new PlannedQuery("app", app.metrics.get(i).metricPathQuery,
+                    Lists.newArrayList(app.metrics.get(i))), plannedQueries.get(i));
+            assertFalse(plannedQueries.get(i).isCoalesced());
+        }
+    }
+
+    @Test
+    public void testPlanCoalesceLastElement() throws Exception {
+        AppInfo app = getApp();
+        QueryPlanner queryPlanner = new QueryPlanner();
+        queryPlanner.setCoalesceDepth(1);
+        List<PlannedQuery> plannedQueries = queryPlanner.plan(app);
+
+        assertEquals(Lists.newArrayList(
+                new PlannedQuery("app", "Overall Application Performance|*",
+                        Lists.newArrayList(app.metrics.get(0), app.metrics.get(1))),
+                new PlannedQuery("app", "Overall Application Performance|Tier1|Calls per Minute",
+                        Lists.newArrayList(app.metrics.get(2))),
+                new PlannedQuery("app", "Overall Application Performance|Tier2|*",
+                        Lists.newArrayList(app.metrics.get(3), app.metrics.get(4))),
+                new PlannedQuery("app", "Other|Metric",
+                        Lists.newArrayList(app.metrics.get(5)))), plannedQueries);
+        assertTrue(plannedQueries.get(0).isCoalesced());
+        assertFalse(plannedQueries.get(1).isCoalesced());
+    }
+
+    @Test
+    public void testPlanCoalesceLastTwoElements() throws Exception {
+        AppInfo app = getApp();
+        QueryPlanner queryPlanner = new QueryPlanner();
+        queryPlanner.setCoalesceDepth(2);
+        List<PlannedQuery> plannedQueries = queryPlanner.plan(app);
+
+        assertEquals(Lists.newArrayList(
+                new PlannedQuery("app", "Overall Application Performance|*",
+                        Lists.newArrayList(app.metrics.get(0), app.metrics.get(1))),
+                new PlannedQuery("app", "Overall Application Performance|*|*",
+                        Lists.newArrayList(app.metrics.get(2), app.metrics.get(3),
+                                app.metrics.get(4))),
+                new PlannedQuery("app", "Other|Metric",
+                        Lists.newArrayList(app.metrics.get(5)))), plannedQueries);
+    }
+
+    @Test
+    public void testPlanCoalesceSameInterval() throws Exception {
+        AppInfo app = new AppInfo("app");
+        app.metrics.add(new MetricInfo("A|B", "-", null));
+        app.metrics.add(new MetricInfo("A|C", "-", null, 10));
+        app.metrics.add(new MetricInfo("A|D", "-", null, 10));
+        QueryPlanner queryPlanner = new QueryPlanner();
+        queryPlanner.setCoalesceDepth(1);
+
+        assertEquals(Lists.newArrayList(
+                new PlannedQuery("app", "A|B", Lists.newArrayList(app.metrics.get(0))),
+                new PlannedQuery("app", "A|*",
+                        Lists.newArrayList(app.metrics.get(1), app.metrics.get(2)))),
+                queryPlanner.plan(app));
+    }
+
+    private AppInfo getApp() throws Exception {
+        AppInfo app = new AppInfo("app");
+        app.metrics.add(new MetricInfo("Overall Application Performance|Calls per Minute",
+                "-", null));
+        app.metrics.add(new MetricInfo("Overall Application Performance|Average Response Time (ms)",
+                "category", null));
+        app.metrics.add(new MetricInfo("Overall Application Performance|Tier1|Calls per Minute",
+                "-|tier", null));
+        app.metrics.add(new MetricInfo("Overall Application Performance|Tier2|Calls per Minute",
+                "-|tier", null));
+        app.metrics.add(new MetricInfo("Overall Application Performance|Tier2|Errors per Minute",
+                "-|tier", null));
+        app.metrics.add(new MetricInfo("Other|Metric", "-", null));
+        return app;
+    }
+}
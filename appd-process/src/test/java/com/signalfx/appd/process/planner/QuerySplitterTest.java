@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.process.planner;
+
+import static com.signalfx.appd.process.discovery.MetricTreeNodes.folder;
+import static com.signalfx.appd.process.discovery.MetricTreeNodes.leaf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.Lists;
+import com.signalfx.appd.client.MetricDataRequest;
+import com.signalfx.appd.client.exception.RequestException;
+import com.signalfx.appd.client.model.MetricTreeNode;
+import com.signalfx.appd.process.info.MetricInfo;
+import com.signalfx.appd.process.status.StatusType;
+
+public class QuerySplitterTest {
+
+    private static final long HOUR = 3600000L;
+    private static final long MINUTE = 60000L;
+
+    private MetricDataRequest request;
+    private MetricRegistry metricRegistry;
+    private QuerySplitter splitter;
+    private List<MetricInfo> metricInfos;
+
+    @Before
+    public void setUp() throws Exception {
+        request = Mockito.mock(MetricDataRequest.class);
+        metricRegistry = new MetricRegistry();
+        splitter = new QuerySplitter(request, metricRegistry);
+        metricInfos = Lists.newArrayList(new MetricInfo("A|*|*|C", "a|b|c", null),
+                new MetricInfo("A|*|*|D", "a|b|c", null));
+    }
+
+    @Test
+    public void testSplit() throws Exception {
+        Mockito.when(request.browse("any", "A")).thenReturn(Lists.newArrayList(
+                folder("X"), folder("Y"), leaf("L")));
+        Mockito.when(request.browse("any", "A|X|1")).thenReturn(Lists.newArrayList(
+                leaf("C"), leaf("D"), leaf("E"), folder("F")));
+        PlannedQuery query = new PlannedQuery("any", "A|*|*|*", metricInfos);
+
+        // Leaves cannot have children.
+        assertEquals(Lists.newArrayList(query("A|X|*|*"), query("A|Y|*|*")),
+                splitter.split(query, 0));
+        assertEquals(Lists.newArrayList(query("A|X|*|*"), query("A|Y|*|*")),
+                splitter.expand(query, 0));
+
+        Mockito.when(request.browse("any", "A|X")).thenReturn(Lists.newArrayList(
+                folder("1"), folder("2")));
+        splitter.split(query("A|X|*|*"), 0);
+        // Only leaves end a metric path, children no rule matches are left out.
+        assertEquals(Lists.newArrayList(query("A|X|1|C"), query("A|X|1|D")),
+                splitter.split(query("A|X|1|*"), 0));
+        assertEquals(Lists.newArrayList(query("A|X|1|C"), query("A|X|1|D"), query("A|X|2|*"),
+                query("A|Y|*|*")), splitter.expand(query, 0));
+        assertEquals(3, metricRegistry.counter(StatusType.appdQuerySplit.name()).getCount());
+
+        assertNull(splitter.split(query("A|X|1|C"), 0));
+        assertEquals(Collections.singletonList(query("A|B|C|D")),
+                splitter.expand(query("A|B|C|D"), 0));
+    }
+
+    @Test
+    public void testSplitExcluded() throws Exception {
+        metricInfos = Lists.newArrayList(new MetricInfo("A|*|*|C", "a|b|c", null, null,
+                Collections.singletonList("*|Y|*|*")));
+        Mockito.when(request.browse("any", "A")).thenReturn(Lists.newArrayList(
+                folder("X"), folder("Y")));
+
+        // Nothing below Y is wanted, so it is never queried.
+        assertEquals(Lists.newArrayList(query("A|X|*|C")),
+                splitter.split(query("A|*|*|C"), 0));
+    }
+
+    @Test
+    public void testRefresh() throws Exception {
+        Mockito.when(request.browse("any", "A")).thenReturn(
+                Lists.newArrayList(folder("X")));
+        PlannedQuery query = new PlannedQuery("any", "A|*|*|*", metricInfos);
+        splitter.split(query, 0);
+
+        Mockito.when(request.browse("any", "A")).thenReturn(
+                Lists.newArrayList(folder("X"), folder("Y")));
+        assertEquals(Lists.newArrayList(query("A|X|*|*")), splitter.expand(query, HOUR - 1));
+        assertEquals(Lists.newArrayList(query("A|X|*|*"), query("A|Y|*|*")),
+                splitter.expand(query, HOUR));
+
+        // A failed refresh keeps the previous split.
+        Mockito.when(request.browse("any", "A")).thenThrow(new RequestException("failed"));
+        assertEquals(Lists.newArrayList(query("A|X|*|*"), query("A|Y|*|*")),
+                splitter.expand(query, 2 * HOUR));
+        Mockito.verify(request, Mockito.times(3)).browse("any", "A");
+        assertEquals(1, splitter.size());
+    }
+
+    @Test
+    public void testEmptySplit() throws Exception {
+        Mockito.when(request.browse("any", "A")).thenReturn(
+                Lists.newArrayList(leaf("L")));
+        PlannedQuery query = new PlannedQuery("any", "A|*|*|*", metricInfos);
+        assertNull(splitter.split(query, 0));
+        // Not remembered, so the query is not dropped.
+        assertEquals(0, splitter.size());
+        assertEquals(Collections.singletonList(query), splitter.expand(query, 0));
+
+        Mockito.when(request.browse("any", "A")).thenReturn(
+                Lists.newArrayList(folder("X")));
+        splitter.split(query, 0);
+        // Children gone by the refresh.
+        Mockito.when(request.browse("any", "A")).thenReturn(
+                Lists.<MetricTreeNode>newArrayList());
+        assertEquals(Collections.singletonList(query), splitter.expand(query, HOUR));
+        assertEquals(0, splitter.size());
+    }
+
+    @Test
+    public void testSweep() throws Exception {
+        splitter.setInterval(5);
+        Mockito.when(request.browse("any", "A")).thenReturn(
+                Lists.newArrayList(folder("X"), folder("Y")));
+        Mockito.when(request.browse("any", "A|X")).thenReturn(
+                Lists.newArrayList(folder("1")));
+        PlannedQuery query = new PlannedQuery("any", "A|*|*|*", metricInfos);
+        splitter.split(query, 0);
+        splitter.split(query("A|X|*|*"), 0);
+        assertEquals(2, splitter.size());
+
+        // Expanding the query keeps its nested splits too.
+        splitter.expand(query, 10 * MINUTE);
+        assertEquals(0, splitter.sweep(20 * MINUTE));
+        assertEquals(2, splitter.sweep(20 * MINUTE + 1));
+        assertEquals(0, splitter.size());
+        assertEquals(Collections.singletonList(query), splitter.expand(query, 20 * MINUTE));
+    }
+
+    private PlannedQuery query(String metricPath) {
+        return new PlannedQuery("any", metricPath, metricInfos);
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.process.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SeriesStateMapTest {
+
+    @Test
+    public void testPutGetRemove() {
+        SeriesStateMap map = new SeriesStateMap();
+        assertEquals(SeriesStateMap.NO_VALUE, map.get(1));
+
+        map.put(1, 10);
+        map.put(2, 20);
+        map.put(1, 11);
+        assertEquals(2, map.size());
+        assertEquals(11, map.get(1));
+        assertEquals(20, map.get(2));
+
+        assertTrue(map.remove(1));
+        assertFalse(map.remove(1));
+        assertEquals(1, map.size());
+        assertEquals(SeriesStateMap.NO_VALUE, map.get(1));
+        assertEquals(20, map.get(2));
+
+        map.clear();
+        assertEquals(0, map.size());
+        assertEquals(SeriesStateMap.NO_VALUE, map.get(2));
+    }
+
+    @Test
+    public void testSweepExpired() {
+        SeriesStateMap map = new SeriesStateMap();
+        map.put(1, 10);
+        map.put(2, 20);
+        assertEquals(0, map.sweep(2, 0));
+
+        // Key 2 is not seen in the next two cycles and expires at the end of the second.
+        map.put(1, 11);
+        assertEquals(0, map.sweep(2, 0));
+        map.put(1, 12);
+        assertEquals(1, map.sweep(2, 0));
+        assertEquals(1, map.size());
+        assertEquals(12, map.get(1));
+        assertEquals(SeriesStateMap.NO_VALUE, map.get(2));
+
+        assertEquals(0, map.sweep(2, 0));
+        assertEquals(1, map.sweep(2, 0));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void testSweepMaxSize() {
+        SeriesStateMap map = new SeriesStateMap();
+        for (long key = 1; key <= 100; key++) {
+            map.put(key, key);
+        }
+        map.sweep(10, 0);
+        for (long key = 51; key <= 100; key++) {
+            map.put(key, key);
+        }
+        map.sweep(10, 0);
+        for (long key = 91; key <= 120; key++) {
+            map.put(key, key);
+        }
+
+        // Keys 1-50 are the least recently seen, then 51-90.
+        assertEquals(60, map.sweep(10, 60));
+        assertEquals(60, map.size());
+        for (long key = 1; key <= 50; key++) {
+            assertEquals(SeriesStateMap.NO_VALUE, map.get(key));
+        }
+        for (long key = 91; key <= 120; key++) {
+            assertEquals(key, map.get(key));
+        }
+        int kept = 0;
+        for (long key = 51; key <= 90; key++) {
+            if (map.get(key) != SeriesStateMap.NO_VALUE) {
+                kept++;
+            }
+        }
+        assertEquals(30, kept);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroKey() {
+        new SeriesStateMap().put(0, 1);
+    }
+
+    @Test
+    public void testAgainstHashMap() {
+        // Few distinct keys in a small map give long probe runs to shift on removal.
+        Random random = new Random(42);
+        SeriesStateMap map = new SeriesStateMap();
+        Map<Long, Long> expected = new HashMap<>();
+        for (int i = 0; i < 100000; i++) {
+            long key = 1 + random.nextInt(i < 50000 ? 5000 : 200);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key) != null, map.remove(key));
+            } else {
+                long value = random.nextLong();
+                expected.put(key, value);
+                map.put(key, value);
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (long key = 1; key <= 5000; key++) {
+            Long value = expected.get(key);
+            assertEquals(value == null ? SeriesStateMap.NO_VALUE : value, map.get(key));
+        }
+    }
+}
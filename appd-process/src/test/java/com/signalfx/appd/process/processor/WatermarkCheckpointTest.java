@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.process.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WatermarkCheckpointTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReload() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("test.checkpoint");
+        SeriesStateMap map = new SeriesStateMap();
+        WatermarkCheckpoint checkpoint = new WatermarkCheckpoint(path, map, 16);
+        // Enough records to compact a few times.
+        for (long i = 1; i <= 100; i++) {
+            long key = i % 10 + 1;
+            map.put(key, i);
+            checkpoint.append(key, i);
+        }
+        checkpoint.close();
+
+        SeriesStateMap reloaded = new SeriesStateMap();
+        new WatermarkCheckpoint(path, reloaded, 16).close();
+        assertEquals(10, reloaded.size());
+        for (long key = 1; key <= 10; key++) {
+            assertEquals(map.get(key), reloaded.get(key));
+        }
+    }
+
+    @Test
+    public void testUnknownFormat() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("test.checkpoint");
+        Files.write(path, new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16});
+        SeriesStateMap map = new SeriesStateMap();
+        new WatermarkCheckpoint(path, map).close();
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void testQueryWatermarks() throws Exception {
+        String directory = folder.getRoot().getPath();
+        long key = QueryWatermarks.key("app", "A|B");
+        QueryWatermarks queryWatermarks = new QueryWatermarks();
+        queryWatermarks.setCheckpointDirectory(directory);
+        queryWatermarks.update(key, 120000L);
+        queryWatermarks.update(key, 60000L);
+
+        QueryWatermarks reloaded = new QueryWatermarks();
+        reloaded.setCheckpointDirectory(directory);
+        assertEquals(Long.valueOf(120000L), reloaded.get(key));
+        assertEquals(null, reloaded.get(QueryWatermarks.key("app", "A|C")));
+    }
+
+    @Test
+    public void testQueryWatermarksExpiry() throws Exception {
+        String directory = folder.getRoot().getPath();
+        long keyA = QueryWatermarks.key("app", "A");
+        long keyB = QueryWatermarks.key("app", "B");
+        long keyC = QueryWatermarks.key("app", "C");
+        QueryWatermarks queryWatermarks = new QueryWatermarks();
+        queryWatermarks.setCheckpointDirectory(directory);
+        queryWatermarks.setExpiry(2);
+        queryWatermarks.update(keyA, 60000L);
+        queryWatermarks.update(keyB, 60000L);
+        queryWatermarks.update(keyC, 60000L);
+        queryWatermarks.setBucketMillis(keyC, 600000L);
+        // B is fetched every 10 minutes, so it is kept for 20 minutes.
+        queryWatermarks.touch(keyB, 10);
+
+        assertEquals(0, queryWatermarks.sweep(1));
+        queryWatermarks.touch(keyA, 1);
+        assertEquals(0, queryWatermarks.sweep(1));
+        // C was not fetched for 2 minutes.
+        assertEquals(1, queryWatermarks.sweep(1));
+        assertNull(queryWatermarks.get(keyC));
+        assertEquals(0, queryWatermarks.getBucketMillis(keyC));
+        assertEquals(1, queryWatermarks.sweep(16));
+        assertNull(queryWatermarks.get(keyA));
+        assertEquals(Long.valueOf(60000L), queryWatermarks.get(keyB));
+
+        // Forgotten queries are compacted out of the checkpoint.
+        QueryWatermarks reloaded = new QueryWatermarks();
+        reloaded.setCheckpointDirectory(directory);
+        assertEquals(Long.valueOf(60000L), reloaded.get(keyB));
+        assertNull(reloaded.get(keyA));
+        assertNull(reloaded.get(keyC));
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.process.reporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.codahale.metrics.MetricRegistry;
+import com.signalfx.appd.process.status.StatusType;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers;
+
+public class ReportPipelineTest {
+
+    @Test
+    public void testChunkSize() throws Exception {
+        Reporter reporter = Mockito.mock(Reporter.class);
+        MetricRegistry metricRegistry = new MetricRegistry();
+        ReportPipeline reportPipeline = new ReportPipeline(reporter, metricRegistry);
+        reportPipeline.setChunkSize(2);
+
+        List<SignalFxProtocolBuffers.DataPoint> dataPoints = getDataPoints(5);
+        reportPipeline.start();
+        reportPipeline.add(dataPoints.subList(0, 3));
+        reportPipeline.add(dataPoints.subList(3, 5));
+        reportPipeline.finish();
+
+        Mockito.verify(reporter).report(dataPoints.subList(0, 2));
+        Mockito.verify(reporter).report(dataPoints.subList(2, 4));
+        Mockito.verify(reporter).report(dataPoints.subList(4, 5));
+        assertEquals(5,
+                metricRegistry.counter(StatusType.dataPointsReported.name()).getCount());
+        assertEquals(3, metricRegistry.timer(StatusType.reportChunkLatency.name()).getCount());
+    }
+
+    @Test
+    public void testChunkDelay() throws Exception {
+        final CountDownLatch reported = new CountDownLatch(1);
+        Reporter reporter = Mockito.mock(Reporter.class);
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                reported.countDown();
+                return null;
+            }
+        }).when(reporter).report(Mockito.anyList());
+        ReportPipeline reportPipeline = new ReportPipeline(reporter, new MetricRegistry());
+        reportPipeline.setChunkDelayMillis(10);
+
+        List<SignalFxProtocolBuffers.DataPoint> dataPoints = getDataPoints(1);
+        reportPipeline.start();
+        reportPipeline.add(dataPoints);
+        // Reported before the end of the cycle.
+        assertTrue(reported.await(5, TimeUnit.SECONDS));
+        reportPipeline.finish();
+        Mockito.verify(reporter, Mockito.times(1)).report(dataPoints);
+    }
+
+    @Test
+    public void testEmptyCycle() throws Exception {
+        Reporter reporter = Mockito.mock(Reporter.class);
+        ReportPipeline reportPipeline = new ReportPipeline(reporter, new MetricRegistry());
+        reportPipeline.start();
+        reportPipeline.add(Collections.<SignalFxProtocolBuffers.DataPoint>emptyList());
+        reportPipeline.finish();
+        Mockito.verify(reporter, Mockito.never()).report(Mockito.anyList());
+    }
+
+    private List<SignalFxProtocolBuffers.DataPoint> getDataPoints(int count) {
+        List<SignalFxProtocolBuffers.DataPoint> dataPoints = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            dataPoints.add(SignalFxProtocolBuffers.DataPoint.newBuilder().setMetric("m")
+                    .setTimestamp(i).build());
+        }
+        return dataPoints;
+    }
+}
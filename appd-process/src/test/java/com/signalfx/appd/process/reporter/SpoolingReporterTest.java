@@ -0,0 +1,151 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.process.reporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.codahale.metrics.MetricRegistry;
+import com.signalfx.appd.process.status.StatusType;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers;
+
+public class SpoolingReporterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSpoolAndReplay() throws Exception {
+        FakeReporter delegate = new FakeReporter();
+        MetricRegistry metricRegistry = new MetricRegistry();
+        Path directory = folder.getRoot().toPath();
+        SpoolingReporter reporter = new SpoolingReporter(delegate, directory, Long.MAX_VALUE,
+                Long.MAX_VALUE, 1000, metricRegistry);
+
+        // Endpoint down, everything is spooled.
+        delegate.failing = true;
+        report(reporter, getDataPoints(0, 3));
+        report(reporter, getDataPoints(3, 5));
+        assertEquals(0, delegate.reported.size());
+        assertEquals(5, metricRegistry.counter(StatusType.dataPointsSpooled.name()).getCount());
+
+        // Still down, replay keeps the data points.
+        reporter.replay();
+        assertEquals(0, delegate.reported.size());
+
+        // Endpoint recovers, spooled data points are replayed in order after a restart.
+        reporter.close();
+        reporter = new SpoolingReporter(delegate, directory, Long.MAX_VALUE, Long.MAX_VALUE,
+                1000, new MetricRegistry());
+        delegate.failing = false;
+        reporter.replay();
+        assertEquals(getDataPoints(0, 5), delegate.reported);
+        reporter.replay();
+        assertEquals(5, delegate.reported.size());
+        reporter.close();
+    }
+
+    @Test
+    public void testDiskCap() throws Exception {
+        FakeReporter delegate = new FakeReporter();
+        MetricRegistry metricRegistry = new MetricRegistry();
+        SpoolingReporter reporter = new SpoolingReporter(delegate, folder.getRoot().toPath(),
+                1, Long.MAX_VALUE, 1000, metricRegistry);
+        delegate.failing = true;
+        report(reporter, getDataPoints(0, 3));
+
+        // Beyond the cap, the segment is dropped.
+        assertEquals(1,
+                metricRegistry.counter(StatusType.spoolSegmentsDropped.name()).getCount());
+        delegate.failing = false;
+        reporter.replay();
+        assertEquals(0, delegate.reported.size());
+        reporter.close();
+    }
+
+    @Test
+    public void testAgeAfterFailedReplay() throws Exception {
+        FakeReporter delegate = new FakeReporter();
+        Path directory = folder.getRoot().toPath();
+        SpoolingReporter reporter = new SpoolingReporter(delegate, directory, Long.MAX_VALUE,
+                TimeUnit.HOURS.toMillis(2), 1000, new MetricRegistry());
+        delegate.failing = true;
+        report(reporter, getDataPoints(0, 3));
+        reporter.close();
+        Path segment = directory.resolve(String.format("%019d.spool", 0));
+        FileTime spooled = FileTime.fromMillis(
+                System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1));
+        Files.setLastModifiedTime(segment, spooled);
+
+        // Failed replays, sending nothing or part of the segment, do not make it younger.
+        reporter.replay();
+        assertEquals(spooled, Files.getLastModifiedTime(segment));
+        delegate.failing = false;
+        delegate.maxAccepted = 1;
+        reporter.replay();
+        assertEquals(getDataPoints(0, 1), delegate.reported);
+        assertEquals(spooled, Files.getLastModifiedTime(segment));
+
+        // Older than the age limit, the segment is dropped.
+        MetricRegistry metricRegistry = new MetricRegistry();
+        reporter = new SpoolingReporter(delegate, directory, Long.MAX_VALUE,
+                TimeUnit.MINUTES.toMillis(30), 1000, metricRegistry);
+        assertEquals(1,
+                metricRegistry.counter(StatusType.spoolSegmentsDropped.name()).getCount());
+        assertFalse(Files.exists(segment));
+        reporter.close();
+    }
+
+    private void report(Reporter reporter, List<SignalFxProtocolBuffers.DataPoint> dataPoints) {
+        try {
+            reporter.report(dataPoints);
+            fail("ReportException expected");
+        } catch (Reporter.ReportException e) {
+            assertEquals(dataPoints, e.getFailedDataPoints());
+        }
+    }
+
+    private List<SignalFxProtocolBuffers.DataPoint> getDataPoints(int from, int to) {
+        List<SignalFxProtocolBuffers.DataPoint> dataPoints = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            dataPoints.add(SignalFxProtocolBuffers.DataPoint.newBuilder().setMetric("m")
+                    .setTimestamp(i).setValue(SignalFxProtocolBuffers.Datum.newBuilder()
+                            .setIntValue(i)).build());
+        }
+        return dataPoints;
+    }
+
+    private static class FakeReporter implements Reporter {
+        private final List<SignalFxProtocolBuffers.DataPoint> reported = new ArrayList<>();
+        private boolean failing;
+        // Data points accepted at once, the rest fail, -1 for no limit.
+        private int maxAccepted = -1;
+
+        @Override
+        public void report(List<SignalFxProtocolBuffers.DataPoint> dataPoints)
+                throws ReportException {
+            if (failing) {
+                throw new ReportException("Endpoint down", null);
+            }
+            if (maxAccepted >= 0 && dataPoints.size() > maxAccepted) {
+                reported.addAll(dataPoints.subList(0, maxAccepted));
+                throw new ReportException("Endpoint overloaded", null,
+                        new ArrayList<>(dataPoints.subList(maxAccepted, dataPoints.size())));
+            }
+            reported.addAll(dataPoints);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2015 SignalFx, Inc.
+ */
+package com.signalfx.appd.process.scheduler;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.Lists;
+import com.signalfx.appd.process.info.AppInfo;
+import com.signalfx.appd.process.info.MetricInfo;
+import com.signalfx.appd.process.planner.QueryPlanner;
+import com.signalfx.appd.process.status.StatusType;
+
+public class RuleSchedulerTest {
+
+    private MetricInfo everyMinute;
+    private MetricInfo first;
+    private MetricInfo second;
+    private MetricInfo third;
+    private MetricInfo fourth;
+    private List<AppInfo> apps;
+    private MetricRegistry metricRegistry;
+
+    @Before
+    public void setUp() throws Exception {
+        everyMinute = new MetricInfo("A|B", "a", null);
+        first = new MetricInfo("A|C", "a", null, 10);
+        second = new MetricInfo("A|D", "a", null, 10);
+        third = new MetricInfo("A|E", "a", null, 10);
+        fourth = new MetricInfo("A|F", "a", null, 10);
+        apps = Lists.newArrayList(
+                new AppInfo("one", Lists.newArrayList(everyMinute, first, second, third)),
+                new AppInfo("two", Lists.newArrayList(fourth)));
+        metricRegistry = new MetricRegistry();
+    }
+
+    @Test
+    public void testSpread() {
+        RuleScheduler scheduler = new RuleScheduler(apps, 1, metricRegistry);
+        assertEquals(Lists.newArrayList(app("one", everyMinute, first)), scheduler.advance(100));
+        assertEquals(Lists.newArrayList(app("one", everyMinute, second)), scheduler.advance(101));
+        assertEquals(Lists.newArrayList(app("one", everyMinute, third)), scheduler.advance(102));
+        assertEquals(Lists.newArrayList(app("one", everyMinute), app("two", fourth)),
+                scheduler.advance(103));
+        for (long minute = 104; minute < 110; minute++) {
+            assertEquals(Lists.newArrayList(app("one", everyMinute)), scheduler.advance(minute));
+        }
+        assertEquals(Lists.newArrayList(app("one", everyMinute, first)), scheduler.advance(110));
+        assertEquals(10, scheduler.getMaxInterval(scheduler.advance(111)));
+
+        // Same minute again.
+        assertEquals(0, scheduler.advance(111).size());
+        assertEquals(0, metricRegistry.counter(StatusType.ruleOverrun.name()).getCount());
+    }
+
+    @Test
+    public void testOverrun() {
+        RuleScheduler scheduler = new RuleScheduler(apps, 1, metricRegistry);
+        scheduler.advance(100);
+
+        // Minutes 101 and 102 are skipped, only the rule running every minute overran.
+        assertEquals(Lists.newArrayList(app("one", everyMinute, second, third),
+                app("two", fourth)), scheduler.advance(103));
+        assertEquals(1, metricRegistry.counter(StatusType.ruleOverrun.name()).getCount());
+
+        // Pause longer than the wheel, every rule overran and runs once.
+        assertEquals(Lists.newArrayList(app("one", everyMinute, first, second, third),
+                app("two", fourth)), scheduler.advance(200));
+        assertEquals(6, metricRegistry.counter(StatusType.ruleOverrun.name()).getCount());
+        assertEquals(Lists.newArrayList(app("one", everyMinute, second)), scheduler.advance(201));
+    }
+
+    @Test
+    public void testCoalescedRulesDueTogether() throws Exception {
+        MetricInfo other = new MetricInfo("X|Y", "a", null, 10);
+        List<AppInfo> coalescedApps = Lists.newArrayList(new AppInfo("one",
+                Lists.newArrayList(everyMinute, first, other, second)));
+        QueryPlanner queryPlanner = new QueryPlanner();
+        queryPlanner.setCoalesceDepth(1);
+        RuleScheduler scheduler = new RuleScheduler(coalescedApps, 1, queryPlanner,
+                metricRegistry);
+        assertEquals(Lists.newArrayList(app("one", everyMinute, first, second)),
+                scheduler.advance(100));
+        assertEquals(Lists.newArrayList(app("one", everyMinute, other)), scheduler.advance(101));
+        assertEquals(Lists.newArrayList(app("one", everyMinute)), scheduler.advance(102));
+        assertEquals(Lists.newArrayList(app("one", everyMinute, first, second)),
+                scheduler.advance(110));
+    }
+
+    private AppInfo app(String name, MetricInfo... metricInfos) {
+        return new AppInfo(name, Lists.newArrayList(metricInfos));
+    }
+}
@@ -3,10 +3,28 @@
  */
 package com.signalfx.appd.report;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.MetricRegistry;
 import com.google.inject.AbstractModule;
+import com.google.inject.name.Names;
+import com.signalfx.appd.client.AdaptiveLimiter;
+import com.signalfx.appd.client.CircuitBreaker;
 import com.signalfx.appd.client.MetricDataRequest;
+import com.signalfx.appd.client.ResponseRecorder;
+import com.signalfx.appd.client.RetryPolicy;
+import com.signalfx.appd.process.ReportAppD;
+import com.signalfx.appd.process.discovery.DiscoveryService;
+import com.signalfx.appd.process.planner.QueryPlanner;
+import com.signalfx.appd.process.processor.Processor;
+import com.signalfx.appd.process.processor.WatermarkCheckpoint;
 import com.signalfx.appd.process.reporter.Reporter;
+import com.signalfx.appd.process.reporter.SpoolingReporter;
+import com.signalfx.appd.process.status.StatusType;
+import com.signalfx.appd.report.config.Config;
 import com.signalfx.appd.report.config.ConnectionConfig;
 import com.signalfx.appd.report.reporter.SignalFxRestReporter;
 
@@ -27,8 +45,146 @@ public class AppDReportModule extends AbstractModule {
 
     @Override
     protected void configure() {
-        bind(MetricDataRequest.class).toInstance(new MetricDataRequest(connectionConfig.appdURL, connectionConfig.appdUsername, connectionConfig.appdPassword));
-        bind(Reporter.class).toInstance(new SignalFxRestReporter(connectionConfig.fxToken));
+        int maxConcurrency = Config.getMaxConcurrency();
+        MetricDataRequest metricDataRequest = new MetricDataRequest(connectionConfig.appdURL,
+                connectionConfig.appdUsername, connectionConfig.appdPassword,
+                Config.getConcurrency(), maxConcurrency);
+        metricDataRequest.setMaxMetricData(Config.getMaxMetricData());
+        String captureDirectory = Config.getCaptureDirectory();
+        if (captureDirectory != null) {
+            try {
+                final ResponseRecorder recorder =
+                        new ResponseRecorder(Paths.get(captureDirectory));
+                metricDataRequest.setRecorder(recorder);
+                metricRegistry.register(StatusType.appdRecordingsDropped.name(),
+                        new Gauge<Long>() {
+                            @Override
+                            public Long getValue() {
+                                return recorder.getDropped();
+                            }
+                        });
+            } catch (IOException e) {
+                addError("Failed to open capture directory %s: %s", captureDirectory,
+                        e.getMessage());
+            }
+        }
+        registerRequestGauges(metricDataRequest);
+        bind(MetricDataRequest.class).toInstance(metricDataRequest);
+        // Enough queries are kept pending for the adaptive limit to grow to its maximum.
+        bindConstant().annotatedWith(Names.named(ReportAppD.CONCURRENCY)).to(maxConcurrency);
+        bindConstant().annotatedWith(Names.named(QueryPlanner.COALESCE_DEPTH))
+                .to(Config.getCoalesceDepth());
+        bindConstant().annotatedWith(Names.named(ReportAppD.INTERVAL)).to(Config.getInterval());
+        bindConstant().annotatedWith(Names.named(ReportAppD.OVERLAP)).to(Config.getOverlap());
+        bindConstant().annotatedWith(Names.named(ReportAppD.MAX_LOOKBACK))
+                .to(Config.getMaxLookback());
+        bindConstant().annotatedWith(Names.named(Processor.SERIES_EXPIRY))
+                .to(Config.getSeriesExpiry());
+        bindConstant().annotatedWith(Names.named(Processor.MAX_SERIES)).to(Config.getMaxSeries());
+        bindConstant().annotatedWith(Names.named(ReportAppD.REPORT_CHUNK_SIZE))
+                .to(Config.getReportChunkSize());
+        bindConstant().annotatedWith(Names.named(ReportAppD.REPORT_CHUNK_DELAY))
+                .to(Config.getReportChunkDelay());
+        bindConstant().annotatedWith(Names.named(DiscoveryService.REFRESH))
+                .to(Config.getDiscoveryRefresh());
+        bindConstant().annotatedWith(Names.named(DiscoveryService.MAX_LEAF_QUERIES))
+                .to(Config.getDiscoveryMaxLeafQueries());
+        String checkpointDirectory = Config.getCheckpointDirectory();
+        if (checkpointDirectory != null) {
+            bindConstant().annotatedWith(Names.named(WatermarkCheckpoint.CHECKPOINT_DIR))
+                    .to(checkpointDirectory);
+        }
+        bind(Reporter.class).toInstance(getReporter());
         bind(MetricRegistry.class).toInstance(metricRegistry);
     }
+
+    /**
+     * Publish the adaptive concurrency limit, retries, circuit breaker state and response bytes
+     * of AppDynamics requests.
+     */
+    private void registerRequestGauges(final MetricDataRequest metricDataRequest) {
+        final AdaptiveLimiter limiter = metricDataRequest.getLimiter();
+        final RetryPolicy retryPolicy = metricDataRequest.getRetryPolicy();
+        final CircuitBreaker circuitBreaker = metricDataRequest.getCircuitBreaker();
+        metricRegistry.register(StatusType.appdConcurrencyLimit.name(), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return limiter.getLimit();
+            }
+        });
+        metricRegistry.register(StatusType.appdInFlight.name(), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return limiter.getInFlight();
+            }
+        });
+        metricRegistry.register(StatusType.appdQueueWait.name(), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return limiter.getQueueWaitMillis();
+            }
+        });
+        metricRegistry.register(StatusType.appdRequestRetries.name(), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return retryPolicy.getRetries();
+            }
+        });
+        metricRegistry.register(StatusType.appdRetryBudgetExhausted.name(), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return retryPolicy.getBudgetExhausted();
+            }
+        });
+        metricRegistry.register(StatusType.appdCircuitState.name(), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return circuitBreaker.getState().ordinal();
+            }
+        });
+        metricRegistry.register(StatusType.appdCircuitOpened.name(), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return circuitBreaker.getOpenCount();
+            }
+        });
+        metricRegistry.register(StatusType.appdBytesReceived.name(), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return metricDataRequest.getBytesReceived();
+            }
+        });
+        metricRegistry.register(StatusType.appdBytesDecoded.name(), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return metricDataRequest.getBytesDecoded();
+            }
+        });
+    }
+
+    /**
+     * @return SignalFx reporter, spooling failed data points when a spool directory is set.
+     */
+    private Reporter getReporter() {
+        SignalFxRestReporter reporter = new SignalFxRestReporter(connectionConfig.fxToken,
+                Config.getIngestEndpoint(), Config.getReportBatchSize(),
+                Config.getReportBatchBytes(), Config.getReportConcurrency(), metricRegistry);
+        reporter.setCompression(Config.getReportCompression());
+        reporter.setUploadTimeoutMillis(Config.getReportUploadTimeout());
+        String spoolDirectory = Config.getSpoolDirectory();
+        if (spoolDirectory == null) {
+            return reporter;
+        }
+        try {
+            SpoolingReporter spoolingReporter = new SpoolingReporter(reporter,
+                    Paths.get(spoolDirectory), Config.getSpoolMaxMegabytes() * 1024L * 1024L,
+                    TimeUnit.MINUTES.toMillis(Config.getSpoolMaxAge()),
+                    Config.getSpoolReplayRate(), metricRegistry);
+            spoolingReporter.start();
+            return spoolingReporter;
+        } catch (IOException e) {
+            addError("Failed to open spool directory %s: %s", spoolDirectory, e.getMessage());
+            return reporter;
+        }
+    }
 }
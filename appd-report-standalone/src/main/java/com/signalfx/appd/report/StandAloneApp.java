@@ -18,7 +18,10 @@ import com.signalfx.appd.client.MetricDataRequest;
 import com.signalfx.appd.process.ReportAppD;
 import com.signalfx.appd.report.config.Config;
 import com.signalfx.appd.report.config.ConnectionConfig;
+import com.signalfx.appd.process.discovery.DiscoveryService;
 import com.signalfx.appd.process.info.AppInfo;
+import com.signalfx.appd.process.planner.QueryPlanner;
+import com.signalfx.appd.process.scheduler.RuleScheduler;
 import com.signalfx.codahale.reporter.SignalFxReporter;
 
 /**
@@ -35,7 +38,49 @@ import com.signalfx.codahale.reporter.SignalFxReporter;
  *
  *    (Optional)
  *    com.signalfx.appd.metrics - metric configurations filename (default to metrics.json)
- *    com.signalfx.appd.interval - time in minutes of metric lookup interval (default to 1 minute)
+ *    com.signalfx.api.ingest - SignalFx ingest URL (default to https://ingest.signalfx.com)
+ *    com.signalfx.appd.interval - time in minutes of metric lookup interval of rules without their
+ *                                own interval (default to 1 minute)
+ *    com.signalfx.appd.concurrency - AppDynamics queries in flight at first (default to 1)
+ *    com.signalfx.appd.concurrency.max - maximum AppDynamics queries in flight (default to 8)
+ *    com.signalfx.appd.coalesce.depth - trailing metric path elements rules may differ in to
+ *                                       share a query (default to 0)
+ *    com.signalfx.appd.overlap - minutes before last data point fetched again (default to 1)
+ *    com.signalfx.appd.lookback.max - maximum minutes a query looks back (default to 240)
+ *    com.signalfx.appd.metric.data.max - maximum metric data a query may return before it is
+ *                                        split (default to 50000)
+ *    com.signalfx.appd.series.expiry - intervals of its rule a series or query is remembered
+ *                                      without data (default to 60)
+ *    com.signalfx.appd.series.max - maximum series remembered (default to 0, no limit)
+ *    com.signalfx.appd.report.chunk.size - maximum data points reported at once
+ *                                         (default to 10000)
+ *    com.signalfx.appd.report.chunk.delay - maximum milliseconds a data point waits to be
+ *                                          reported (default to 5000)
+ *    com.signalfx.appd.report.batch.size - maximum data points per SignalFx request
+ *                                         (default to 5000)
+ *    com.signalfx.appd.report.batch.bytes - maximum bytes per SignalFx request
+ *                                          (default to 1048576)
+ *    com.signalfx.appd.report.concurrency - maximum SignalFx requests in flight (default to 4)
+ *    com.signalfx.appd.report.compression - true to send data points gzip compressed
+ *                                           (default to false)
+ *    com.signalfx.appd.report.upload.timeout - maximum milliseconds a compressed SignalFx
+ *                                              request waits for its response (default to 30000)
+ *    com.signalfx.appd.spool.dir - directory to spool data points SignalFx did not accept in
+ *                                  (default to none)
+ *    com.signalfx.appd.spool.max.mb - maximum megabytes spooled (default to 512)
+ *    com.signalfx.appd.spool.max.age - minutes after which spooled data is dropped
+ *                                      (default to 1440)
+ *    com.signalfx.appd.spool.replay.rate - maximum data points replayed per second
+ *                                          (default to 1000)
+ *    com.signalfx.appd.discovery.refresh - minutes between refreshes of discovered metric paths
+ *                                          (default to 0, discovery disabled)
+ *    com.signalfx.appd.discovery.leaf.queries.max - maximum discovered metric paths a query is
+ *                                                   replaced by, new metric paths of such
+ *                                                   queries wait for a refresh (default to 10)
+ *    com.signalfx.appd.checkpoint.dir - directory to checkpoint watermarks in across restarts
+ *                                       (default to none)
+ *    com.signalfx.appd.capture.dir - directory to record AppDynamics responses in for replay
+ *                                    (default to none)
  *
  * Environment Variables
  *    (Required)
@@ -46,7 +91,43 @@ import com.signalfx.codahale.reporter.SignalFxReporter;
  *
  *    (Optional)
  *    SIGNALFX_APPD_METRICS - metric configurations filename (default to metrics.json)
- *    APPD_INTERVAL - time in minutes of metric lookup interval (default to 1 minute)
+ *    SIGNALFX_INGEST_URL - SignalFx ingest URL (default to https://ingest.signalfx.com)
+ *    APPD_INTERVAL - time in minutes of metric lookup interval of rules without their own
+ *                    interval (default to 1 minute)
+ *    APPD_CONCURRENCY - AppDynamics queries in flight at first (default to 1)
+ *    APPD_MAX_CONCURRENCY - maximum AppDynamics queries in flight (default to 8)
+ *    APPD_COALESCE_DEPTH - trailing metric path elements rules may differ in to share a query
+ *                          (default to 0)
+ *    APPD_OVERLAP - minutes before last data point fetched again (default to 1)
+ *    APPD_MAX_LOOKBACK - maximum minutes a query looks back (default to 240)
+ *    APPD_MAX_METRIC_DATA - maximum metric data a query may return before it is split
+ *                           (default to 50000)
+ *    APPD_SERIES_EXPIRY - intervals of its rule a series or query is remembered without
+ *                         data (default to 60)
+ *    APPD_MAX_SERIES - maximum series remembered (default to 0, no limit)
+ *    APPD_REPORT_CHUNK_SIZE - maximum data points reported at once (default to 10000)
+ *    APPD_REPORT_CHUNK_DELAY - maximum milliseconds a data point waits to be reported
+ *                              (default to 5000)
+ *    APPD_REPORT_BATCH_SIZE - maximum data points per SignalFx request (default to 5000)
+ *    APPD_REPORT_BATCH_BYTES - maximum bytes per SignalFx request (default to 1048576)
+ *    APPD_REPORT_CONCURRENCY - maximum SignalFx requests in flight (default to 4)
+ *    APPD_REPORT_COMPRESSION - true to send data points gzip compressed (default to false)
+ *    APPD_REPORT_UPLOAD_TIMEOUT - maximum milliseconds a compressed SignalFx request waits for
+ *                                 its response (default to 30000)
+ *    APPD_SPOOL_DIR - directory to spool data points SignalFx did not accept in
+ *                     (default to none)
+ *    APPD_SPOOL_MAX_MB - maximum megabytes spooled (default to 512)
+ *    APPD_SPOOL_MAX_AGE - minutes after which spooled data is dropped (default to 1440)
+ *    APPD_SPOOL_REPLAY_RATE - maximum data points replayed per second (default to 1000)
+ *    APPD_DISCOVERY_REFRESH - minutes between refreshes of discovered metric paths
+ *                             (default to 0, discovery disabled)
+ *    APPD_DISCOVERY_MAX_LEAF_QUERIES - maximum discovered metric paths a query is replaced by,
+ *                                      new metric paths of such queries wait for a refresh
+ *                                      (default to 10)
+ *    APPD_CHECKPOINT_DIR - directory to checkpoint watermarks in across restarts
+ *                          (default to none)
+ *    APPD_CAPTURE_DIR - directory to record AppDynamics responses in for replay
+ *                       (default to none)
  *
  * It also uses metric configuration json file to perform query of metrics from AppDynamics and
  * do the mapping to metric names/dimensions in SignalFx.
@@ -83,48 +164,43 @@ public class StandAloneApp {
 
         int interval = Config.getInterval();
 
-        log.info("Starting AppDynamics sync of {} rule(s) at {} minute(s) interval",
-                metricCount, interval);
+        log.info("Starting AppDynamics sync of {} rule(s) at {} minute(s) default interval with " +
+                "{} to {} quer(ies) in flight", metricCount, interval, Config.getConcurrency(),
+                Config.getMaxConcurrency());
 
         MetricRegistry metricRegistry = new MetricRegistry();
         SignalFxReporter signalFxReporter =
-                new SignalFxReporter.Builder(metricRegistry, connectionConfig.fxToken).build();
+                new SignalFxReporter.Builder(metricRegistry, connectionConfig.fxToken)
+                        .setEndpoint(Config.getIngestEndpoint())
+                        .build();
         signalFxReporter.start(1, TimeUnit.SECONDS);
 
         Injector injector =
                 Guice.createInjector(new AppDReportModule(connectionConfig, metricRegistry));
 
         ReportAppD syncAppD = injector.getInstance(ReportAppD.class);
+        injector.getInstance(DiscoveryService.class).start(apps);
 
-        int intervalMillis = interval * MINUTE_MILLIS;
-        long lastStart = System.currentTimeMillis();
+        RuleScheduler ruleScheduler = new RuleScheduler(apps, interval,
+                injector.getInstance(QueryPlanner.class), metricRegistry);
         while (true) {
             long timeStart = System.currentTimeMillis();
 
-            long timeDiff = timeStart - lastStart;
-            long range = timeDiff / MINUTE_MILLIS + (timeDiff % MINUTE_MILLIS > 0 ? 1 : 0) + 1;
-            lastStart = timeStart;
-            log.trace("Starting at {} and querying for range {}",
-                    format.format(new Date(timeStart)), range);
+            // Each minute, query only the rules due according to their own interval.
+            List<AppInfo> dueApps = ruleScheduler.advance(timeStart / MINUTE_MILLIS);
+            if (!dueApps.isEmpty()) {
+                int range = ruleScheduler.getMaxInterval(dueApps) + 1;
+                log.trace("Starting at {} and querying for range {}",
+                        format.format(new Date(timeStart)), range);
 
-            // Perform the actual stuff.
-            syncAppD.perform(apps, MetricDataRequest.TimeParams.beforeNow(range));
+                // Perform the actual stuff.
+                syncAppD.perform(dueApps, MetricDataRequest.TimeParams.beforeNow(range));
+            }
 
             long timeEnd = System.currentTimeMillis();
-            long sleepTime;
-            long timeTaken = timeEnd - timeStart;
-
-            if (timeTaken > intervalMillis) {
-                log.warn("Took {} to process which is more than {} interval", timeTaken,
-                        intervalMillis);
-
-                // Perform the next one at the next minute
-                sleepTime = MINUTE_MILLIS - timeTaken % MINUTE_MILLIS;
-            } else {
-                sleepTime = intervalMillis - timeTaken;
-            }
+            long sleepTime = MINUTE_MILLIS - timeEnd % MINUTE_MILLIS;
 
-            log.trace("Took {}, sleeping for {}", timeTaken, sleepTime);
+            log.trace("Took {}, sleeping for {}", timeEnd - timeStart, sleepTime);
             try {
                 Thread.sleep(sleepTime);
             } catch (InterruptedException e) {
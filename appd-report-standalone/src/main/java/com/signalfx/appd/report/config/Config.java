@@ -4,6 +4,8 @@
 package com.signalfx.appd.report.config;
 
 import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
@@ -16,6 +18,9 @@ import org.slf4j.LoggerFactory;
 
 import com.signalfx.appd.process.info.AppInfo;
 import com.signalfx.appd.process.info.InfoParser;
+import com.signalfx.appd.report.reporter.SignalFxRestReporter;
+import com.signalfx.endpoint.SignalFxEndpoint;
+import com.signalfx.endpoint.SignalFxReceiverEndpoint;
 
 /**
  * Config handles retrieval of configurations of the AppDynamics SignalFx metric reporting
@@ -60,6 +65,31 @@ public class Config {
         }
     }
 
+    /**
+     * @return SignalFx ingest endpoint to report data points and status metrics to (default to
+     * https://ingest.signalfx.com).
+     */
+    public static SignalFxReceiverEndpoint getIngestEndpoint() {
+        String url = getPropertyOrEnv("com.signalfx.api.ingest", "SIGNALFX_INGEST_URL");
+        if (StringUtils.isEmpty(url)) {
+            return new SignalFxEndpoint();
+        }
+        try {
+            URI uri = new URI(url);
+            if (uri.getScheme() == null || uri.getHost() == null) {
+                throw new URISyntaxException(url, "Scheme and host are required");
+            }
+            int port = uri.getPort();
+            if (port < 0) {
+                port = "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+            }
+            return new SignalFxEndpoint(uri.getScheme(), uri.getHost(), port);
+        } catch (URISyntaxException e) {
+            log.warn("SignalFx ingest URL {} is invalid, using the default", url);
+            return new SignalFxEndpoint();
+        }
+    }
+
     /**
      * @return path of metrics json configuration for querying AppDynamics.
      */
@@ -96,6 +126,220 @@ public class Config {
         return interval;
     }
 
+    /**
+     * @return number of AppDynamics queries in flight at first (default to 1).
+     */
+    public static int getConcurrency() {
+        return getInt("com.signalfx.appd.concurrency", "APPD_CONCURRENCY", "concurrency", 1, 1);
+    }
+
+    /**
+     * @return maximum number of AppDynamics queries in flight at once, at least the initial
+     * concurrency (default to 8).
+     */
+    public static int getMaxConcurrency() {
+        return Math.max(getConcurrency(), getInt("com.signalfx.appd.concurrency.max",
+                "APPD_MAX_CONCURRENCY", "max concurrency", 8, 1));
+    }
+
+    /**
+     * @return number of trailing metric path elements that rules may differ in to be merged into
+     * one query (default to 0, no merging).
+     */
+    public static int getCoalesceDepth() {
+        return getInt("com.signalfx.appd.coalesce.depth", "APPD_COALESCE_DEPTH",
+                "coalesce depth", 0, 0);
+    }
+
+    /**
+     * @return minutes before the last data point received that are fetched again (default to 1).
+     */
+    public static int getOverlap() {
+        return getInt("com.signalfx.appd.overlap", "APPD_OVERLAP", "overlap", 1, 0);
+    }
+
+    /**
+     * @return maximum minutes a query looks back for missing data (default to 240).
+     */
+    public static int getMaxLookback() {
+        return getInt("com.signalfx.appd.lookback.max", "APPD_MAX_LOOKBACK", "maximum lookback",
+                240, 1);
+    }
+
+    /**
+     * @return maximum metric data a query may return before it is split (default to 50000).
+     */
+    public static int getMaxMetricData() {
+        return getInt("com.signalfx.appd.metric.data.max", "APPD_MAX_METRIC_DATA",
+                "maximum metric data", 50000, 1);
+    }
+
+    /**
+     * @return number of intervals of its rule a series is remembered without data (default to
+     * 60).
+     */
+    public static int getSeriesExpiry() {
+        return getInt("com.signalfx.appd.series.expiry", "APPD_SERIES_EXPIRY", "series expiry",
+                60, 1);
+    }
+
+    /**
+     * @return maximum number of series remembered (default to 0, no limit).
+     */
+    public static int getMaxSeries() {
+        return getInt("com.signalfx.appd.series.max", "APPD_MAX_SERIES", "maximum series", 0, 0);
+    }
+
+    /**
+     * @return maximum data points reported to SignalFx at once (default to 10000).
+     */
+    public static int getReportChunkSize() {
+        return getInt("com.signalfx.appd.report.chunk.size", "APPD_REPORT_CHUNK_SIZE",
+                "report chunk size", 10000, 1);
+    }
+
+    /**
+     * @return maximum milliseconds a data point waits to be reported (default to 5000).
+     */
+    public static int getReportChunkDelay() {
+        return getInt("com.signalfx.appd.report.chunk.delay", "APPD_REPORT_CHUNK_DELAY",
+                "report chunk delay", 5000, 0);
+    }
+
+    /**
+     * @return maximum data points sent to SignalFx in one request (default to 5000).
+     */
+    public static int getReportBatchSize() {
+        return getInt("com.signalfx.appd.report.batch.size", "APPD_REPORT_BATCH_SIZE",
+                "report batch size", SignalFxRestReporter.DEFAULT_BATCH_SIZE, 1);
+    }
+
+    /**
+     * @return maximum encoded bytes sent to SignalFx in one request (default to 1048576).
+     */
+    public static int getReportBatchBytes() {
+        return getInt("com.signalfx.appd.report.batch.bytes", "APPD_REPORT_BATCH_BYTES",
+                "report batch bytes", SignalFxRestReporter.DEFAULT_BATCH_BYTES, 1);
+    }
+
+    /**
+     * @return maximum requests to SignalFx in flight at once (default to 4).
+     */
+    public static int getReportConcurrency() {
+        return getInt("com.signalfx.appd.report.concurrency", "APPD_REPORT_CONCURRENCY",
+                "report concurrency", SignalFxRestReporter.DEFAULT_CONCURRENCY, 1);
+    }
+
+    /**
+     * @return whether data points are sent to SignalFx gzip compressed (default to false).
+     */
+    public static boolean getReportCompression() {
+        return Boolean.parseBoolean(getPropertyOrEnv("com.signalfx.appd.report.compression",
+                "APPD_REPORT_COMPRESSION"));
+    }
+
+    /**
+     * @return milliseconds a gzip compressed request to SignalFx may wait for its response
+     * (default to 30000).
+     */
+    public static int getReportUploadTimeout() {
+        return getInt("com.signalfx.appd.report.upload.timeout", "APPD_REPORT_UPLOAD_TIMEOUT",
+                "report upload timeout", SignalFxRestReporter.DEFAULT_UPLOAD_TIMEOUT_MILLIS,
+                SignalFxRestReporter.TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @return directory to spool data points SignalFx did not accept in or null if spooling is
+     * disabled.
+     */
+    public static String getSpoolDirectory() {
+        String directory = getPropertyOrEnv("com.signalfx.appd.spool.dir", "APPD_SPOOL_DIR");
+        return StringUtils.isEmpty(directory) ? null : directory;
+    }
+
+    /**
+     * @return maximum megabytes of spooled data points (default to 512).
+     */
+    public static int getSpoolMaxMegabytes() {
+        return getInt("com.signalfx.appd.spool.max.mb", "APPD_SPOOL_MAX_MB", "spool size", 512,
+                1);
+    }
+
+    /**
+     * @return minutes after which spooled data points are dropped (default to 1440).
+     */
+    public static int getSpoolMaxAge() {
+        return getInt("com.signalfx.appd.spool.max.age", "APPD_SPOOL_MAX_AGE", "spool age", 1440,
+                1);
+    }
+
+    /**
+     * @return maximum spooled data points replayed per second (default to 1000).
+     */
+    public static int getSpoolReplayRate() {
+        return getInt("com.signalfx.appd.spool.replay.rate", "APPD_SPOOL_REPLAY_RATE",
+                "spool replay rate", 1000, 1);
+    }
+
+    /**
+     * @return minutes between refreshes of discovered metric paths (default to 0, disabled).
+     */
+    public static int getDiscoveryRefresh() {
+        return getInt("com.signalfx.appd.discovery.refresh", "APPD_DISCOVERY_REFRESH",
+                "discovery refresh", 0, 0);
+    }
+
+    /**
+     * @return maximum discovered metric paths a query is replaced by (default to 10). Metric
+     * paths added after the last refresh are not queried by the replacing queries.
+     */
+    public static int getDiscoveryMaxLeafQueries() {
+        return getInt("com.signalfx.appd.discovery.leaf.queries.max",
+                "APPD_DISCOVERY_MAX_LEAF_QUERIES", "discovery maximum leaf queries", 10, 0);
+    }
+
+    /**
+     * @return directory to checkpoint watermarks in or null if checkpointing is disabled.
+     */
+    public static String getCheckpointDirectory() {
+        String directory = getPropertyOrEnv("com.signalfx.appd.checkpoint.dir",
+                "APPD_CHECKPOINT_DIR");
+        return StringUtils.isEmpty(directory) ? null : directory;
+    }
+
+    /**
+     * @return directory to record AppDynamics responses in or null if recording is disabled.
+     */
+    public static String getCaptureDirectory() {
+        String directory = getPropertyOrEnv("com.signalfx.appd.capture.dir", "APPD_CAPTURE_DIR");
+        return StringUtils.isEmpty(directory) ? null : directory;
+    }
+
+    /**
+     * Retrieve an integer configuration, falling back to default when it is not specified or
+     * invalid and raising it to minimum when it is too small.
+     */
+    private static int getInt(String propertyName, String envName, String description,
+                              int defaultValue, int minimum) {
+        String valueString = getPropertyOrEnv(propertyName, envName);
+        if (StringUtils.isEmpty(valueString)) {
+            return defaultValue;
+        }
+        int value;
+        try {
+            value = Integer.parseInt(valueString);
+        } catch (NumberFormatException e) {
+            log.warn("Invalid {} config {}, default to {}", description, valueString,
+                    defaultValue);
+            return defaultValue;
+        }
+        if (value < minimum) {
+            log.warn("{} is less than {} minimum, setting to {}", description, minimum, minimum);
+            value = minimum;
+        }
+        return value;
+    }
+
     public static String getPropertyOrEnv(String propertyName, String envName) {
         return System.getProperty(propertyName, System.getenv(envName));
     }
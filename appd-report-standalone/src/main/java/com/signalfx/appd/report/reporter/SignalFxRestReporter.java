@@ -3,16 +3,40 @@
  */
 package com.signalfx.appd.report.reporter;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
 
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.signalfx.appd.process.reporter.Reporter;
+import com.signalfx.appd.process.status.StatusType;
 import com.signalfx.endpoint.SignalFxEndpoint;
 import com.signalfx.endpoint.SignalFxReceiverEndpoint;
 import com.signalfx.metrics.auth.StaticAuthToken;
 import com.signalfx.metrics.connection.HttpDataPointProtobufReceiverFactory;
+import com.signalfx.metrics.errorhandler.MetricError;
 import com.signalfx.metrics.errorhandler.OnSendErrorHandler;
 import com.signalfx.metrics.flush.AggregateMetricSender;
 import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers;
@@ -20,31 +44,281 @@ import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers;
 /**
  * SignalFxRestReporter handles submitting data points to SignalFx using REST API and protobuf.
  *
+ * Data points are split into batches bounded by number of data points and encoded bytes, and
+ * the batches are sent over several sessions at the same time. Each batch succeeds or fails on
+ * its own, and the data points of failed batches are returned in the {@link ReportException}.
+ *
+ * Data points go to SignalFx ingest unless another endpoint is given, e.g. a local stand-in.
+ * Batches can be gzip compressed, in which case they are posted by this reporter rather than by
+ * an {@link AggregateMetricSender}, which only sends them uncompressed. Both give up connecting
+ * after {@link #TIMEOUT_MILLIS}. Uncompressed batches also wait that long for their response,
+ * compressed ones wait for the upload timeout, as large batches can take longer against a
+ * throttling ingest.
+ *
  * @author 9park
  */
-public class SignalFxRestReporter implements Reporter {
+public class SignalFxRestReporter implements Reporter, Closeable {
+
+    public static final int DEFAULT_BATCH_SIZE = 5000;
+    public static final int DEFAULT_BATCH_BYTES = 1024 * 1024;
+    public static final int DEFAULT_CONCURRENCY = 4;
+
+    /**
+     * Connect, socket and connection pool timeout of both senders, the default of
+     * {@link HttpDataPointProtobufReceiverFactory}.
+     */
+    public static final int TIMEOUT_MILLIS = 2000;
+    public static final int DEFAULT_UPLOAD_TIMEOUT_MILLIS = 30000;
 
-    private final AggregateMetricSender metricSender;
+    private static final String SOURCE = "appd-integration";
+    private static final String DATAPOINT_PATH = "/v2/datapoint";
 
+    private final HttpDataPointProtobufReceiverFactory receiverFactory;
+    private final StaticAuthToken authToken;
+    private final String datapointURL;
+    private final CloseableHttpClient httpClient;
+    private final int batchSize;
+    private final int batchBytes;
+    private final ExecutorService executor;
+
+    private final Timer timerBatchLatency;
+    private final Counter counterBatchBytes;
+    private final Counter counterBatchBytesSent;
+    private final Counter counterBatchFailure;
+
+    private volatile boolean compression;
+    private volatile RequestConfig uploadConfig;
+
+    /**
+     * @param token
+     *         SignalFx API token.
+     * @param metricRegistry
+     *         registry of batch metrics.
+     */
     @Inject
-    public SignalFxRestReporter(String token) {
-        SignalFxReceiverEndpoint dataPointEndpoint = new SignalFxEndpoint();
-        metricSender =
-                new AggregateMetricSender("appd-integration",
-                        new HttpDataPointProtobufReceiverFactory(
-                                dataPointEndpoint)
-                                .setVersion(2),
-                        new StaticAuthToken(token),
-                        Collections.<OnSendErrorHandler>emptySet());
+    public SignalFxRestReporter(String token, MetricRegistry metricRegistry) {
+        this(token, DEFAULT_BATCH_SIZE, DEFAULT_BATCH_BYTES, DEFAULT_CONCURRENCY, metricRegistry);
+    }
+
+    /**
+     * @param token
+     *         SignalFx API token.
+     * @param batchSize
+     *         maximum data points per batch.
+     * @param batchBytes
+     *         maximum encoded bytes per batch, a single larger data point is sent alone.
+     * @param concurrency
+     *         maximum batches sent at the same time.
+     * @param metricRegistry
+     *         registry of batch metrics.
+     */
+    public SignalFxRestReporter(String token, int batchSize, int batchBytes, int concurrency,
+                                MetricRegistry metricRegistry) {
+        this(token, new SignalFxEndpoint(), batchSize, batchBytes, concurrency, metricRegistry);
+    }
+
+    /**
+     * @param token
+     *         SignalFx API token.
+     * @param endpoint
+     *         SignalFx ingest endpoint.
+     * @param batchSize
+     *         maximum data points per batch.
+     * @param batchBytes
+     *         maximum encoded bytes per batch, a single larger data point is sent alone.
+     * @param concurrency
+     *         maximum batches sent at the same time.
+     * @param metricRegistry
+     *         registry of batch metrics.
+     */
+    public SignalFxRestReporter(String token, SignalFxReceiverEndpoint endpoint, int batchSize,
+                                int batchBytes, int concurrency, MetricRegistry metricRegistry) {
+        this.receiverFactory = new HttpDataPointProtobufReceiverFactory(endpoint).setVersion(2)
+                .setTimeoutMs(TIMEOUT_MILLIS);
+        this.authToken = new StaticAuthToken(token);
+        this.datapointURL = String.format("%s://%s:%d%s", endpoint.getScheme(),
+                endpoint.getHostname(), endpoint.getPort(), DATAPOINT_PATH);
+        this.httpClient = HttpClients.custom()
+                .setMaxConnTotal(Math.max(1, concurrency))
+                .setMaxConnPerRoute(Math.max(1, concurrency))
+                .build();
+        setUploadTimeoutMillis(DEFAULT_UPLOAD_TIMEOUT_MILLIS);
+        this.batchSize = Math.max(1, batchSize);
+        this.batchBytes = Math.max(1, batchBytes);
+        this.executor = Executors.newFixedThreadPool(Math.max(1, concurrency),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("signalfx-report-%d")
+                        .setDaemon(true)
+                        .build());
+
+        timerBatchLatency = metricRegistry.timer(StatusType.reportBatchLatency.name());
+        counterBatchBytes = metricRegistry.counter(StatusType.reportBatchBytes.name());
+        counterBatchBytesSent = metricRegistry.counter(StatusType.reportBatchBytesSent.name());
+        counterBatchFailure = metricRegistry.counter(StatusType.reportBatchFailure.name());
+    }
+
+    /**
+     * Send batches gzip compressed, false by default.
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Set the time a compressed batch may go without receiving its response before it fails.
+     *
+     * @param uploadTimeoutMillis
+     *         milliseconds to wait, at least {@link #TIMEOUT_MILLIS}.
+     */
+    public void setUploadTimeoutMillis(int uploadTimeoutMillis) {
+        this.uploadConfig = RequestConfig.custom()
+                .setConnectTimeout(TIMEOUT_MILLIS)
+                .setConnectionRequestTimeout(TIMEOUT_MILLIS)
+                .setSocketTimeout(Math.max(TIMEOUT_MILLIS, uploadTimeoutMillis))
+                .build();
     }
 
     public void report(List<SignalFxProtocolBuffers.DataPoint> dataPoints) throws ReportException {
-        try (AggregateMetricSender.Session i = metricSender.createSession()) {
-            for (SignalFxProtocolBuffers.DataPoint dataPoint : dataPoints) {
-                i.setDatapoint(dataPoint);
+        List<Batch> batches = split(dataPoints);
+        List<Future<Void>> futures = new ArrayList<>(batches.size());
+        for (Batch batch : batches) {
+            futures.add(executor.submit(batch));
+        }
+
+        List<SignalFxProtocolBuffers.DataPoint> failedDataPoints = new ArrayList<>();
+        Throwable cause = null;
+        int failedBatches = 0;
+        for (int i = 0; i < batches.size(); i++) {
+            try {
+                futures.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (int j = i; j < batches.size(); j++) {
+                    futures.get(j).cancel(true);
+                    failedDataPoints.addAll(batches.get(j).dataPoints);
+                }
+                throw new ReportException("Sending got interrupted", e, failedDataPoints);
+            } catch (ExecutionException e) {
+                cause = e.getCause();
+                failedBatches++;
+                failedDataPoints.addAll(batches.get(i).dataPoints);
             }
+        }
+        if (failedBatches > 0) {
+            throw new ReportException(String.format(
+                    "There was something wrong with sending %d of %d batches", failedBatches,
+                    batches.size()), cause, failedDataPoints);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            httpClient.close();
         } catch (IOException e) {
-            throw new ReportException("There was something wrong with sending request", e);
+            // Connections are dropped anyway.
+        }
+    }
+
+    /**
+     * Split data points into batches within the size and bytes limits.
+     */
+    private List<Batch> split(List<SignalFxProtocolBuffers.DataPoint> dataPoints) {
+        List<Batch> batches = new ArrayList<>();
+        Batch batch = new Batch();
+        for (SignalFxProtocolBuffers.DataPoint dataPoint : dataPoints) {
+            int size = dataPoint.getSerializedSize();
+            if (!batch.dataPoints.isEmpty() && (batch.dataPoints.size() >= batchSize ||
+                    batch.bytes + size > batchBytes)) {
+                batches.add(batch);
+                batch = new Batch();
+            }
+            batch.dataPoints.add(dataPoint);
+            batch.bytes += size;
+        }
+        if (!batch.dataPoints.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    /**
+     * Batch of data points sent in its own session.
+     */
+    private class Batch implements Callable<Void> {
+        private final List<SignalFxProtocolBuffers.DataPoint> dataPoints = new ArrayList<>();
+        private long bytes;
+
+        @Override
+        public Void call() throws IOException {
+            if (compression) {
+                post();
+                return null;
+            }
+            final List<MetricError> errors =
+                    Collections.synchronizedList(new ArrayList<MetricError>());
+            AggregateMetricSender metricSender = new AggregateMetricSender(SOURCE,
+                    receiverFactory, authToken,
+                    Collections.<OnSendErrorHandler>singleton(new OnSendErrorHandler() {
+                        @Override
+                        public void handleError(MetricError metricError) {
+                            errors.add(metricError);
+                        }
+                    }));
+            Timer.Context context = timerBatchLatency.time();
+            try (AggregateMetricSender.Session session = metricSender.createSession()) {
+                for (SignalFxProtocolBuffers.DataPoint dataPoint : dataPoints) {
+                    session.setDatapoint(dataPoint);
+                }
+            } catch (IOException e) {
+                counterBatchFailure.inc();
+                throw e;
+            } finally {
+                context.stop();
+            }
+            if (!errors.isEmpty()) {
+                counterBatchFailure.inc();
+                MetricError error = errors.get(0);
+                throw new IOException(error.getMessage(), error.getException());
+            }
+            counterBatchBytes.inc(bytes);
+            counterBatchBytesSent.inc(bytes);
+            return null;
+        }
+
+        /**
+         * Post the batch gzip compressed.
+         */
+        private void post() throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream((int) (bytes / 4) + 64);
+            try (OutputStream out = new GZIPOutputStream(body)) {
+                SignalFxProtocolBuffers.DataPointUploadMessage.newBuilder()
+                        .addAllDatapoints(dataPoints)
+                        .build()
+                        .writeTo(out);
+            }
+            HttpPost post = new HttpPost(datapointURL);
+            post.setConfig(uploadConfig);
+            post.setHeader("X-SF-Token", authToken.getAuthToken());
+            post.setHeader("Content-Type", "application/x-protobuf");
+            post.setHeader("Content-Encoding", "gzip");
+            post.setEntity(new ByteArrayEntity(body.toByteArray()));
+            Timer.Context context = timerBatchLatency.time();
+            try (CloseableHttpResponse response = httpClient.execute(post)) {
+                int status = response.getStatusLine().getStatusCode();
+                EntityUtils.consumeQuietly(response.getEntity());
+                if (status != 200) {
+                    throw new IOException("Unhandled response code " + status);
+                }
+            } catch (IOException e) {
+                counterBatchFailure.inc();
+                throw e;
+            } finally {
+                context.stop();
+            }
+            counterBatchBytes.inc(bytes);
+            counterBatchBytesSent.inc(body.size());
         }
     }
 }